@@ -0,0 +1,40 @@
+package net.razorvine.pyro;
+
+/**
+ * Reads and writes big endian (network order) numbers in byte arrays, for the wire protocol headers.
+ * There is an optimized version of this class for Java 17+ in the multi-release jar (META-INF/versions/17).
+ */
+final class BigEndian {
+
+	private BigEndian() {
+	}
+
+	static int getUnsignedShort(byte[] bytes, int offset) {
+		return ((bytes[offset]&0xff) << 8) | (bytes[offset+1]&0xff);
+	}
+
+	static void putShort(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte) (value>>8);
+		bytes[offset+1] = (byte) value;
+	}
+
+	static int getInt(byte[] bytes, int offset) {
+		return ((bytes[offset]&0xff) << 24) | ((bytes[offset+1]&0xff) << 16) | ((bytes[offset+2]&0xff) << 8) | (bytes[offset+3]&0xff);
+	}
+
+	static void putInt(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte) (value>>24);
+		bytes[offset+1] = (byte) (value>>16);
+		bytes[offset+2] = (byte) (value>>8);
+		bytes[offset+3] = (byte) value;
+	}
+
+	static long getLong(byte[] bytes, int offset) {
+		return ((long) getInt(bytes, offset) << 32) | (getInt(bytes, offset+4) & 0xffffffffL);
+	}
+
+	static void putLong(byte[] bytes, int offset, long value) {
+		putInt(bytes, offset, (int) (value>>32));
+		putInt(bytes, offset+4, (int) value);
+	}
+}
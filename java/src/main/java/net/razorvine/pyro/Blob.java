@@ -0,0 +1,107 @@
+package net.razorvine.pyro;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Binary data that is sent as a message annotation chunk, see PyroProxy.callWithBlobs.
+ * Annotations are raw bytes on the wire, so unlike byte[] call arguments a blob isn't base64 encoded and parsed by serpent.
+ * The daemon sees it in the annotations of the call (Pyro5.api.current_context.annotations).
+ * The data is written straight from the buffer or file when the message is sent, it is never copied into the message.
+ * A blob can be sent more than once: the buffer position and the file position aren't changed.
+ */
+public abstract class Blob {
+
+	/**
+	 * Number of bytes, at most 4 Gb (together with the other annotations of the message).
+	 */
+	public abstract long length();
+
+	/**
+	 * Write the data to the stream.
+	 */
+	public abstract void writeTo(OutputStream out) throws IOException;
+
+	/**
+	 * The remaining bytes of the buffer.
+	 */
+	public static Blob of(ByteBuffer buffer) {
+		final ByteBuffer data = buffer.slice();
+		return new Blob() {
+			public long length() {
+				return data.remaining();
+			}
+
+			public void writeTo(OutputStream out) throws IOException {
+				if(data.hasArray()) {
+					out.write(data.array(), data.arrayOffset()+data.position(), data.remaining());
+					return;
+				}
+				ByteBuffer source = data.duplicate();
+				WritableByteChannel channel = Channels.newChannel(out);
+				while(source.hasRemaining())
+					channel.write(source);
+			}
+		};
+	}
+
+	/**
+	 * The contents of the file. The file is read when the message is sent, its size must not change before that.
+	 */
+	public static Blob of(final Path file) throws IOException {
+		final long size = Files.size(file);
+		return new Blob() {
+			public long length() {
+				return size;
+			}
+
+			public void writeTo(OutputStream out) throws IOException {
+				FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+				try {
+					transfer(channel, 0, size, out);
+				} finally {
+					channel.close();
+				}
+			}
+		};
+	}
+
+	/**
+	 * A region of an open file. The channel stays open, and its position isn't used or changed.
+	 */
+	public static Blob of(final FileChannel channel, final long position, final long count) {
+		if(position<0 || count<0)
+			throw new IllegalArgumentException("negative position or count");
+		return new Blob() {
+			public long length() {
+				return count;
+			}
+
+			public void writeTo(OutputStream out) throws IOException {
+				transfer(channel, position, count, out);
+			}
+		};
+	}
+
+	/**
+	 * FileChannel.transferTo, so the file is never read into memory as a whole.
+	 * The proxy's connection is a stream (it may be TLS), so the target is a channel over that stream, which is written in chunks.
+	 */
+	private static void transfer(FileChannel channel, long position, long count, OutputStream out) throws IOException {
+		WritableByteChannel target = Channels.newChannel(out);
+		long end = position+count;
+		while(position<end) {
+			long sent = channel.transferTo(position, end-position, target);
+			if(sent<=0)
+				throw new IOException("file is shorter than the blob");
+			position += sent;
+		}
+	}
+}
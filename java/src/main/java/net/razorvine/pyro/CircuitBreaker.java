@@ -0,0 +1,85 @@
+package net.razorvine.pyro;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Circuit breaker for a single daemon endpoint (host and port), shared by all proxies that connect to it.
+ * After Config.CIRCUIT_BREAKER_THRESHOLD consecutive communication failures the circuit opens, and calls
+ * fail immediately instead of trying to connect. After Config.CIRCUIT_BREAKER_OPEN_MILLIS a single trial
+ * call is let through; if that succeeds the circuit closes again, otherwise it stays open for another period.
+ * The circuit breakers are disabled if the threshold is 0 (the default).
+ */
+public class CircuitBreaker {
+
+	public enum State { CLOSED, OPEN, HALF_OPEN }
+
+	public final String endpoint;
+	private State state = State.CLOSED;
+	private int failures;
+	private long openedAt;
+	private boolean trialInProgress;
+
+	private static final ConcurrentHashMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<String, CircuitBreaker>();
+
+	CircuitBreaker(String endpoint) {
+		this.endpoint = endpoint;
+	}
+
+	/**
+	 * Returns the circuit breaker for the given endpoint, or null if circuit breakers are disabled.
+	 */
+	public static CircuitBreaker forEndpoint(String host, int port) {
+		if(Config.CIRCUIT_BREAKER_THRESHOLD<=0)
+			return null;
+		String endpoint = host + ":" + port;
+		CircuitBreaker breaker = breakers.get(endpoint);
+		if(breaker==null) {
+			CircuitBreaker existing = breakers.putIfAbsent(endpoint, breaker = new CircuitBreaker(endpoint));
+			if(existing!=null)
+				breaker = existing;
+		}
+		return breaker;
+	}
+
+	/**
+	 * Checks if a call is allowed to go through, throws a PyroException if the circuit is open.
+	 */
+	public synchronized void allowCall() {
+		switch(state) {
+			case CLOSED:
+				return;
+			case OPEN:
+				if(System.currentTimeMillis() - openedAt < Config.CIRCUIT_BREAKER_OPEN_MILLIS)
+					break;
+				state = State.HALF_OPEN;
+				trialInProgress = true;
+				return;
+			case HALF_OPEN:
+				if(!trialInProgress) {
+					trialInProgress = true;
+					return;
+				}
+				break;
+		}
+		throw new PyroException("circuit breaker is open for " + endpoint);
+	}
+
+	public synchronized void success() {
+		state = State.CLOSED;
+		failures = 0;
+		trialInProgress = false;
+	}
+
+	public synchronized void failure() {
+		failures++;
+		trialInProgress = false;
+		if(state==State.HALF_OPEN || failures>=Config.CIRCUIT_BREAKER_THRESHOLD) {
+			state = State.OPEN;
+			openedAt = System.currentTimeMillis();
+		}
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+}
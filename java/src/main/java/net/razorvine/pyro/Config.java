@@ -12,9 +12,23 @@ public final class Config implements Serializable {
 	private static final long serialVersionUID = 2497120843470270662L;
 
 	public static String MSG_TRACE_DIR = null;
+	public static long MSG_TRACE_QUEUE_SIZE = 64L*1024*1024;	// bytes of traced messages waiting for the trace writer, more are dropped
+	public static int MSG_TRACE_MAX_DATA_SIZE = 16*1024*1024;	// larger message data is cut off in the trace
+	public static long MSG_TRACE_FILE_SIZE = 256L*1024*1024;	// size at which the next trace file is started
 	public static int NS_PORT = 9090;
 	public static int NS_BCPORT = 9091;
+	public static long MAX_MESSAGE_SIZE = 0;	// annotations plus data, larger messages are refused. 0 = no limit: the protocol allows up to 4 Gb data.
+	public static int SEGMENTED_DATA_SIZE = Integer.MAX_VALUE-8;	// message data larger than this is received as a SegmentedBuffer instead of one byte[]; keep MAX_MESSAGE_SIZE above it
+	public static long SPILL_THRESHOLD = 0;		// message data larger than this is received into a memory mapped temp file instead of on the heap, 0 = never. Not for compressed data or serpent, see PyroSerializer.deserializesSegments
+	public static String SPILL_DIR = null;		// directory for those temp files, null = the default temp directory
 	public static boolean SERPENT_INDENT = false;
+	public static boolean SERPENT_DECODE_BYTES = false;	// return serpent's {'data':..,'encoding':'base64'} dicts (python bytes, bytearray, memoryview) as byte[]
+	public static boolean INTERN_URIS = false;		// share canonical PyroURI instances for the uris received from the name server, see PyroURI.intern
+	public static boolean METADATA_CACHE = true;		// share the metadata of remote objects between proxies, see MetadataCache
+	public static int METADATA_CACHE_SIZE = 1000;		// most recently used objects kept in a metadata cache, read when the default cache is created
+	public static int CIRCUIT_BREAKER_THRESHOLD = 0;	// consecutive failures before a daemon endpoint is cut off, 0 = disabled
+	public static long CIRCUIT_BREAKER_OPEN_MILLIS = 5000;
+	public static boolean VIRTUAL_THREADS = false;		// run background tasks on virtual threads (Java 21+), see Threads
 
 	public final static int PROTOCOL_VERSION = 502;	  // Pyro5
 	public final static String PYROLITE_VERSION = "5.0";
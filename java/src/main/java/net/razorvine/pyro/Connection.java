@@ -0,0 +1,272 @@
+package net.razorvine.pyro;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * The connection of a proxy to its daemon: a TCP socket (with TLS for PYROSSL uris),
+ * or a Unix domain socket when the uri has a socket name.
+ * The proxy only sees the streams and the timeout.
+ */
+abstract class Connection implements Closeable {
+
+	InputStream in;
+	OutputStream out;
+	private long deadline;		// System.nanoTime() by which the current call must be done, 0 = none. Checked before every read.
+
+	/**
+	 * Connect to the daemon. The timeout (in milliseconds, 0 = none) applies to connecting and to every read and write after that.
+	 */
+	static Connection open(String hostname, int port, String sockname, boolean ssl, int timeout) throws IOException {
+		if(sockname!=null)
+			return new Unix(sockname, timeout);
+		Socket sock = Tcp.connect(hostname, port, timeout);
+		if(ssl)
+			sock = SslSockets.wrap(sock, hostname, port);
+		return new Tcp(sock, timeout);
+	}
+
+	abstract void setTimeout(int timeout) throws IOException;
+
+	/**
+	 * Set the deadline (a System.nanoTime value, 0 = none) for the reads of the current call.
+	 * A socket timeout only limits a single read, a response that arrives in many reads could take much longer.
+	 * So the time that is left is checked before every read, and a read doesn't wait longer than that.
+	 */
+	void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+
+	/**
+	 * The read timeout in milliseconds: the given socket timeout (0 = none), or less if the deadline is nearer.
+	 * Throws a SocketTimeoutException if the deadline has passed.
+	 */
+	int readTimeout(int timeout) throws SocketTimeoutException {
+		if(deadline==0)
+			return timeout;
+		long remaining = (deadline-System.nanoTime())/1000000L;
+		if(remaining<=0)
+			throw new SocketTimeoutException("call deadline exceeded");
+		return timeout<=0 || remaining<timeout ? (int) Math.min(remaining, Integer.MAX_VALUE) : timeout;
+	}
+
+	/**
+	 * Write the remaining bytes of all buffers. A TCP socket only has a stream (it may be TLS), so they are written to it one by one.
+	 */
+	void write(ByteBuffer[] buffers) throws IOException {
+		byte[] chunk = null;
+		for(ByteBuffer buffer: buffers) {
+			if(buffer.hasArray()) {
+				out.write(buffer.array(), buffer.arrayOffset()+buffer.position(), buffer.remaining());
+				continue;
+			}
+			if(chunk==null)
+				chunk = new byte[65536];
+			while(buffer.hasRemaining()) {
+				int size = Math.min(chunk.length, buffer.remaining());
+				buffer.get(chunk, 0, size);
+				out.write(chunk, 0, size);
+			}
+		}
+	}
+
+	public abstract void close() throws IOException;
+
+
+	static final class Tcp extends Connection {
+		private final Socket sock;
+		private int timeout;		// the configured timeout
+		private int soTimeout;		// the current SO_TIMEOUT, can be less because of the deadline
+
+		Tcp(Socket sock, int timeout) throws IOException {
+			this.sock = sock;
+			this.timeout = timeout;
+			this.soTimeout = timeout;
+			try {
+				final InputStream stream = sock.getInputStream();
+				in = new InputStream() {
+					public int read() throws IOException {
+						applyTimeout();
+						return stream.read();
+					}
+
+					public int read(byte[] b, int off, int len) throws IOException {
+						applyTimeout();
+						return stream.read(b, off, len);
+					}
+
+					public int available() throws IOException {
+						return stream.available();
+					}
+
+					public void close() throws IOException {
+						stream.close();
+					}
+				};
+				out = sock.getOutputStream();
+			} catch (IOException x) {
+				sock.close();
+				throw x;
+			}
+		}
+
+		static Socket connect(String hostname, int port, int timeout) throws IOException {
+			Socket sock = new Socket();
+			try {
+				sock.connect(new InetSocketAddress(hostname, port), timeout);
+				sock.setSoTimeout(timeout);
+				sock.setKeepAlive(true);
+				sock.setTcpNoDelay(true);
+				return sock;
+			} catch (IOException x) {
+				sock.close();
+				throw x;
+			}
+		}
+
+		void setTimeout(int timeout) {
+			this.timeout = timeout;
+		}
+
+		private void applyTimeout() throws IOException {
+			int t = readTimeout(timeout);
+			if(t!=soTimeout) {
+				sock.setSoTimeout(t);
+				soTimeout = t;
+			}
+		}
+
+		public void close() throws IOException {
+			try {
+				in.close();
+				out.close();
+			} finally {
+				sock.close();
+			}
+		}
+	}
+
+
+	/**
+	 * Unix domain socket channels have no SO_TIMEOUT, so the channel is non-blocking
+	 * and the streams wait for it with their own selector.
+	 */
+	static final class Unix extends Connection {
+		private final SocketChannel channel;
+		private final Selector selector;
+		private final SelectionKey key;
+		private int timeout;
+
+		Unix(String sockname, int timeout) throws IOException {
+			this.timeout = timeout;
+			channel = UnixSockets.openChannel();
+			Selector sel = null;
+			try {
+				channel.connect(UnixSockets.address(sockname));		// a local connect doesn't wait for anything
+				channel.configureBlocking(false);
+				sel = Selector.open();
+				key = channel.register(sel, 0);
+			} catch (IOException x) {
+				channel.close();
+				if(sel!=null)
+					sel.close();
+				throw x;
+			}
+			selector = sel;
+			in = new InputStream() {
+				public int read() throws IOException {
+					byte[] b = new byte[1];
+					return read(b, 0, 1)<0 ? -1 : b[0] & 0xff;
+				}
+
+				public int read(byte[] b, int off, int len) throws IOException {
+					if(len==0)
+						return 0;
+					ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+					while(true) {
+						int count = channel.read(buffer);
+						if(count!=0)
+							return count;
+						await(SelectionKey.OP_READ);
+					}
+				}
+			};
+			out = new OutputStream() {
+				public void write(int b) throws IOException {
+					write(new byte[]{(byte)b}, 0, 1);
+				}
+
+				public void write(byte[] b, int off, int len) throws IOException {
+					ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+					while(buffer.hasRemaining()) {
+						if(channel.write(buffer)==0)
+							await(SelectionKey.OP_WRITE);
+					}
+				}
+			};
+		}
+
+		private void await(int op) throws IOException {
+			key.interestOps(op);
+			try {
+				int t = op==SelectionKey.OP_READ ? readTimeout(timeout) : timeout;
+				long until = t>0 ? System.nanoTime()+t*1000000L : 0;
+				while(true) {
+					long wait = 0;
+					if(until!=0) {
+						long remaining = until-System.nanoTime();
+						if(remaining<=0)
+							throw new SocketTimeoutException(op==SelectionKey.OP_READ ? "Read timed out" : "Write timed out");
+						wait = Math.max(1, remaining/1000000L);
+					}
+					if(selector.select(wait)>0)
+						break;
+					if(!channel.isOpen())
+						throw new IOException("connection closed");
+				}
+				selector.selectedKeys().clear();
+			} catch (ClosedSelectorException x) {
+				throw new IOException("connection closed");
+			} finally {
+				if(key.isValid())
+					key.interestOps(0);
+			}
+		}
+
+		void setTimeout(int timeout) {
+			this.timeout = timeout;
+		}
+
+		/**
+		 * A gathering write on the channel.
+		 */
+		@Override
+		void write(ByteBuffer[] buffers) throws IOException {
+			int first = 0;
+			while(first<buffers.length) {
+				if(channel.write(buffers, first, buffers.length-first)==0 && buffers[first].hasRemaining())
+					await(SelectionKey.OP_WRITE);
+				while(first<buffers.length && !buffers[first].hasRemaining())
+					first++;
+			}
+		}
+
+		public void close() throws IOException {
+			try {
+				channel.close();
+			} finally {
+				selector.close();
+			}
+		}
+	}
+}
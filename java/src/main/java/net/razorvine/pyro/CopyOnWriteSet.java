@@ -0,0 +1,81 @@
+package net.razorvine.pyro;
+
+import java.io.Serializable;
+import java.util.AbstractSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * A set that reads from a shared (immutable) set, and only copies it on the first modification.
+ * Proxies get the cached metadata sets this way: they can still change their own sets, without a copy on every connect.
+ */
+final class CopyOnWriteSet<E> extends AbstractSet<E> implements Serializable {
+
+	private static final long serialVersionUID = -3318418702216227520L;
+
+	private Set<E> set;
+	private boolean copied;
+
+	CopyOnWriteSet(Set<E> shared) {
+		this.set = shared;
+	}
+
+	private Set<E> own() {
+		if(!copied) {
+			set = new HashSet<E>(set);
+			copied = true;
+		}
+		return set;
+	}
+
+	@Override
+	public int size() {
+		return set.size();
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return set.contains(o);
+	}
+
+	@Override
+	public boolean add(E e) {
+		return !set.contains(e) && own().add(e);
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		return set.contains(o) && own().remove(o);
+	}
+
+	@Override
+	public void clear() {
+		set = new HashSet<E>();
+		copied = true;
+	}
+
+	@Override
+	public Iterator<E> iterator() {
+		if(copied)
+			return set.iterator();
+		final Iterator<E> shared = set.iterator();
+		return new Iterator<E>() {
+			private E last;
+
+			public boolean hasNext() {
+				return shared.hasNext();
+			}
+
+			public E next() {
+				last = shared.next();
+				return last;
+			}
+
+			public void remove() {
+				// the shared set is still iterated, the element is removed from the copy
+				own().remove(last);
+			}
+		};
+	}
+}
@@ -0,0 +1,332 @@
+package net.razorvine.pyro;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Client side load balancer over a set of identical remote Pyro objects.
+ * Calls are routed to one of the endpoints according to the selected strategy.
+ * Every endpoint has its own pool of connected proxies, so calls can run concurrently.
+ * An endpoint on which a communication error occurs is ejected for a while.
+ * The call methods have the same signature as those of PyroProxy.
+ */
+public class LoadBalancingProxy implements Closeable {
+
+	public enum Strategy {
+		/** cycle through the endpoints in order */
+		ROUND_ROBIN,
+		/** pick the endpoint with the fewest calls in progress */
+		LEAST_OUTSTANDING,
+		/** pick the endpoint with the lowest (exponentially weighted moving average) latency */
+		LATENCY_EWMA
+	}
+
+	public final Strategy strategy;
+	public int maxIdlePerEndpoint = 8;		// max number of idle connected proxies kept per endpoint
+	public long ejectMillis = 10000;		// how long a failed endpoint is excluded from routing
+	public double ewmaWeight = 0.2;			// weight of the newest latency sample in the moving average
+	public int maxConnectionsPerEndpoint = 0;	// max number of concurrent calls (connections) per endpoint, others wait their turn. 0 = no limit. Set before the first call.
+
+	private volatile List<Endpoint> endpoints = Collections.emptyList();
+	private final AtomicInteger roundRobin = new AtomicInteger();
+
+	/**
+	 * A remote Pyro object that calls can be routed to, with its pool of idle connections.
+	 */
+	public static class Endpoint {
+		public final PyroURI uri;
+		final ConcurrentLinkedDeque<PyroProxy> idle = new ConcurrentLinkedDeque<PyroProxy>();
+		final AtomicInteger idleCount = new AtomicInteger();
+		final AtomicInteger outstanding = new AtomicInteger();
+		volatile double latencyEwma;	// nanoseconds
+		volatile long ejectedUntil;		// System.nanoTime() value
+		private final AtomicReference<Semaphore> permits = new AtomicReference<Semaphore>();
+
+		Endpoint(PyroURI uri) {
+			this.uri = uri;
+		}
+
+		public int outstanding() {
+			return outstanding.get();
+		}
+
+		public double latencyMillis() {
+			return latencyEwma/1e6;
+		}
+
+		public boolean isEjected() {
+			return ejectedUntil!=0 && ejectedUntil-System.nanoTime() > 0;
+		}
+
+		Semaphore permits(int max) {
+			if(max<=0)
+				return null;
+			Semaphore s = permits.get();
+			if(s==null) {
+				permits.compareAndSet(null, new Semaphore(max, true));
+				s = permits.get();
+			}
+			return s;
+		}
+
+		void closeIdle() {
+			PyroProxy p;
+			while((p=idle.pollFirst())!=null) {
+				idleCount.decrementAndGet();
+				p.close();
+			}
+		}
+	}
+
+	public LoadBalancingProxy(Collection<PyroURI> uris, Strategy strategy) {
+		this.strategy = strategy;
+		setEndpoints(uris);
+	}
+
+	/**
+	 * Create a load balancer over all objects registered in the name server with the given name prefix.
+	 */
+	public static LoadBalancingProxy forPrefix(NameServerProxy ns, String prefix, Strategy strategy) throws IOException {
+		return new LoadBalancingProxy(toUris(ns.listUris(prefix).values()), strategy);
+	}
+
+	/**
+	 * Create a load balancer over all objects registered in the name server with the given metadata.
+	 * See NameServerProxy.yplookup for the meaning of the meta_all and meta_any arguments.
+	 */
+	public static LoadBalancingProxy forMetadata(NameServerProxy ns, String[] meta_all, String[] meta_any, Strategy strategy) throws IOException {
+		List<String> uris = new ArrayList<String>();
+		for(Object[] registration: ns.yplookup(meta_all, meta_any).values())
+			uris.add((String) registration[0]);
+		return new LoadBalancingProxy(toUris(uris), strategy);
+	}
+
+	private static List<PyroURI> toUris(Collection<String> uris) {
+		List<PyroURI> result = new ArrayList<PyroURI>(uris.size());
+		for(String uri: uris)
+			result.add(new PyroURI(uri));
+		return result;
+	}
+
+	/**
+	 * Replace the set of endpoints. Endpoints that remain keep their connections and statistics,
+	 * the idle connections of the endpoints that are no longer present are closed.
+	 */
+	public synchronized void setEndpoints(Collection<PyroURI> uris) {
+		List<Endpoint> old = endpoints;
+		List<Endpoint> updated = new ArrayList<Endpoint>(uris.size());
+		for(PyroURI uri: uris) {
+			Endpoint existing = null;
+			for(Endpoint e: old) {
+				if(e.uri.equals(uri)) {
+					existing = e;
+					break;
+				}
+			}
+			updated.add(existing!=null ? existing : new Endpoint(uri));
+		}
+		endpoints = Collections.unmodifiableList(updated);
+		for(Endpoint e: old) {
+			if(!updated.contains(e))
+				e.closeIdle();
+		}
+	}
+
+	/**
+	 * Re-read the endpoints from the name server registrations with the given prefix.
+	 */
+	public void refresh(NameServerProxy ns, String prefix) throws IOException {
+		setEndpoints(toUris(ns.listUris(prefix).values()));
+	}
+
+	public List<Endpoint> getEndpoints() {
+		return endpoints;
+	}
+
+	/**
+	 * Call a method on one of the remote objects.
+	 * @see PyroProxy#call(String, Object...)
+	 */
+	public Object call(String method, Object... arguments) throws PyroException, IOException {
+		return invoke(method, false, arguments);
+	}
+
+	/**
+	 * Call a method on one of the remote objects, using Oneway call semantics (return immediately).
+	 * @see PyroProxy#call_oneway(String, Object...)
+	 */
+	public void call_oneway(String method, Object... arguments) throws PyroException, IOException {
+		invoke(method, true, arguments);
+	}
+
+	private Object invoke(String method, boolean oneway, Object... arguments) throws PyroException, IOException {
+		Endpoint endpoint = select();
+		Semaphore permits = endpoint.permits(maxConnectionsPerEndpoint);
+		if(permits!=null) {
+			// a Semaphore parks a waiting virtual thread without pinning its carrier thread
+			try {
+				permits.acquire();
+			} catch (InterruptedException x) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("interrupted while waiting for a connection");
+			}
+		}
+		try {
+			return invoke(endpoint, method, oneway, arguments);
+		} finally {
+			if(permits!=null)
+				permits.release();
+		}
+	}
+
+	private Object invoke(Endpoint endpoint, String method, boolean oneway, Object... arguments) throws PyroException, IOException {
+		endpoint.outstanding.incrementAndGet();
+		PyroProxy proxy = null;
+		boolean reusable = false;	// the connection is known to be in a good state
+		long start = System.nanoTime();
+		try {
+			proxy = endpoint.idle.pollFirst();
+			if(proxy!=null)
+				endpoint.idleCount.decrementAndGet();
+			else
+				proxy = createProxy(endpoint.uri);
+			Object result;
+			if(oneway) {
+				proxy.call_oneway(method, arguments);
+				result = null;
+			} else {
+				result = proxy.call(method, arguments);
+			}
+			recordLatency(endpoint, System.nanoTime()-start);
+			if(result instanceof PyroProxy.StreamResultIterable) {
+				// the stream is bound to this connection, so it can't go back into the pool
+				proxy = null;
+			}
+			reusable = true;
+			return result;
+		} catch (IOException x) {
+			eject(endpoint);
+			throw x;
+		} catch (PyroException x) {
+			// a remote exception leaves the connection intact, anything else (like "result msg out of sync") may not
+			reusable = x.pythonExceptionType!=null;
+			throw x;
+		} finally {
+			endpoint.outstanding.decrementAndGet();
+			if(proxy!=null) {
+				if(reusable)
+					release(endpoint, proxy);
+				else
+					proxy.close();
+			}
+		}
+	}
+
+	/**
+	 * Create a new proxy for the given endpoint. Override this if you need to configure the proxies,
+	 * for instance to set a custom handshake or correlation id.
+	 */
+	protected PyroProxy createProxy(PyroURI uri) throws IOException {
+		return new PyroProxy(uri);
+	}
+
+	private void release(Endpoint endpoint, PyroProxy proxy) {
+		if(endpoint.idleCount.incrementAndGet() <= Math.max(maxIdlePerEndpoint, maxConnectionsPerEndpoint) && endpoints.contains(endpoint)) {
+			endpoint.idle.offerFirst(proxy);
+		} else {
+			endpoint.idleCount.decrementAndGet();
+			proxy.close();
+		}
+	}
+
+	private void recordLatency(Endpoint endpoint, long nanos) {
+		double avg = endpoint.latencyEwma;
+		endpoint.latencyEwma = avg==0.0 ? nanos : avg + ewmaWeight*(nanos-avg);
+	}
+
+	private void eject(Endpoint endpoint) {
+		endpoint.ejectedUntil = System.nanoTime() + ejectMillis*1000000L;
+		endpoint.closeIdle();
+	}
+
+	/**
+	 * Select the endpoint for the next call. Ejected endpoints are skipped,
+	 * unless every endpoint is ejected, in which case all of them are considered again.
+	 */
+	protected Endpoint select() {
+		List<Endpoint> all = endpoints;
+		if(all.isEmpty())
+			throw new PyroException("no endpoints available");
+		List<Endpoint> candidates = new ArrayList<Endpoint>(all.size());
+		for(Endpoint e: all) {
+			if(!e.isEjected())
+				candidates.add(e);
+		}
+		if(candidates.isEmpty())
+			candidates = all;
+
+		switch(strategy) {
+			case LEAST_OUTSTANDING: {
+				int start = (roundRobin.getAndIncrement() & Integer.MAX_VALUE) % candidates.size();
+				Endpoint best = null;
+				for(int i=0; i<candidates.size(); ++i) {
+					Endpoint e = candidates.get((start+i) % candidates.size());
+					if(best==null || e.outstanding.get() < best.outstanding.get())
+						best = e;
+				}
+				return best;
+			}
+			case LATENCY_EWMA: {
+				Endpoint best = null;
+				for(Endpoint e: candidates) {
+					if(e.latencyEwma==0.0)
+						return e;	// no samples yet, try it out
+					if(best==null || e.latencyEwma*(e.outstanding.get()+1) < best.latencyEwma*(best.outstanding.get()+1))
+						best = e;
+				}
+				return best;
+			}
+			case ROUND_ROBIN:
+			default:
+				return candidates.get((roundRobin.getAndIncrement() & Integer.MAX_VALUE) % candidates.size());
+		}
+	}
+
+	/**
+	 * Close all pooled connections.
+	 */
+	public void close() {
+		for(Endpoint e: endpoints)
+			e.closeIdle();
+	}
+
+	@Override
+	public String toString() {
+		return "<LoadBalancingProxy " + strategy + " endpoints=" + endpoints.size() + ">";
+	}
+
+	/**
+	 * Returns the uri (as string) to number of outstanding calls mapping, for diagnostics.
+	 * The strings are the keys because the uri objects can be modified.
+	 */
+	public Map<String, Integer> outstandingCalls() {
+		Map<String, Integer> result = new LinkedHashMap<String, Integer>();
+		for(Endpoint e: endpoints) {
+			String uri = e.uri.toString();
+			Integer count = result.get(uri);
+			result.put(uri, e.outstanding.get() + (count==null ? 0 : count));
+		}
+		return result;
+	}
+}
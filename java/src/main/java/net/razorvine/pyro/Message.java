@@ -1,15 +1,23 @@
 package net.razorvine.pyro;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Map.Entry;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.UUID;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import net.razorvine.pyro.metrics.Metrics;
+import net.razorvine.pyro.serializer.PyroSerializer;
+import net.razorvine.pyro.trace.MessageTracer;
 
 
 /**
@@ -41,12 +49,16 @@ public class Message
 	public byte type;
 	public int flags;
 	public byte[] data;
-	public int data_size;
-	public int annotations_size;
+	public SegmentedBuffer data_segments;	// the data when it is too large for a byte array, data is null then
+	public int data_size;			// unsigned, see get_data_size()
+	public int annotations_size;	// unsigned, see get_annotations_size()
 	public UUID correlation_id;
 	public byte serializer_id;
 	public int seq;
 	public SortedMap<String, byte[]> annotations;
+	public SortedMap<String, Blob> blobs;		// annotation chunks that are written from a buffer or file when the message is sent, see add_blob
+	private byte[] received_annotations;	// the annotation chunks as received, for get_annotation_slices
+	private SortedMap<String, ByteBuffer> annotation_slices;
 
 	/**
 	 * construct a header-type message, without data and annotations payload.
@@ -78,10 +90,120 @@ public class Message
 	}
 
 	/**
-	 * creates a byte stream containing the header followed by annotations (if any) followed by the data
+	 * construct a full wire message with segmented data, of up to 4 Gb.
+	 */
+	public Message(byte msgType, SegmentedBuffer data, byte serializer_id, int flags, int seq, SortedMap<String, byte[]> annotations, UUID correlation_id)
+	{
+		this(msgType, new byte[0], serializer_id, flags, seq, annotations, correlation_id);
+		if(data.length() > 0xffffffffL)
+			throw new IllegalArgumentException("message data is larger than 4 Gb");
+		this.data = null;
+		this.data_segments = data;
+		this.data_size = (int) data.length();
+	}
+
+	/**
+	 * Add an annotation chunk whose bytes are written straight from the blob by send().
+	 */
+	public void add_blob(String key, Blob blob)
+	{
+		if(key.length()!=4)
+			throw new IllegalArgumentException("annotation key must be length 4");
+		if(get_annotations_size()+8+blob.length() > 0xffffffffL)
+			throw new IllegalArgumentException("annotations are larger than 4 Gb");
+		if(blobs==null)
+			blobs = new TreeMap<String, Blob>();
+		blobs.put(key, blob);
+		annotations_size += 8+(int)blob.length();
+	}
+
+	/**
+	 * The size of the data. The header field is an unsigned 32 bit value, so this can be over 2 Gb.
+	 */
+	public long get_data_size()
+	{
+		return data_size & 0xffffffffL;
+	}
+
+	/**
+	 * The total size of the annotation chunks, an unsigned 32 bit value like the data size.
+	 */
+	public long get_annotations_size()
+	{
+		return annotations_size & 0xffffffffL;
+	}
+
+	/**
+	 * Decompress the data of this message (in place), the daemon compressed it when the FLAGS_COMPRESSED flag is set.
+	 */
+	public void decompress_data()
+	{
+		if((flags & FLAGS_COMPRESSED) == 0) {
+			throw new IllegalArgumentException("message data is not compressed");
+		}
+		Inflater decompresser = new Inflater();
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(data!=null ? data.length : 65536);
+		byte[] buffer = new byte[8192];
+		try {
+			if(data!=null) {
+				decompresser.setInput(data);
+				inflate(decompresser, buffer, bos);
+			} else {
+				// straight from the segments, a chunk at a time
+				byte[] chunk = new byte[65536];
+				for(int i=0; i<data_segments.segmentCount() && !decompresser.finished(); ++i) {
+					ByteBuffer segment = data_segments.segment(i);
+					while(segment.hasRemaining() && !decompresser.finished()) {
+						int size = Math.min(chunk.length, segment.remaining());
+						segment.get(chunk, 0, size);
+						decompresser.setInput(chunk, 0, size);
+						inflate(decompresser, buffer, bos);
+					}
+				}
+			}
+			if(!decompresser.finished())
+				throw new PyroException("invalid compressed data: truncated");
+			data = bos.toByteArray();
+			data_segments = null;
+			flags &= ~FLAGS_COMPRESSED;
+		} catch (DataFormatException e) {
+			throw new PyroException("invalid compressed data: ", e);
+		} finally {
+			decompresser.end();
+		}
+	}
+
+	/**
+	 * Inflate the current input of the inflater into the stream, until it needs more input or is finished.
+	 */
+	private static void inflate(Inflater decompresser, byte[] buffer, ByteArrayOutputStream out) throws DataFormatException
+	{
+		while(!decompresser.finished() && !decompresser.needsInput()) {
+			int size = decompresser.inflate(buffer);
+			if(size==0 && decompresser.needsDictionary())
+				throw new DataFormatException("preset dictionary required");
+			if(out.size() > SegmentedBuffer.MAX_ARRAY_SIZE-size)
+				throw new PyroException("decompressed data larger than 2 Gb is not supported");
+			out.write(buffer, 0, size);
+		}
+	}
+
+	/**
+	 * creates a byte stream containing the header followed by annotations (if any) followed by the data.
+	 * Segmented data must fit in a byte array for this, use send() for larger messages.
 	 */
 	public byte[] to_bytes()
 	{
+		if(blobs!=null) {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			try {
+				send(bos);
+			} catch (IOException x) {
+				throw new PyroException("can't read blob", x);
+			}
+			return bos.toByteArray();
+		}
+		byte[] data = this.data!=null ? this.data : data_segments.toByteArray();
 		byte[] header_bytes = get_header_bytes();
 		byte[] annotations_bytes = get_annotations_bytes();
 		byte[] result = new byte[header_bytes.length + annotations_bytes.length + data.length];
@@ -124,40 +246,25 @@ After that, the actual payload data bytes follow.
 		header[2]=(byte)'R';
 		header[3]=(byte)'O';
 
-		header[4]=(byte) (Config.PROTOCOL_VERSION>>8);
-		header[5]=(byte) (Config.PROTOCOL_VERSION&0xff);
+		BigEndian.putShort(header, 4, Config.PROTOCOL_VERSION);
 
 		header[6]=type;
 		header[7]=serializer_id;
 
-		header[8]=(byte) (flags>>8);
-		header[9]=(byte) (flags&0xff);
-
-		header[10]=(byte)(seq>>8);
-		header[11]=(byte)(seq&0xff);
-
-		header[12]=(byte)((data_size>>24)&0xff);
-		header[13]=(byte)((data_size>>16)&0xff);
-		header[14]=(byte)((data_size>>8)&0xff);
-		header[15]=(byte)(data_size&0xff);
-
-		header[16]=(byte)((annotations_size>>24)&0xff);
-		header[17]=(byte)((annotations_size>>16)&0xff);
-		header[18]=(byte)((annotations_size>>8)&0xff);
-		header[19]=(byte)(annotations_size&0xff);
+		BigEndian.putShort(header, 8, flags);
+		BigEndian.putShort(header, 10, seq);
+		BigEndian.putInt(header, 12, data_size);
+		BigEndian.putInt(header, 16, annotations_size);
 
 		if(correlation_id!=null) {
-			ByteBuffer bb = ByteBuffer.wrap(new byte[16]);
-			bb.putLong(correlation_id.getMostSignificantBits());
-			bb.putLong(correlation_id.getLeastSignificantBits());
-			System.arraycopy(bb.array(), 0, header, 20, 16);
+			BigEndian.putLong(header, 20, correlation_id.getMostSignificantBits());
+			BigEndian.putLong(header, 28, correlation_id.getLeastSignificantBits());
 		}
 
 		// header[36] = 0;  // reserved
 		// header[37] = 0;	// reserved
 
-		header[38]=(byte)((MAGIC_NUMBER>>8)&0xff);
-		header[39]=(byte)(MAGIC_NUMBER&0xff);
+		BigEndian.putShort(header, 38, MAGIC_NUMBER);
 
 		return header;
 	}
@@ -173,12 +280,8 @@ After that, the actual payload data bytes follow.
 			if(key.length()!=4)
 				throw new IllegalArgumentException("annotation key must be length 4");
 			chunks.add(key.getBytes());
-			byte[] size_bytes = new byte[] {
-					(byte)((value.length>>24)&0xff),
-					(byte)((value.length>>16)&0xff),
-					(byte)((value.length>>8)&0xff),
-					(byte)(value.length&0xff)
-			};
+			byte[] size_bytes = new byte[4];
+			BigEndian.putInt(size_bytes, 0, value.length);
 			chunks.add(size_bytes);
 			chunks.add(value);
 			total_size += 4+4+value.length;
@@ -207,33 +310,19 @@ After that, the actual payload data bytes follow.
 		if(header[0]!='P'||header[1]!='Y'||header[2]!='R'||header[3]!='O')
 			throw new PyroException("invalid message");
 
-		int version = ((header[4]&0xff) << 8)|(header[5]&0xff);
+		int version = BigEndian.getUnsignedShort(header, 4);
 		if(version!=Config.PROTOCOL_VERSION)
 			throw new PyroException("invalid protocol version: "+version);
-		int magic = ((header[38]&0xff) << 8)|(header[39]&0xff);
+		int magic = BigEndian.getUnsignedShort(header, 38);
 		if(magic != MAGIC_NUMBER)
 			throw new PyroException("invalid header magic number");
 
 		byte msg_type = header[6];
 		byte serializer_id = header[7];
-		int flags = ((header[8]&0xff) << 8)|(header[9]&0xff);
-		int seq = ((header[10]&0xff) << 8)|(header[11]&0xff);
-
-		int data_size=header[12]&0xff;
-		data_size<<=8;
-		data_size|=header[13]&0xff;
-		data_size<<=8;
-		data_size|=header[14]&0xff;
-		data_size<<=8;
-		data_size|=header[15]&0xff;
-
-		int annotations_size=header[16]&0xff;
-		annotations_size<<=8;
-		annotations_size|=header[17]&0xff;
-		annotations_size<<=8;
-		annotations_size|=header[18]&0xff;
-		annotations_size<<=8;
-		annotations_size|=header[19]&0xff;
+		int flags = BigEndian.getUnsignedShort(header, 8);
+		int seq = BigEndian.getUnsignedShort(header, 10);
+		int data_size = BigEndian.getInt(header, 12);
+		int annotations_size = BigEndian.getInt(header, 16);
 
 		// for now, we're not reading the response correlation ID from [20]-[35].
 
@@ -244,6 +333,80 @@ After that, the actual payload data bytes follow.
 	}
 
 
+	/**
+	 * Parses the annotation chunks that follow the header: a 4 letter id, a 4 byte length, and the chunk bytes.
+	 * The chunk bytes are copied out of the given array.
+	 */
+	public static SortedMap<String, byte[]> parse_annotations(byte[] data, int offset, int size)
+	{
+		SortedMap<String, byte[]> annotations = new TreeMap<String, byte[]>();
+		int i = offset;
+		int end = offset+size;
+		while(i<end)
+		{
+			if(end-i < 8)
+				throw new PyroException("invalid annotation chunk");
+			String anno = new String(data, i, 4, StandardCharsets.US_ASCII);
+			int length = BigEndian.getInt(data, i+4);
+			if(length<0 || length > end-i-8)
+				throw new PyroException("invalid annotation chunk length");
+			byte[] annotations_bytes = new byte[length];
+			System.arraycopy(data, i+8, annotations_bytes, 0, length);
+			annotations.put(anno, annotations_bytes);
+			i += 8+length;
+		}
+		return annotations;
+	}
+
+
+	/**
+	 * Parses the annotation chunks like parse_annotations, but doesn't copy them:
+	 * the chunks are read-only slices of the given array.
+	 */
+	public static SortedMap<String, ByteBuffer> parse_annotation_slices(byte[] data, int offset, int size)
+	{
+		SortedMap<String, ByteBuffer> slices = new TreeMap<String, ByteBuffer>();
+		int i = offset;
+		int end = offset+size;
+		while(i<end)
+		{
+			if(end-i < 8)
+				throw new PyroException("invalid annotation chunk");
+			String anno = new String(data, i, 4, StandardCharsets.US_ASCII);
+			int length = BigEndian.getInt(data, i+4);
+			if(length<0 || length > end-i-8)
+				throw new PyroException("invalid annotation chunk length");
+			slices.put(anno, ByteBuffer.wrap(data, i+8, length).slice().asReadOnlyBuffer());
+			i += 8+length;
+		}
+		return slices;
+	}
+
+
+	/**
+	 * The annotation chunks as read-only buffers. For a received message these are slices of the received bytes,
+	 * so they don't copy the chunks again like the annotations map does. They are only built when this is called.
+	 */
+	public SortedMap<String, ByteBuffer> get_annotation_slices()
+	{
+		if(annotation_slices==null)
+		{
+			if(received_annotations!=null)
+				annotation_slices = parse_annotation_slices(received_annotations, 0, received_annotations.length);
+			else
+			{
+				annotation_slices = new TreeMap<String, ByteBuffer>();
+				if(annotations!=null)
+				{
+					for(Entry<String, byte[]> a: annotations.entrySet())
+						annotation_slices.put(a.getKey(), ByteBuffer.wrap(a.getValue()).asReadOnlyBuffer());
+				}
+			}
+		}
+		return annotation_slices;
+	}
+
+
 	// Note: this 'chunked' way of sending is not used because it triggers Nagle's algorithm
 	// on some systems (linux). This causes massive delays, unless you change the socket option
 	// TCP_NODELAY to disable the algorithm. What also works, is sending all the message bytes
@@ -257,6 +420,57 @@ After that, the actual payload data bytes follow.
 //    	IOUtil.send(connection, data);
 //	}
 
+	/**
+	 * Writes the message to the stream. A message with segmented data or blobs is written as its header and annotations,
+	 * followed by the blobs and the data, any other message with a single write (see above).
+	 */
+	public void send(OutputStream connection) throws IOException
+	{
+		if(data!=null && blobs==null) {
+			IOUtil.send(connection, to_bytes());
+			return;
+		}
+		IOUtil.send(connection, head());
+		if(blobs!=null) {
+			for(Entry<String, Blob> blob: blobs.entrySet()) {
+				byte[] chunk_header = new byte[8];
+				System.arraycopy(blob.getKey().getBytes(StandardCharsets.US_ASCII), 0, chunk_header, 0, 4);
+				BigEndian.putInt(chunk_header, 4, (int) blob.getValue().length());
+				IOUtil.send(connection, chunk_header);
+				blob.getValue().writeTo(connection);
+			}
+		}
+		if(data!=null)
+			IOUtil.send(connection, data);
+		else
+			data_segments.writeTo(connection);
+	}
+
+	/**
+	 * The message as buffers for a gathering write: the header and annotations, followed by the data or its segments.
+	 * Messages with blobs are written with send().
+	 */
+	ByteBuffer[] buffers()
+	{
+		if(blobs!=null)
+			throw new IllegalStateException("message has blobs");
+		ByteBuffer[] segments = data!=null ? new ByteBuffer[] {ByteBuffer.wrap(data)} : data_segments.buffers();
+		ByteBuffer[] buffers = new ByteBuffer[segments.length+1];
+		buffers[0] = ByteBuffer.wrap(head());
+		System.arraycopy(segments, 0, buffers, 1, segments.length);
+		return buffers;
+	}
+
+	private byte[] head()
+	{
+		byte[] header_bytes = get_header_bytes();
+		byte[] annotations_bytes = get_annotations_bytes();
+		byte[] head = new byte[header_bytes.length + annotations_bytes.length];
+		System.arraycopy(header_bytes, 0, head, 0, header_bytes.length);
+		System.arraycopy(annotations_bytes, 0, head, header_bytes.length, annotations_bytes.length);
+		return head;
+	}
+
 
 	/**
 	 * Receives a pyro message from a given connection.
@@ -265,6 +479,16 @@ After that, the actual payload data bytes follow.
 	 */
 	public static Message recv(InputStream connection, int[] requiredMsgTypes) throws IOException
 	{
+		return recv(connection, requiredMsgTypes, 0L);
+	}
+
+	/**
+	 * Receives a pyro message from a given connection, like recv(InputStream, int[]).
+	 * The connection id identifies the connection in the message trace.
+	 */
+	public static Message recv(InputStream connection, int[] requiredMsgTypes, long connectionId) throws IOException
+	{
+		long start = Metrics.isEnabled() ? System.nanoTime() : 0;
 		byte[] header_data = IOUtil.recv(connection, HEADER_SIZE);
 		Message msg = from_header(header_data);
 		if(requiredMsgTypes!=null)
@@ -282,56 +506,91 @@ After that, the actual payload data bytes follow.
 				throw new PyroException(String.format("invalid msg type %d received", msg.type));
 		}
 
+		long annotations_size = msg.get_annotations_size();
+		long data_size = msg.get_data_size();
+		if(Config.MAX_MESSAGE_SIZE>0 && annotations_size+data_size > Config.MAX_MESSAGE_SIZE)
+			throw new PyroException("max message size exceeded");
+		if(annotations_size > SegmentedBuffer.MAX_ARRAY_SIZE)
+			throw new PyroException("annotations too large");
+
 		byte[] annotations_data = null;
-		msg.annotations = new TreeMap<String, byte[]>();
-		if(msg.annotations_size>0)
+		if(annotations_size>0)
 		{
 			// read annotation chunks
 			annotations_data = IOUtil.recv(connection, msg.annotations_size);
-			int i=0;
-			while(i<msg.annotations_size)
-			{
-				String anno = new String(annotations_data, i, 4);
-				int length = (annotations_data[i+4]<<24) | (annotations_data[i+5]<<16) | (annotations_data[i+6]<<8) | annotations_data[i+7];
-				byte[] annotations_bytes = new byte[length];
-				System.arraycopy(annotations_data, i+8, annotations_bytes, 0, length);
-				msg.annotations.put(anno, annotations_bytes);
-				i += 8+length;
-			}
+			msg.annotations = parse_annotations(annotations_data, 0, msg.annotations_size);
+			msg.received_annotations = annotations_data;
 		}
+		else
+			msg.annotations = new TreeMap<String, byte[]>();
 
-		// read data
-		msg.data = IOUtil.recv(connection, msg.data_size);
+		// read data, into a temp file if it is very large, or in segments if it is too large for a single array
+		if(spill(msg, data_size))
+			msg.data_segments = SegmentedBuffer.readToFile(connection, data_size, Config.SPILL_DIR!=null ? new File(Config.SPILL_DIR) : null);
+		else if(data_size > Config.SEGMENTED_DATA_SIZE)
+			msg.data_segments = SegmentedBuffer.read(connection, data_size, SegmentedBuffer.DEFAULT_SEGMENT_SIZE);
+		else
+			msg.data = IOUtil.recv(connection, (int) data_size);
+
+		if(Metrics.isEnabled())
+			Metrics.messageReceived(msg.type, HEADER_SIZE+annotations_size+data_size, System.nanoTime()-start);
 
 		if(Config.MSG_TRACE_DIR!=null) {
-			TraceMessageRecv(msg.seq, header_data, annotations_data, msg.data);
+			TraceMessageRecv(connectionId, header_data, annotations_data, msg.data);
 		}
 
 		return msg;
 	}
 
+	/**
+	 * Receive the data into a temp file (Config.SPILL_THRESHOLD)? Not if it is compressed, nor if the serializer
+	 * would copy it back onto the heap to deserialize it: then the file would only add an extra copy.
+	 */
+	private static boolean spill(Message msg, long data_size)
+	{
+		if(Config.SPILL_THRESHOLD<=0 || data_size<=Config.SPILL_THRESHOLD)
+			return false;
+		if((msg.flags & FLAGS_COMPRESSED)!=0)
+			return false;		// inflated onto the heap anyway
+		try {
+			return PyroSerializer.getFor(msg.serializer_id).deserializesSegments();
+		} catch (IllegalArgumentException x) {
+			return true;		// not for a serializer of Pyrolite, the caller uses the data as it is
+		}
+	}
+
+	/**
+	 * Queue a sent message for the asynchronous message tracer (see MessageTracer).
+	 */
+	public static void TraceMessageSend(long connectionId, byte[] headerdata, byte[] annotations, byte[] data) {
+		MessageTracer tracer = MessageTracer.get();
+		if(tracer!=null)
+			tracer.trace(connectionId, MessageTracer.DIRECTION_SEND, headerdata, annotations, data);
+	}
+
+	/**
+	 * Queue a received message for the asynchronous message tracer (see MessageTracer).
+	 */
+	public static void TraceMessageRecv(long connectionId, byte[] headerdata, byte[] annotations, byte[] data) {
+		MessageTracer tracer = MessageTracer.get();
+		if(tracer!=null)
+			tracer.trace(connectionId, MessageTracer.DIRECTION_RECV, headerdata, annotations, data);
+	}
+
+	/**
+	 * @deprecated the sequence number is in the header already, use TraceMessageSend(long, byte[], byte[], byte[])
+	 */
+	@Deprecated
 	public static void TraceMessageSend(int sequenceNr, byte[] headerdata, byte[] annotations, byte[] data) throws IOException {
-		String filename=String.format("%s%s%05d-a-send-header.dat", Config.MSG_TRACE_DIR, File.separator, sequenceNr);
-		FileOutputStream fos=new FileOutputStream(filename);
-		fos.write(headerdata);
-		if(annotations!=null) fos.write(annotations);
-		fos.close();
-		filename=String.format("%s%s%05d-a-send-message.dat", Config.MSG_TRACE_DIR, File.separator, sequenceNr);
-		fos=new FileOutputStream(filename);
-		fos.write(data);
-		fos.close();
+		TraceMessageSend(0L, headerdata, annotations, data);
 	}
 
+	/**
+	 * @deprecated the sequence number is in the header already, use TraceMessageRecv(long, byte[], byte[], byte[])
+	 */
+	@Deprecated
 	public static void TraceMessageRecv(int sequenceNr, byte[] headerdata, byte[] annotations, byte[] data) throws IOException {
-		String filename=String.format("%s%s%05d-b-recv-header.dat", Config.MSG_TRACE_DIR, File.separator, sequenceNr);
-		FileOutputStream fos=new FileOutputStream(filename);
-		fos.write(headerdata);
-		if(annotations!=null) fos.write(annotations);
-		fos.close();
-		filename=String.format("%s%s%05d-b-recv-message.dat", Config.MSG_TRACE_DIR, File.separator, sequenceNr);
-		fos=new FileOutputStream(filename);
-		fos.write(data);
-		fos.close();
+		TraceMessageRecv(0L, headerdata, annotations, data);
 	}
 
 }
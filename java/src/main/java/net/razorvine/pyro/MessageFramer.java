@@ -0,0 +1,139 @@
+package net.razorvine.pyro;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.TreeMap;
+
+/**
+ * Cuts a stream of bytes that arrives in arbitrary pieces into Pyro messages, for non-blocking transports.
+ * Feed it whatever was read with next(buffer); it returns each message as soon as it is complete.
+ * The header is validated while it comes in, so garbage on the connection is detected after a few bytes,
+ * and messages larger than maxMessageSize are refused before anything is allocated for them.
+ * The buffers for the annotations and data grow as their bytes arrive, so a header that announces a large message
+ * doesn't reserve that memory before the message is actually sent.
+ *
+ * Usage: <code>while((msg=framer.next(buffer))!=null) handle(msg);</code>
+ * A framer is for a single connection and is not thread safe.
+ */
+public class MessageFramer {
+
+	/**
+	 * Maximum size of the annotations plus data of a single message, by default Config.MAX_MESSAGE_SIZE.
+	 * Messages are framed into byte arrays, so at most 2 Gb (also the default when no limit is configured); larger ones need Message.recv.
+	 */
+	public int maxMessageSize = (int) (Config.MAX_MESSAGE_SIZE>0 ? Math.min(Config.MAX_MESSAGE_SIZE, SegmentedBuffer.MAX_ARRAY_SIZE) : SegmentedBuffer.MAX_ARRAY_SIZE);
+
+	private static final int SCRATCH_SIZE = 4096;
+	private static final int INITIAL_DATA_SIZE = 65536;
+
+	private final byte[] header = new byte[Message.HEADER_SIZE];
+	private int headerCount;
+	private Message message;
+	private byte[] annotations;
+	private int annotationsCount;
+	private int dataCount;
+	private byte[] scratch;		// reused for annotations that are not too big
+
+	/**
+	 * Consumes bytes from the buffer until a message is complete and returns it,
+	 * or returns null when the buffer is exhausted and more input is needed.
+	 * Bytes after the returned message are left in the buffer for the next call.
+	 * A PyroException means the input is not a valid Pyro message stream; the connection should be closed.
+	 */
+	public Message next(ByteBuffer buffer) {
+		if(message==null) {
+			int count = Math.min(buffer.remaining(), Message.HEADER_SIZE - headerCount);
+			buffer.get(header, headerCount, count);
+			int before = headerCount;
+			headerCount += count;
+			checkPartialHeader(before);
+			if(headerCount<Message.HEADER_SIZE)
+				return null;
+			Message msg = Message.from_header(header);
+			if(msg.annotations_size<0 || msg.data_size<0 || (long)msg.annotations_size+msg.data_size > maxMessageSize)
+				throw new PyroException("max message size exceeded");
+			if(msg.annotations_size>0)
+				annotations = scratch();
+			msg.data = new byte[Math.min(msg.data_size, INITIAL_DATA_SIZE)];
+			message = msg;
+			annotationsCount = 0;
+			dataCount = 0;
+		}
+
+		if(annotationsCount<message.annotations_size) {
+			int count = Math.min(buffer.remaining(), message.annotations_size - annotationsCount);
+			annotations = ensureCapacity(annotations, annotationsCount+count, message.annotations_size);
+			buffer.get(annotations, annotationsCount, count);
+			annotationsCount += count;
+			if(annotationsCount<message.annotations_size)
+				return null;
+		}
+		if(dataCount<message.data_size) {
+			int count = Math.min(buffer.remaining(), message.data_size - dataCount);
+			message.data = ensureCapacity(message.data, dataCount+count, message.data_size);
+			buffer.get(message.data, dataCount, count);
+			dataCount += count;
+			if(dataCount<message.data_size)
+				return null;
+		}
+
+		Message msg = message;
+		if(msg.annotations_size>0)
+			msg.annotations = Message.parse_annotations(annotations, 0, msg.annotations_size);
+		else
+			msg.annotations = new TreeMap<String, byte[]>();
+		message = null;
+		annotations = null;
+		headerCount = 0;
+		return msg;
+	}
+
+	/**
+	 * Is a message partially received?
+	 */
+	public boolean inProgress() {
+		return headerCount>0;
+	}
+
+	/**
+	 * Forget the partially received message, if any.
+	 */
+	public void reset() {
+		headerCount = 0;
+		message = null;
+		annotations = null;
+	}
+
+	private byte[] scratch() {
+		if(scratch==null)
+			scratch = new byte[SCRATCH_SIZE];
+		return scratch;
+	}
+
+	/**
+	 * The array, or a copy that is large enough for the needed bytes: at least twice as large, at most the given size.
+	 * When the message is complete, the data array has exactly the size of the data.
+	 */
+	private static byte[] ensureCapacity(byte[] array, int needed, int size) {
+		if(needed<=array.length)
+			return array;
+		return Arrays.copyOf(array, (int) Math.min(size, Math.max(needed, 2L*array.length)));
+	}
+
+	/**
+	 * Check the message identifier and protocol version as soon as their bytes are in.
+	 */
+	private void checkPartialHeader(int before) {
+		if(before<4) {
+			for(int i=before; i<Math.min(4, headerCount); ++i) {
+				if(header[i]!="PYRO".charAt(i))
+					throw new PyroException("invalid message");
+			}
+		}
+		if(before<6 && headerCount>=6) {
+			int version = BigEndian.getUnsignedShort(header, 4);
+			if(version!=Config.PROTOCOL_VERSION)
+				throw new PyroException("invalid protocol version: "+version);
+		}
+	}
+}
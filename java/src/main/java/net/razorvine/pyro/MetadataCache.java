@@ -0,0 +1,229 @@
+package net.razorvine.pyro;
+
+import java.io.*;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cache of the metadata (exposed methods, attributes and oneway methods) of remote Pyro objects, by uri.
+ * A proxy that connects optimistically uses the cached metadata until the handshake reply brings the daemon's own,
+ * which then replaces the cached entry, unless it is the same. Proxies share the cached sets until they change them.
+ * The cache holds the most recently used entries, up to its maximum size (Config.METADATA_CACHE_SIZE for the default cache),
+ * so per-session object ids don't pile up.
+ * The cache can be prepopulated, and it can be saved to and loaded from a file.
+ * The default cache is used by all proxies unless Config.METADATA_CACHE is false.
+ */
+public class MetadataCache {
+
+	/**
+	 * The metadata of a single remote object. The sets are immutable.
+	 */
+	public static final class Metadata implements Serializable {
+		private static final long serialVersionUID = 2302394711390562467L;
+		public final Set<String> methods;
+		public final Set<String> attrs;
+		public final Set<String> oneways;
+
+		public Metadata(Collection<String> methods, Collection<String> attrs, Collection<String> oneways) {
+			this.methods = Collections.unmodifiableSet(new HashSet<String>(methods));
+			this.attrs = Collections.unmodifiableSet(new HashSet<String>(attrs));
+			this.oneways = Collections.unmodifiableSet(new HashSet<String>(oneways));
+		}
+
+		/**
+		 * Extract the metadata from the dictionary returned by the daemon.
+		 * The collections in it can be either an Object[] or a Collection, depending on the serializer that is used.
+		 * Pyro5 calls the oneway methods "oneway", older versions used "oneways".
+		 * If no attribute or method is exposed at all, throw an exception.
+		 */
+		public static Metadata fromDict(Map<String, Object> dict) {
+			Object oneways = dict.containsKey("oneway") ? dict.get("oneway") : dict.get("oneways");
+			Metadata md = new Metadata(toStrings(dict.get("methods")), toStrings(dict.get("attrs")), toStrings(oneways));
+			if(md.methods.isEmpty() && md.attrs.isEmpty()) {
+				throw new PyroException("remote object doesn't expose any methods or attributes");
+			}
+			return md;
+		}
+
+		/**
+		 * Is the metadata in the dictionary from the daemon the same as this? Then this instance can be used again.
+		 */
+		public boolean matches(Map<String, Object> dict) {
+			Object oneways = dict.containsKey("oneway") ? dict.get("oneway") : dict.get("oneways");
+			return same(methods, dict.get("methods")) && same(attrs, dict.get("attrs")) && same(this.oneways, oneways);
+		}
+
+		private static boolean same(Set<String> set, Object strings) {
+			if(strings==null)
+				return set.isEmpty();
+			if(strings instanceof Collection) {
+				Collection<?> c = (Collection<?>) strings;
+				return c.size()==set.size() && set.containsAll(c);
+			}
+			Object[] array = (Object[]) strings;
+			if(array.length!=set.size())
+				return false;
+			for(Object s: array) {
+				if(s==null || !set.contains(s.toString()))
+					return false;
+			}
+			return true;
+		}
+
+		@SuppressWarnings("unchecked")
+		private static Collection<String> toStrings(Object strings) {
+			if(strings==null)
+				return Collections.emptySet();
+			if(strings instanceof Collection)
+				return (Collection<String>) strings;
+			Object[] array = (Object[]) strings;
+			Collection<String> result = new HashSet<String>(array.length*4/3+1);
+			for(Object s: array)
+				result.add(s.toString());
+			return result;
+		}
+	}
+
+	private static final MetadataCache defaultCache = new MetadataCache(Config.METADATA_CACHE_SIZE);
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final LinkedHashMap<String, Metadata> cache;		// by PyroURI.key(): the uris themselves are mutable
+
+	public MetadataCache() {
+		this(Config.METADATA_CACHE_SIZE);
+	}
+
+	/**
+	 * A cache of at most the given number of entries, the least recently used one is evicted first.
+	 */
+	public MetadataCache(final int maxEntries) {
+		if(maxEntries<=0)
+			throw new IllegalArgumentException("invalid maximum size");
+		cache = new LinkedHashMap<String, Metadata>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Metadata> eldest) {
+				return size()>maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * The cache that is shared by all proxies.
+	 */
+	public static MetadataCache getDefault() {
+		return defaultCache;
+	}
+
+	public Metadata get(PyroURI uri) {
+		return get(uri.key());
+	}
+
+	public void put(PyroURI uri, Metadata metadata) {
+		put(uri.key(), metadata);
+	}
+
+	Metadata get(String key) {
+		lock.lock();
+		try {
+			return cache.get(key);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void put(String key, Metadata metadata) {
+		lock.lock();
+		try {
+			cache.put(key, metadata);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Forget the metadata of the given object, it will be obtained again on the next connect.
+	 */
+	public void invalidate(PyroURI uri) {
+		invalidate(uri.key());
+	}
+
+	void invalidate(String key) {
+		lock.lock();
+		try {
+			cache.remove(key);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void clear() {
+		lock.lock();
+		try {
+			cache.clear();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int size() {
+		lock.lock();
+		try {
+			return cache.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private HashMap<String, Metadata> snapshot() {
+		lock.lock();
+		try {
+			return new HashMap<String, Metadata>(cache);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Write the cached metadata to a file.
+	 */
+	public void save(File file) throws IOException {
+		ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeObject(snapshot());
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Add the metadata that was saved in a file to the cache.
+	 */
+	@SuppressWarnings("unchecked")
+	public void load(File file) throws IOException {
+		ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			Map<Object, Metadata> entries = (Map<Object, Metadata>) in.readObject();
+			lock.lock();
+			try {
+				for(Map.Entry<Object, Metadata> entry: entries.entrySet()) {
+					Object key = entry.getKey();		// older files have the uris as keys
+					cache.put(key instanceof PyroURI ? ((PyroURI) key).key() : (String) key, entry.getValue());
+				}
+			} finally {
+				lock.unlock();
+			}
+		} catch (ClassNotFoundException x) {
+			throw new IOException("invalid metadata cache file", x);
+		} finally {
+			in.close();
+		}
+	}
+}
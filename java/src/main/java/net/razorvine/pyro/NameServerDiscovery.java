@@ -0,0 +1,202 @@
+package net.razorvine.pyro;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Locates the Pyro name server. The broadcast lookup and the direct lookups on the configured hosts
+ * are all done in parallel, and the first valid answer wins. So if there is a name server on localhost
+ * as well as one that answers the broadcast, either can be found. Set preferBroadcast to always take
+ * the broadcast answer in that case, like locateNS did before: the hosts are then only used if the broadcast
+ * gets no answer (which still takes the whole timeout).
+ * The result is cached for a while. When a cached result has expired, it is still returned
+ * but a new discovery is started in the background to refresh it.
+ */
+public class NameServerDiscovery {
+
+	public boolean broadcast = true;					// also do a broadcast lookup
+	public boolean preferBroadcast = false;				// take the broadcast answer over a faster answer from the hosts
+	public String broadcastAddress = "255.255.255.255";
+	public int broadcastPort = 0;						// 0 means: use Config.NS_BCPORT
+	public final List<String> hosts = new ArrayList<String>();	// hosts to probe directly, "host" or "host:port" (default port is Config.NS_PORT)
+	public int timeout = 3000;							// milliseconds to wait for an answer, also for connecting to the hosts
+	public long ttl = 60000;							// milliseconds that a discovered uri is considered fresh
+
+	private volatile PyroURI cachedUri;
+	private volatile long cachedAt;
+	private final AtomicBoolean refreshing = new AtomicBoolean();
+
+	private static final NameServerDiscovery defaultDiscovery = new NameServerDiscovery();
+	private static final ExecutorService executor = Threads.newExecutor("pyro-ns-discovery");
+
+	/**
+	 * Creates a discovery that does the broadcast lookup and probes localhost directly.
+	 */
+	public NameServerDiscovery() {
+		hosts.add("localhost");
+	}
+
+	/**
+	 * The discovery instance that is used by NameServerProxy.locateNS(null).
+	 */
+	public static NameServerDiscovery getDefault() {
+		return defaultDiscovery;
+	}
+
+	/**
+	 * Returns the uri of the name server, from the cache if possible.
+	 */
+	public PyroURI locate() throws IOException {
+		PyroURI uri = cachedUri;
+		if(uri!=null) {
+			if(System.currentTimeMillis() - cachedAt > ttl)
+				refreshAsync();
+			return uri;
+		}
+		return discover();
+	}
+
+	/**
+	 * Forget the cached name server uri, for instance because it no longer works.
+	 */
+	public void invalidate() {
+		cachedUri = null;
+	}
+
+	/**
+	 * Start a discovery in the background that updates the cached uri when it completes.
+	 */
+	public void refreshAsync() {
+		if(!refreshing.compareAndSet(false, true))
+			return;
+		executor.execute(new Runnable() {
+			public void run() {
+				try {
+					discover();
+				} catch (IOException x) {
+					// keep the previous uri
+				} finally {
+					refreshing.set(false);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Probes all sources in parallel and returns the first name server uri that is found
+	 * (or the broadcast answer, with preferBroadcast). The result is stored in the cache.
+	 */
+	public PyroURI discover() throws IOException {
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		CompletionService<PyroURI> completion = new ExecutorCompletionService<PyroURI>(executor);
+		List<Future<PyroURI>> probes = new ArrayList<Future<PyroURI>>();
+		Future<PyroURI> broadcastProbe = null;
+		if(broadcast) {
+			broadcastProbe = completion.submit(new Callable<PyroURI>() {
+				public PyroURI call() throws IOException {
+					return probeBroadcast();
+				}
+			});
+			probes.add(broadcastProbe);
+		}
+		for(final String host: hosts) {
+			probes.add(completion.submit(new Callable<PyroURI>() {
+				public PyroURI call() throws IOException {
+					return probeHost(host, deadline);
+				}
+			}));
+		}
+		if(probes.isEmpty())
+			throw new PyroException("no name server discovery sources configured");
+
+		PyroURI uri = null;
+		PyroURI hostUri = null;		// waiting for the broadcast answer
+		Throwable failure = null;
+		int failed = 0;
+		try {
+			for(int pending=probes.size(); pending>0 && uri==null; pending--) {
+				Future<PyroURI> probe = completion.poll(deadline-System.nanoTime(), TimeUnit.NANOSECONDS);
+				if(probe==null)
+					break;
+				try {
+					PyroURI found = probe.get();
+					if(!preferBroadcast || broadcastProbe==null || broadcastProbe.isDone())
+						uri = found;
+					else if(hostUri==null)
+						hostUri = found;
+				} catch (ExecutionException x) {
+					failure = x.getCause();
+					failed++;
+					if(probe==broadcastProbe)
+						uri = hostUri;
+				}
+			}
+		} catch (InterruptedException x) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while locating the name server", x);
+		} finally {
+			for(Future<PyroURI> probe: probes)
+				probe.cancel(true);
+		}
+		if(uri==null)
+			uri = hostUri;		// the broadcast got no answer in time
+		if(uri==null) {
+			if(failed<probes.size())
+				throw new SocketTimeoutException("timeout while locating the name server");
+			// all probes failed, report one of the reasons
+			if(failure instanceof IOException)
+				throw (IOException) failure;
+			throw new PyroException("failed to locate the name server", failure);
+		}
+		cachedUri = uri;
+		cachedAt = System.currentTimeMillis();
+		return uri;
+	}
+
+	private PyroURI probeBroadcast() throws IOException {
+		DatagramSocket udpsock = new DatagramSocket();
+		try {
+			udpsock.setSoTimeout(timeout);
+			udpsock.setBroadcast(true);
+			byte[] buf = "GET_NSURI".getBytes();
+			InetAddress address = InetAddress.getByName(broadcastAddress);
+			int port = broadcastPort==0 ? Config.NS_BCPORT : broadcastPort;
+			udpsock.send(new DatagramPacket(buf, buf.length, address, port));
+			DatagramPacket response = new DatagramPacket(new byte[100], 100);
+			udpsock.receive(response);
+			return new PyroURI(new String(response.getData(), 0, response.getLength()));
+		} finally {
+			udpsock.close();
+		}
+	}
+
+	private PyroURI probeHost(String host, long deadline) throws IOException {
+		int port = Config.NS_PORT;
+		int colon = host.lastIndexOf(':');
+		if(colon>0 && host.indexOf(':')==colon) {
+			port = Integer.parseInt(host.substring(colon+1));
+			host = host.substring(0, colon);
+		}
+		NameServerProxy ns = new NameServerProxy(host, port);
+		try {
+			ns.call(Duration.ofNanos(deadline-System.nanoTime()), "ping");		// bounds the connect as well
+			return new PyroURI(ns.objectid, host, port);
+		} finally {
+			ns.close();
+		}
+	}
+}
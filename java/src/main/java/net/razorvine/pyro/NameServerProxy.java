@@ -3,6 +3,9 @@ package net.razorvine.pyro;
 import java.io.IOException;
 import java.io.Serializable;
 import java.net.*;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -19,6 +22,8 @@ public class NameServerProxy extends PyroProxy implements Serializable {
 
 	public NameServerProxy(PyroURI uri) throws UnknownHostException, IOException {
 		this(uri.host, uri.port, uri.objectid);
+		this.sockname = uri.sockname;
+		this.ssl = "PYROSSL".equals(uri.protocol);
 	}
 
 	public NameServerProxy(String hostname, int port, String objectid) throws UnknownHostException, IOException {
@@ -45,6 +50,44 @@ public class NameServerProxy extends PyroProxy implements Serializable {
 		return result;
 	}
 
+	/**
+	 * Look up many names at once, in a single round trip to the name server.
+	 * Names that are not registered in the name server are simply absent from the result.
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<String, PyroURI> lookupMany(Collection<String> names) throws IOException {
+		Map<String, PyroURI> result = new HashMap<String, PyroURI>();
+		if(names.isEmpty())
+			return result;
+		// the name server has no bulk lookup, but it can list the names matching a regex.
+		StringBuilder regex = new StringBuilder("(?:");
+		boolean first = true;
+		for(String name: names) {
+			if(!first)
+				regex.append('|');
+			first = false;
+			appendRegexEscaped(regex, name);
+		}
+		regex.append(")$");
+		Map<String, String> registrations = (Map<String, String>) this.call("list", null, regex.toString(), false);
+		for(Entry<String, String> entry: registrations.entrySet()) {
+			result.put(entry.getKey(), PyroURI.valueOf(entry.getValue()));
+		}
+		return result;
+	}
+
+	/**
+	 * Escapes the characters in the name that have a special meaning in a Python regular expression.
+	 */
+	private static void appendRegexEscaped(StringBuilder sb, String name) {
+		for(int i=0; i<name.length(); ++i) {
+			char c = name.charAt(i);
+			if(c<128 && !Character.isLetterOrDigit(c) && c!='_')
+				sb.append('\\');
+			sb.append(c);
+		}
+	}
+
 	public int remove(String name, String prefix, String regex) throws IOException {
 		return (Integer) this.call("remove", name, prefix, regex);
 	}
@@ -80,6 +123,28 @@ public class NameServerProxy extends PyroProxy implements Serializable {
 	}
 
 
+	/**
+	 * Returns the name to uri string mapping of the registrations whose name starts with the prefix.
+	 * This doesn't transfer the metadata, and doesn't convert anything, so it is cheap to call repeatedly.
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<String, String> listUris(String prefix) throws IOException {
+		return (Map<String, String>) this.call("list", prefix, null, false);
+	}
+
+	/**
+	 * Start watching the registrations whose name starts with the given prefix.
+	 * The name server is polled in a background thread every intervalMillis milliseconds,
+	 * and the listener is notified of every name that is added, removed or changed.
+	 * Close the returned watch to stop it.
+	 */
+	public PrefixWatch watchPrefix(String prefix, long intervalMillis, PrefixWatch.Listener listener) throws IOException {
+		PrefixWatch watch = new PrefixWatch(this, prefix, intervalMillis);
+		watch.addListener(listener);
+		watch.start();
+		return watch;
+	}
+
 	public void set_metadata(String name, Set<String> metadata) throws IOException {
 		this.call("set_metadata", name, metadata);
 	}
@@ -88,6 +153,12 @@ public class NameServerProxy extends PyroProxy implements Serializable {
 		return locateNS(host,0);
 	}
 
+	/**
+	 * Connect to the name server on the given host, or locate it when the host is null.
+	 * Locating uses the default NameServerDiscovery (or one with the given broadcast port): it does the broadcast lookup
+	 * and tries localhost at the same time, and takes whichever answers first. Set preferBroadcast on
+	 * NameServerDiscovery.getDefault() to always take the broadcast answer, as earlier versions did.
+	 */
 	public static NameServerProxy locateNS(String host, int port) throws IOException {
 		if(host!=null) {
 			if(port==0)
@@ -96,36 +167,23 @@ public class NameServerProxy extends PyroProxy implements Serializable {
 			proxy.ping();
 			return proxy;
 		}
-		if(port==0)
-			port=Config.NS_BCPORT;
-		DatagramSocket udpsock=new DatagramSocket();
-		udpsock.setSoTimeout(3000);
-		udpsock.setBroadcast(true);
-		byte[] buf="GET_NSURI".getBytes();
-		if(host==null)
-			host="255.255.255.255";
-		InetAddress address=InetAddress.getByName(host);
-		DatagramPacket packet=new DatagramPacket(buf, buf.length, address, port);
-		udpsock.send(packet);
-
-		DatagramPacket response=new DatagramPacket(new byte[100], 100);
-		try
-		{
-			udpsock.receive(response);
-		}
-		catch(SocketTimeoutException x)
-		{
-			// try localhost explicitly (if host wasn't localhost already)
-			if(!host.startsWith("127.0") && !host.equals("localhost"))
-				return locateNS("localhost", Config.NS_PORT);
-			else
-				throw x;
+		NameServerDiscovery discovery;
+		if(port==0 || port==Config.NS_BCPORT) {
+			discovery = NameServerDiscovery.getDefault();
+		} else {
+			discovery = new NameServerDiscovery();
+			discovery.broadcastPort = port;
+			discovery.preferBroadcast = NameServerDiscovery.getDefault().preferBroadcast;
 		}
-		finally {
-			udpsock.close();
+		NameServerProxy nsp = new NameServerProxy(discovery.locate());
+		try {
+			nsp.call(Duration.ofMillis(discovery.timeout), "ping");
+		} catch (IOException x) {
+			// the (cached) uri doesn't work (anymore), discover again
+			nsp.close();
+			discovery.invalidate();
+			nsp = new NameServerProxy(discovery.discover());
 		}
-		String location=new String(response.getData(), 0, response.getLength());
-		NameServerProxy nsp = new NameServerProxy(new PyroURI(location));
 		return nsp;
 	}
 }
@@ -0,0 +1,337 @@
+package net.razorvine.pyro;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.razorvine.pyro.metrics.Metrics;
+import net.razorvine.pyro.serializer.PyroSerializer;
+
+/**
+ * Publishes a flood of oneway calls to a remote Pyro object, without a socket write per call.
+ * The calling thread serializes and encodes the message, and puts it in a bounded queue.
+ * A background writer thread drains the queue and sends many messages at once with a single write on its own connection.
+ * It waits up to lingerMillis for a batch to fill up, trading a bit of latency for fewer, larger writes.
+ * What happens when the queue is full is chosen with the backpressure policy.
+ * Oneway calls have no result, so errors (including a connection that can't be made) are only counted, see failed() and lastError().
+ */
+public class OnewayPublisher implements Closeable {
+
+	public enum Backpressure {
+		/** wait until there is room in the queue */
+		BLOCK,
+		/** drop the call (publish returns false) */
+		DROP,
+		/** throw a PyroException */
+		FAIL
+	}
+
+	private static final int MAX_BATCH_BYTES = 1<<20;	// a batch is also complete when it has this many bytes
+
+	public final PyroURI uri;
+	public final int capacity;
+	public Backpressure backpressure = Backpressure.BLOCK;
+	public int lingerMillis = 1;			// how long the writer waits for more messages before sending an incomplete batch
+	public int maxBatch = 256;				// max number of messages per write
+	public long retryDelayMillis = 1000;	// pause after a failed write before the writer connects again
+
+	private final PyroProxy proxy;			// only used by the writer thread
+	private final ConcurrentLinkedQueue<Frame> queue = new ConcurrentLinkedQueue<Frame>();
+	private final Semaphore space;
+	private final AtomicInteger sequenceNr = new AtomicInteger();
+	private final AtomicLong queued = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private volatile long completed;		// messages that have been written or have failed, in queue order
+	private volatile Exception lastError;
+	private volatile boolean running = true;
+	private volatile boolean writerWaiting;
+	private final ReentrantLock completedLock = new ReentrantLock();
+	private final Condition completedChanged = completedLock.newCondition();
+	private final Thread writer;
+	private byte[] buffer = new byte[8192];
+
+	private static final class Frame {
+		final byte[] wire;
+		final long dataSize;
+		final Message traced;		// only kept when message tracing is enabled
+
+		Frame(byte[] wire, long dataSize, Message traced) {
+			this.wire = wire;
+			this.dataSize = dataSize;
+			this.traced = traced;
+		}
+	}
+
+	/**
+	 * Create a publisher with a queue of 10000 messages.
+	 */
+	public OnewayPublisher(PyroURI uri) throws IOException {
+		this(uri, 10000);
+	}
+
+	/**
+	 * Create a publisher with a queue of the given number of messages.
+	 */
+	public OnewayPublisher(PyroURI uri, int capacity) throws IOException {
+		if(capacity<1)
+			throw new IllegalArgumentException("capacity must be at least 1");
+		this.uri = uri;
+		this.capacity = capacity;
+		this.proxy = new PyroProxy(uri);
+		this.space = new Semaphore(capacity);
+		writer = Threads.newThread("pyro-oneway-publisher", new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		});
+		writer.start();
+	}
+
+	/**
+	 * Queue a oneway call of the method. The method is not checked against the remote object's metadata.
+	 * @return false if the call was dropped because the queue is full (with the DROP policy)
+	 * @throws PyroException if the queue is full (with the FAIL policy)
+	 * @throws IllegalStateException if the publisher is closed
+	 */
+	public boolean publish(String method, Object... arguments) throws PyroException, IOException {
+		if(!running)
+			throw new IllegalStateException("publisher is closed");
+		if(!space.tryAcquire()) {
+			switch(backpressure) {
+				case DROP:
+					dropped.incrementAndGet();
+					return false;
+				case FAIL:
+					dropped.incrementAndGet();
+					throw new PyroException("oneway publisher queue is full");
+				default:
+					try {
+						while(!space.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+							if(!running)
+								throw new IllegalStateException("publisher is closed");
+						}
+						if(!running)
+							throw new IllegalStateException("publisher is closed");
+					} catch (InterruptedException x) {
+						Thread.currentThread().interrupt();
+						throw new PyroException("interrupted while waiting for room in the queue", x);
+					}
+			}
+		}
+		Frame frame;
+		try {
+			frame = encode(method, arguments);
+		} catch (IOException x) {
+			space.release();
+			throw x;
+		} catch (RuntimeException x) {
+			space.release();
+			throw x;
+		}
+		queued.incrementAndGet();		// before the frame is in the queue, so that flush() never misses it
+		queue.offer(frame);
+		if(writerWaiting)
+			LockSupport.unpark(writer);
+		return true;
+	}
+
+	private Frame encode(String method, Object[] arguments) throws IOException {
+		PyroSerializer ser = PyroSerializer.getSerpentSerializer();
+		byte[] data = ser.serializeCall(uri.objectid, method, arguments==null ? new Object[0] : arguments, Collections.<String, Object>emptyMap());
+		int seq = sequenceNr.incrementAndGet() & 0xffff;
+		Message msg = new Message(Message.MSG_INVOKE, data, ser.getSerializerId(), Message.FLAGS_ONEWAY, seq, null, null);
+		return new Frame(msg.to_bytes(), msg.get_data_size(), Config.MSG_TRACE_DIR!=null ? msg : null);
+	}
+
+	/**
+	 * Number of calls that were not queued because the queue was full.
+	 */
+	public long dropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Number of queued calls that couldn't be sent because of a communication error.
+	 */
+	public long failed() {
+		return failed.get();
+	}
+
+	/**
+	 * The last error of the writer (an IOException, or a PyroException if the daemon refused the connection), or null.
+	 */
+	public Exception lastError() {
+		return lastError;
+	}
+
+	/**
+	 * Number of calls in the queue.
+	 */
+	public int pending() {
+		return capacity - space.availablePermits();
+	}
+
+	/**
+	 * Wait until every call that was queued so far has been written (or has failed).
+	 */
+	public void flush() throws InterruptedException {
+		long target = queued.get();
+		if(writerWaiting)
+			LockSupport.unpark(writer);
+		completedLock.lock();
+		try {
+			while(completed<target && writer.isAlive())
+				completedChanged.await(100, TimeUnit.MILLISECONDS);
+		} finally {
+			completedLock.unlock();
+		}
+	}
+
+	/**
+	 * Send the remaining queued calls, stop the writer and close the connection.
+	 */
+	public void close() {
+		running = false;
+		LockSupport.unpark(writer);
+		try {
+			writer.join();
+		} catch (InterruptedException x) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void writeLoop() {
+		Frame[] batch = new Frame[0];
+		try {
+			while(running || !queue.isEmpty()) {
+				if(batch.length<maxBatch)
+					batch = new Frame[Math.max(1, maxBatch)];
+				int count = fill(batch);
+				if(count>0) {
+					write(batch, count);
+					Arrays.fill(batch, 0, count, null);
+				}
+			}
+		} finally {
+			proxy.close();
+			completedLock.lock();
+			try {
+				completedChanged.signalAll();
+			} finally {
+				completedLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Take the next batch from the queue: wait for the first message, then linger for more until the batch is full.
+	 */
+	private int fill(Frame[] batch) {
+		int limit = Math.min(batch.length, Math.max(1, maxBatch));
+		int count = 0;
+		int bytes = 0;
+		long deadline = 0;
+		while(count<limit && bytes<MAX_BATCH_BYTES) {
+			Frame frame = queue.poll();
+			if(frame!=null) {
+				batch[count++] = frame;
+				bytes += frame.wire.length;
+				continue;
+			}
+			if(count>0) {
+				if(!running || lingerMillis<=0)
+					break;
+				if(deadline==0)
+					deadline = System.nanoTime() + lingerMillis*1000000L;
+				long remaining = deadline - System.nanoTime();
+				if(remaining<=0)
+					break;
+				park(remaining);
+			} else {
+				if(!running)
+					break;
+				park(100*1000000L);
+			}
+		}
+		if(count>0 && running)
+			space.release(count);		// no room is made anymore when closing, so blocked callers don't get in after the writer is done
+		return count;
+	}
+
+	private void park(long nanos) {
+		writerWaiting = true;
+		if(queue.isEmpty())
+			LockSupport.parkNanos(this, nanos);
+		writerWaiting = false;
+	}
+
+	/**
+	 * Copy the messages of the batch into one buffer and send it with a single write.
+	 */
+	private void write(Frame[] batch, int count) {
+		int size = 0;
+		for(int i=0; i<count; ++i)
+			size += batch[i].wire.length;
+		if(buffer.length<size)
+			buffer = new byte[Math.max(size, buffer.length*2)];
+		int offset = 0;
+		for(int i=0; i<count; ++i) {
+			byte[] wire = batch[i].wire;
+			System.arraycopy(wire, 0, buffer, offset, wire.length);
+			offset += wire.length;
+		}
+		try {
+			Connection conn = proxy.connection();
+			conn.out.write(buffer, 0, size);
+			if(Metrics.isEnabled()) {
+				for(int i=0; i<count; ++i)
+					Metrics.requestSent(batch[i].dataSize, batch[i].wire.length);
+			}
+			if(Config.MSG_TRACE_DIR!=null) {
+				long connectionId = proxy.connectionId();
+				for(int i=0; i<count; ++i) {
+					Message msg = batch[i].traced;
+					if(msg!=null)
+						Message.TraceMessageSend(connectionId, msg.get_header_bytes(), msg.get_annotations_bytes(), msg.data);
+				}
+			}
+		} catch (IOException x) {
+			failed(count, x);
+			return;
+		} catch (PyroException x) {
+			failed(count, x);
+			return;
+		}
+		completed(count);
+	}
+
+	private void failed(int count, Exception x) {
+		// the connection is in an unknown state now, the next batch reconnects
+		proxy.close();
+		failed.addAndGet(count);
+		lastError = x;
+		completed(count);
+		if(running)
+			LockSupport.parkNanos(this, retryDelayMillis*1000000L);
+	}
+
+	private void completed(int count) {
+		completedLock.lock();
+		try {
+			completed += count;
+			completedChanged.signalAll();
+		} finally {
+			completedLock.unlock();
+		}
+	}
+}
@@ -0,0 +1,192 @@
+package net.razorvine.pyro;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps a local view of the name server registrations whose name starts with a given prefix.
+ * The name server is polled periodically in a background thread, the result is compared
+ * with the previous snapshot, and listeners are notified about the names that were
+ * added, removed or that now point to a different uri.
+ * The watch uses its own connection to the name server.
+ */
+public class PrefixWatch implements Closeable {
+
+	/**
+	 * Receives the changes detected by a PrefixWatch.
+	 * The notifications are done on the polling thread.
+	 */
+	public interface Listener {
+		void added(String name, PyroURI uri);
+		void removed(String name, PyroURI uri);
+		void changed(String name, PyroURI oldUri, PyroURI newUri);
+
+		/**
+		 * Called when polling the name server failed. The snapshot stays as it was.
+		 */
+		default void pollFailed(Exception x) {
+		}
+	}
+
+	public final String prefix;
+	public final long intervalMillis;
+
+	private final NameServerProxy ns;
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	private Map<String, String> rawSnapshot = Collections.emptyMap();
+	private volatile Map<String, PyroURI> snapshot = Collections.emptyMap();
+	private volatile boolean running;
+	private Thread thread;
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Create a watch for the given prefix. It uses a new connection to the same name server as the given proxy.
+	 * Call start() to begin polling.
+	 */
+	public PrefixWatch(NameServerProxy ns, String prefix, long intervalMillis) throws IOException {
+		if(intervalMillis<=0)
+			throw new IllegalArgumentException("interval must be > 0");
+		this.ns = new NameServerProxy(ns.hostname, ns.port, ns.objectid);
+		this.ns.sockname = ns.sockname;
+		this.ns.ssl = ns.ssl;
+		this.ns.pyroHandshake = ns.pyroHandshake;
+		this.prefix = prefix;
+		this.intervalMillis = intervalMillis;
+	}
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Performs the first poll (synchronously, so the snapshot is filled when this returns)
+	 * and then starts the background polling thread.
+	 */
+	public void start() throws IOException {
+		lock.lock();
+		try {
+			if(running)
+				return;
+			poll();
+			running = true;
+			thread = Threads.newThread("pyro-prefixwatch-" + prefix, new Runnable() {
+				public void run() {
+					pollLoop();
+				}
+			});
+			thread.start();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * The current view of the registrations, name to uri. This is an immutable map.
+	 */
+	public Map<String, PyroURI> snapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Poll the name server right now, update the snapshot and notify the listeners of the differences.
+	 */
+	public void poll() throws IOException {
+		lock.lock();
+		try {
+			doPoll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void doPoll() throws IOException {
+		Map<String, String> current;
+		try {
+			current = ns.listUris(prefix);
+		} catch (IOException x) {
+			ns.close();   // reconnect on the next poll
+			throw x;
+		}
+
+		Map<String, PyroURI> previous = snapshot;
+		Map<String, PyroURI> next = new HashMap<String, PyroURI>(current.size()*4/3+1);
+		for(Entry<String, String> entry: current.entrySet()) {
+			String name = entry.getKey();
+			String uri = entry.getValue();
+			String oldUri = rawSnapshot.get(name);
+			if(oldUri==null) {
+				PyroURI newUri = PyroURI.valueOf(uri);
+				next.put(name, newUri);
+				for(Listener listener: listeners)
+					listener.added(name, newUri);
+			} else if(!oldUri.equals(uri)) {
+				PyroURI newUri = PyroURI.valueOf(uri);
+				next.put(name, newUri);
+				for(Listener listener: listeners)
+					listener.changed(name, previous.get(name), newUri);
+			} else {
+				next.put(name, previous.get(name));
+			}
+		}
+		for(Entry<String, PyroURI> entry: previous.entrySet()) {
+			if(!current.containsKey(entry.getKey())) {
+				for(Listener listener: listeners)
+					listener.removed(entry.getKey(), entry.getValue());
+			}
+		}
+		rawSnapshot = current;
+		snapshot = Collections.unmodifiableMap(next);
+	}
+
+	private void pollLoop() {
+		while(running) {
+			try {
+				Thread.sleep(intervalMillis);
+			} catch (InterruptedException x) {
+				break;
+			}
+			if(!running)
+				break;
+			try {
+				poll();
+			} catch (Exception x) {
+				for(Listener listener: listeners)
+					listener.pollFailed(x);
+			}
+		}
+	}
+
+	/**
+	 * Stop polling and close the connection to the name server.
+	 */
+	public void close() {
+		Thread t;
+		lock.lock();
+		try {
+			running = false;
+			t = thread;
+			thread = null;
+		} finally {
+			lock.unlock();
+		}
+		if(t!=null)
+			t.interrupt();
+		lock.lock();
+		try {
+			ns.close();
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -1,5 +1,7 @@
 package net.razorvine.pyro;
 
+import java.lang.reflect.Field;
+
 /**
  * Exception thrown when something is wrong in Pyro.
  *
@@ -22,4 +24,18 @@ public class PyroException extends RuntimeException {
 	public PyroException(String message) {
 		super(message);
 	}
+
+	/**
+	 * Wrap an exception that the daemon sent back as the result of a call, with its remote traceback if it has one.
+	 */
+	public static PyroException fromRemote(Throwable remote) {
+		PyroException px = new PyroException(null, remote);
+		try {
+			Field remotetbField = remote.getClass().getDeclaredField("_pyroTraceback");
+			px._pyroTraceback = (String) remotetbField.get(remote);
+		} catch (Exception e) {
+			// exception didn't provide a pyro remote traceback
+		}
+		return px;
+	}
 }
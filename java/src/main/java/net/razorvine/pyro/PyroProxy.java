@@ -1,14 +1,16 @@
 package net.razorvine.pyro;
 
+import net.razorvine.pyro.metrics.Metrics;
 import net.razorvine.pyro.serializer.PyroSerializer;
 
 import java.io.*;
-import java.lang.reflect.Field;
-import java.net.Socket;
+import java.time.Duration;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.net.UnknownHostException;
 import java.util.*;
-import java.util.zip.DataFormatException;
-import java.util.zip.Inflater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Proxy for Pyro objects.
@@ -20,14 +22,24 @@ public class PyroProxy implements Serializable {
 	private static final long serialVersionUID = -5564313476693913031L;
 	public String hostname;
 	public int port;
+	public String sockname;		// Unix domain socket of the daemon, instead of hostname and port
+	public boolean ssl;			// connect with TLS (PYROSSL uri), see SslSockets
 	public String objectid;
 	public UUID correlation_id = null;		// per-proxy correlation id (need to set/update this yourself)
 	public Object pyroHandshake = "hello";	// data object that should be sent in the initial connection handshake message. Can be any serializable object.
+	public int pyroMaxRetries = 0;			// number of times a call is retried (after reconnecting) when a communication error occurs
+	public RetryPolicy retryPolicy = new RetryPolicy();	// which calls are retried, and the wait time between the attempts
+	public double pyroTimeout = 0.0;		// timeout in seconds for connecting and for each call, 0 = no timeout
+	public boolean optimisticConnect = false;	// send the handshake together with the first call, instead of waiting for the handshake reply first
 
 	private transient int sequenceNr = 0;
-	private transient Socket sock;
-	private transient OutputStream sock_out;
-	private transient InputStream sock_in;
+	private transient Connection sock;
+	private transient boolean metadataFromCache;
+	private transient int sockTimeout;
+	private transient long connectionId;	// identifies the current connection in the message trace
+	private transient ReentrantLock lock = new ReentrantLock();	// not synchronized: that would pin virtual threads during the socket I/O
+
+	private static final AtomicLong connectionIds = new AtomicLong();
 
 	public Set<String> pyroMethods = new HashSet<String>();	// remote methods
 	public Set<String> pyroAttrs = new HashSet<String>();	// remote attributes
@@ -45,6 +57,8 @@ public class PyroProxy implements Serializable {
 	 */
 	public PyroProxy(PyroURI uri) throws UnknownHostException, IOException {
 		this(uri.host, uri.port, uri.objectid);
+		this.sockname = uri.sockname;
+		this.ssl = "PYROSSL".equals(uri.protocol);
 	}
 
 	/**
@@ -56,18 +70,29 @@ public class PyroProxy implements Serializable {
 		this.objectid = objectid;
 	}
 
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		lock = new ReentrantLock();
+	}
+
 	/**
 	 * (re)connect the proxy to the remote Pyro daemon.
 	 */
 	protected void connect() throws UnknownHostException, IOException {
+		connect(0);
+	}
+
+	/**
+	 * (re)connect the proxy to the remote Pyro daemon, the connection and handshake have to complete before the deadline.
+	 */
+	private void connect(long deadline) throws UnknownHostException, IOException {
 		if (sock == null) {
-			sock = new Socket(hostname, port);
-			sock.setKeepAlive(true);
-			sock.setTcpNoDelay(true);
-			sock_out = sock.getOutputStream();
-			sock_in = sock.getInputStream();
-			sequenceNr = 0;
+			long start = Metrics.isEnabled() ? System.nanoTime() : 0;
+			open(deadline);
+			long connected = Metrics.isEnabled() ? System.nanoTime() : 0;
 			_handshake();
+			if(Metrics.isEnabled())
+				Metrics.connected(endpointHost(), port, connected-start, System.nanoTime()-connected);
 			if(!pyroMethods.isEmpty() || !pyroAttrs.isEmpty()) {
 				// not checking _pyroONeway because that feature already existed and it is not yet deprecated
 				// log.debug("reusing existing metadata")
@@ -77,6 +102,37 @@ public class PyroProxy implements Serializable {
 		}
 	}
 
+	/**
+	 * Open the connection to the daemon, without the handshake.
+	 */
+	private void open(long deadline) throws IOException {
+		sockTimeout = timeoutMillis(deadline);
+		sock = Connection.open(hostname, port, sockname, ssl, sockTimeout);
+		sock.setDeadline(deadline);		// for the handshake
+		sequenceNr = 0;
+		connectionId = connectionIds.incrementAndGet();
+	}
+
+	/**
+	 * Connect if needed and return the connection, for the OnewayPublisher that writes its messages on it directly.
+	 */
+	Connection connection() throws IOException {
+		lock.lock();
+		try {
+			connect(0);
+			return sock;
+		} catch (IOException x) {
+			close();
+			throw x;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	long connectionId() {
+		return connectionId;
+	}
+
 	/**
 	 * get metadata from server (methods, attrs, oneway, ...) and remember them in some attributes of the proxy
 	 */
@@ -91,7 +147,7 @@ public class PyroProxy implements Serializable {
 
 		// invoke the get_metadata method on the daemon
 		@SuppressWarnings("unchecked")
-		HashMap<String, Object> result = (HashMap<String, Object>) this.internal_call("get_metadata", Config.DAEMON_NAME, 0, false, new Object[] {objectId});
+		HashMap<String, Object> result = (HashMap<String, Object>) this.internal_call("get_metadata", Config.DAEMON_NAME, 0, false, 0, null, new Object[] {objectId});
 		if(result==null)
 			return;
 
@@ -101,44 +157,50 @@ public class PyroProxy implements Serializable {
 	/**
 	 * Extract meta data and store it in the relevant properties on the proxy.
 	 * If no attribute or method is exposed at all, throw an exception.
+	 * The metadata from the daemon replaces the entry in the metadata cache (if enabled), unless it is the same.
+	 * Without it (result is null), the cached metadata of the object is used, if there is any.
 	 */
 	private void _processMetadata(HashMap<String, Object> result) {
-		// the collections in the result can be either an object[] or a HashSet<object>, depending on the serializer that is used
-		Object methods = result.get("methods");
-		Object attrs = result.get("attrs");
-		Object oneways = result.get("oneways");
-
-		if(methods instanceof Object[]) {
-			Object[] methods_array = (Object[]) methods;
-			this.pyroMethods = new HashSet<String>();
-			for(int i=0; i<methods_array.length; ++i) {
-				this.pyroMethods.add((String) methods_array[i]);
-			}
-		} else if(methods!=null) {
-			this.pyroMethods = getSetOfStrings(methods);
-		}
-		if(attrs instanceof Object[]) {
-			Object[] attrs_array = (Object[]) attrs;
-			this.pyroAttrs = new HashSet<String>();
-			for(int i=0; i<attrs_array.length; ++i) {
-				this.pyroAttrs.add((String) attrs_array[i]);
-			}
-		} else if(attrs!=null) {
-			this.pyroAttrs = getSetOfStrings(attrs);
-		}
-		if(oneways instanceof Object[]) {
-			Object[] oneways_array = (Object[]) oneways;
-			this.pyroOneway = new HashSet<String>();
-			for(int i=0; i<oneways_array.length; ++i) {
-				this.pyroOneway.add((String) oneways_array[i]);
+		MetadataCache cache = Config.METADATA_CACHE ? MetadataCache.getDefault() : null;
+		MetadataCache.Metadata metadata = null;
+		if(cache!=null) {
+			String key = metadataCacheKey();
+			metadata = cache.get(key);
+			if(result!=null && (metadata==null || !metadata.matches(result))) {
+				metadata = MetadataCache.Metadata.fromDict(result);
+				cache.put(key, metadata);
 			}
-		} else if(oneways!=null) {
-			this.pyroOneway = getSetOfStrings(oneways);
+		} else if(result!=null) {
+			metadata = MetadataCache.Metadata.fromDict(result);
 		}
+		if(metadata==null)
+			return;
+		// the sets are shared with the cache until the proxy changes them
+		this.pyroMethods = new CopyOnWriteSet<String>(metadata.methods);
+		this.pyroAttrs = new CopyOnWriteSet<String>(metadata.attrs);
+		this.pyroOneway = new CopyOnWriteSet<String>(metadata.oneways);
+		this.metadataFromCache = result==null;
+	}
 
-		if(pyroMethods.isEmpty() && pyroAttrs.isEmpty()) {
-			throw new PyroException("remote object doesn't expose any methods or attributes");
-		}
+	private String metadataCacheKey() {
+		return PyroURI.key("PYRO", objectid, hostname, port, sockname);
+	}
+
+	/**
+	 * The host part of the daemon endpoint, for the metrics and the circuit breakers.
+	 */
+	private String endpointHost() {
+		return sockname!=null ? "./u:"+sockname : hostname;
+	}
+
+	/**
+	 * Forget the metadata of this proxy's object, also in the metadata cache,
+	 * and get it again from the daemon.
+	 */
+	private void _refreshMetadata() throws IOException {
+		MetadataCache.getDefault().invalidate(metadataCacheKey());
+		metadataFromCache = false;
+		getMetadata(this.objectid);
 	}
 
 	/**
@@ -177,7 +239,33 @@ public class PyroProxy implements Serializable {
 	 * @return the result Object from the remote method call (can be anything, you need to typecast/introspect yourself).
 	 */
 	public Object call(String method, Object... arguments) throws PyroException, IOException {
-		return internal_call(method, null, 0, true, arguments);
+		return retrying_call(method, 0, true, 0, null, arguments);
+	}
+
+	/**
+	 * Call a method on the remote Pyro object this proxy is for, the call has to complete within the given time.
+	 * This includes (re)connecting and retries. If the time runs out, a SocketTimeoutException is thrown
+	 * and the connection is closed (the proxy will reconnect on the next call).
+	 * @param timeout the maximum duration of the call
+	 * @param method the name of the method you want to call
+	 * @param arguments zero or more arguments for the remote method
+	 * @return the result Object from the remote method call (can be anything, you need to typecast/introspect yourself).
+	 */
+	public Object call(Duration timeout, String method, Object... arguments) throws PyroException, IOException {
+		return retrying_call(method, 0, true, System.nanoTime()+timeout.toNanos(), null, arguments);
+	}
+
+	/**
+	 * Call a method on the remote Pyro object this proxy is for, with binary blobs attached to the call as annotation chunks.
+	 * The blob data goes on the wire as-is, it isn't serialized; the daemon finds it in the annotations of the call context.
+	 * The annotation chunks of the response are passed to responseAnnotations, and to responseBlobs if a subclass overrides that.
+	 * @param blobs the blobs by annotation key (4 characters, don't use the uppercase keys that Pyro itself uses)
+	 * @param method the name of the method you want to call
+	 * @param arguments zero or more arguments for the remote method
+	 * @return the result Object from the remote method call (can be anything, you need to typecast/introspect yourself).
+	 */
+	public Object callWithBlobs(Map<String, Blob> blobs, String method, Object... arguments) throws PyroException, IOException {
+		return retrying_call(method, 0, true, 0, blobs, arguments);
 	}
 
 	/**
@@ -186,7 +274,44 @@ public class PyroProxy implements Serializable {
 	 * @param arguments zero or more arguments for the remote method
 	 */
 	public void call_oneway(String method, Object... arguments) throws PyroException, IOException {
-		internal_call(method, null, Message.FLAGS_ONEWAY, true, arguments);
+		retrying_call(method, Message.FLAGS_ONEWAY, true, 0, null, arguments);
+	}
+
+	/**
+	 * Returns an implementation of the given interface that calls the remote methods of the same names.
+	 * The interface methods are checked against the remote object's metadata once, here, so the calls
+	 * themselves don't have to look anything up anymore. Oneway remote methods must return void.
+	 * Results are converted to the declared return types where that makes sense (numbers, tuples to lists),
+	 * otherwise they must already be of the declared type.
+	 * If an interface method doesn't declare IOException, communication errors are thrown as PyroException.
+	 */
+	public <T> T as(Class<T> iface) throws PyroException, IOException {
+		lock.lock();
+		try {
+			connect(0);
+		} catch (IOException x) {
+			close();
+			throw x;
+		} finally {
+			lock.unlock();
+		}
+		return TypedProxy.create(this, iface);
+	}
+
+	/**
+	 * Checks if the method exists, refreshing cached metadata if it doesn't. Used to bind typed proxies.
+	 */
+	boolean hasRemoteMethod(String method) throws IOException {
+		if(!pyroMethods.contains(method) && metadataFromCache)
+			_refreshMetadata();
+		return pyroMethods.contains(method);
+	}
+
+	/**
+	 * The call of a typed proxy method, with the flags worked out when it was bound.
+	 */
+	Object typed_call(String method, int flags, Object[] arguments) throws PyroException, IOException {
+		return retrying_call(method, flags, false, 0, null, arguments);
 	}
 
 	/**
@@ -194,7 +319,7 @@ public class PyroProxy implements Serializable {
 	 * @param attr the attribute name
 	 */
 	public Object getattr(String attr) throws PyroException, IOException {
-		return this.internal_call("__getattr__", null, 0, false, attr);
+		return this.retrying_call("__getattr__", 0, false, 0, null, attr);
 	}
 
 	/**
@@ -203,7 +328,7 @@ public class PyroProxy implements Serializable {
 	 * @param value the new value for the attribute
 	 */
 	public void setattr(String attr, Object value) throws PyroException, IOException {
-		this.internal_call("__setattr__", null, 0, false, attr, value);
+		this.retrying_call("__setattr__", 0, false, 0, null, attr, value);
 	}
 
 	/**
@@ -214,52 +339,235 @@ public class PyroProxy implements Serializable {
 		return new TreeMap<String, byte[]>();
 	}
 
+	/**
+	 * Perform the call, guarded by the circuit breaker of the daemon endpoint (if enabled).
+	 * If a communication error occurs, the call is retried according to pyroMaxRetries and the retry policy.
+	 */
+	private Object retrying_call(String method, int flags, boolean checkMethodName, long deadline, Map<String, Blob> blobs, Object... parameters) throws PyroException, IOException {
+		int attempt = 0;
+		while(true) {
+			CircuitBreaker breaker = CircuitBreaker.forEndpoint(endpointHost(), port);
+			if(breaker!=null)
+				breaker.allowCall();
+			boolean reported = false;
+			try {
+				Object result = internal_call(method, null, flags, checkMethodName, deadline, blobs, parameters);
+				if(breaker!=null)
+					breaker.success();
+				reported = true;
+				return result;
+			} catch (PyroException x) {
+				if(breaker!=null && x.pythonExceptionType!=null) {
+					breaker.success();		// a remote exception: the daemon itself is fine
+					reported = true;
+				}
+				throw x;
+			} catch (IOException x) {
+				if(breaker!=null)
+					breaker.failure();
+				reported = true;
+				if(attempt>=pyroMaxRetries || !retryPolicy.isRetryable(method))
+					throw x;
+				long backoff = retryPolicy.backoffMillis(attempt);
+				if(deadline!=0 && System.nanoTime()+backoff*1000000L-deadline >= 0)
+					throw x;	// no time left for another attempt
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException ix) {
+					Thread.currentThread().interrupt();
+					throw x;
+				}
+				attempt++;
+			} finally {
+				if(breaker!=null && !reported)
+					breaker.failure();		// any other outcome, so that a half-open trial call can't stay taken
+			}
+		}
+	}
+
 	/**
 	 * Internal call method to actually perform the Pyro method call and process the result.
+	 * Reports the call to the metrics listeners, if there are any.
 	 */
-	private Object internal_call(String method, String actual_objectId, int flags, boolean checkMethodName, Object... parameters) throws PyroException, IOException {
+	private Object internal_call(String method, String actual_objectId, int flags, boolean checkMethodName, long deadline, Map<String, Blob> blobs, Object... parameters) throws PyroException, IOException {
 		if(actual_objectId==null) actual_objectId=this.objectid;
-		synchronized (this) {
-			connect();
-			sequenceNr=(sequenceNr+1)&0xffff;		// stay within an unsigned short 0-65535
+		if(!Metrics.isEnabled())
+			return do_internal_call(method, actual_objectId, flags, checkMethodName, deadline, blobs, parameters);
+
+		Metrics.callStarted(actual_objectId, method);
+		long start = System.nanoTime();
+		Throwable error = null;
+		try {
+			return do_internal_call(method, actual_objectId, flags, checkMethodName, deadline, blobs, parameters);
+		} catch (IOException | RuntimeException x) {
+			error = x;
+			if(x instanceof PyroException && ((PyroException) x).pythonExceptionType!=null)
+				Metrics.remoteException(((PyroException) x).pythonExceptionType);
+			throw x;
+		} finally {
+			Metrics.callCompleted(actual_objectId, method, System.nanoTime()-start, error);
 		}
-		if(pyroAttrs.contains(method)) {
-			throw new PyroException("cannot call an attribute");
+	}
+
+	/**
+	 * Perform the Pyro method call and process the result.
+	 * If a communication error occurs, the connection is closed so that the next call will reconnect.
+	 */
+	private Object do_internal_call(String method, String actual_objectId, int flags, boolean checkMethodName, long deadline, Map<String, Blob> blobs, Object... parameters) throws PyroException, IOException {
+		boolean optimistic = false;
+		lock.lock();
+		try {
+			if(sock==null && optimisticConnect)
+				optimistic = true;		// connect when the call is sent, see below
+			else
+				connect(deadline);
+		} catch (IOException x) {
+			close();
+			throw x;
+		} finally {
+			lock.unlock();
 		}
-		if(pyroOneway.contains(method)) {
-			flags |= Message.FLAGS_ONEWAY;
+		if(optimistic && pyroMethods.isEmpty() && pyroAttrs.isEmpty()) {
+			_processMetadata(null);		// the metadata cache may know the object already
+			if(pyroMethods.isEmpty() && pyroAttrs.isEmpty())
+				checkMethodName = false;	// the metadata comes with the handshake reply, the daemon checks the method itself
+		}
+		if(checkMethodName) {
+			// calls without the check (internal calls, typed proxies) have their flags worked out already
+			if(pyroAttrs.contains(method)) {
+				throw new PyroException("cannot call an attribute");
+			}
+			if(pyroOneway.contains(method)) {
+				flags |= Message.FLAGS_ONEWAY;
+			}
+			if(!pyroMethods.contains(method) && metadataFromCache) {
+				// the cached metadata may be outdated
+				_refreshMetadata();
+			}
+			if(!pyroMethods.contains(method)) {
+				throw new PyroException(String.format("remote object '%s' has no exposed attribute or method '%s'", actual_objectId, method));
+			}
 		}
 		if(correlation_id!=null) {
 			flags |= Message.FLAGS_CORR_ID;
 		}
-		if(checkMethodName && !pyroMethods.contains(method)) {
-			throw new PyroException(String.format("remote object '%s' has no exposed attribute or method '%s'", actual_objectId, method));
-		}
 		if (parameters == null)
 			parameters = new Object[] {};
 		PyroSerializer ser = PyroSerializer.getSerpentSerializer();
-		byte[] serdat = ser.serializeCall(actual_objectId, method, parameters, Collections.emptyMap());
-		Message msg = new Message(Message.MSG_INVOKE, serdat, ser.getSerializerId(), flags, sequenceNr, annotations(), correlation_id);
+		long serStart = Metrics.isEnabled() ? System.nanoTime() : 0;
+		SegmentedOutputStream serout = new SegmentedOutputStream();
+		ser.serializeCall(actual_objectId, method, parameters, Collections.emptyMap(), serout);
+		if(Metrics.isEnabled())
+			Metrics.serialized(System.nanoTime()-serStart, serout.length());
+		try {
+			return do_send_call(serout, ser, flags, blobs, deadline, optimistic);
+		} finally {
+			serout.release();
+		}
+	}
+
+	/**
+	 * Send the serialized call and receive the result. Data that fits in one pooled segment is sent in a single write like before,
+	 * larger data is sent from the segments with a gathering write, without copying it into the message.
+	 */
+	private Object do_send_call(SegmentedOutputStream serout, PyroSerializer ser, int flags, Map<String, Blob> blobs, long deadline, boolean optimistic) throws PyroException, IOException {
+		SortedMap<String, byte[]> annotations = annotations();
 		Message resultmsg;
-		synchronized (this.sock) {
-			IOUtil.send(sock_out, msg.to_bytes());
-			if(Config.MSG_TRACE_DIR!=null) {
-				Message.TraceMessageSend(sequenceNr, msg.get_header_bytes(), msg.get_annotations_bytes(), msg.data);
-			}
-			serdat = null;
+		int seq;
+		int timeout = timeoutMillis(deadline);
+		lock.lock();
+		try {
+			try {
+				Message handshake = null;
+				long connectStart = 0, connected = 0;
+				if(optimistic && sock==null) {
+					connectStart = Metrics.isEnabled() ? System.nanoTime() : 0;
+					open(deadline);
+					connected = Metrics.isEnabled() ? System.nanoTime() : 0;
+					handshake = handshakeMessage();
+				} else {
+					connect(deadline);		// in case another thread closed the connection in the meantime
+				}
+				sock.setDeadline(deadline);
+				sequenceNr=(sequenceNr+1)&0xffff;		// stay within an unsigned short 0-65535
+				seq = sequenceNr;
+				Message msg = serout.segmentCount()>1
+						? new Message(Message.MSG_INVOKE, serout.toBuffer(), ser.getSerializerId(), flags, seq, annotations, correlation_id)
+						: new Message(Message.MSG_INVOKE, serout.toByteArray(), ser.getSerializerId(), flags, seq, annotations, correlation_id);
+				if(blobs!=null) {
+					for(Map.Entry<String, Blob> blob: blobs.entrySet())
+						msg.add_blob(blob.getKey(), blob.getValue());
+				}
+				setSockTimeout(timeout);
+				// blobs are written from their buffer or file, segmented data from its segments, the rest of the message as a whole
+				byte[] msgbytes = msg.blobs==null && msg.data!=null ? msg.to_bytes() : null;
+				if(handshake==null) {
+					if(msgbytes!=null)
+						IOUtil.send(sock.out, msgbytes);
+					else if(msg.blobs==null)
+						sock.write(msg.buffers());
+					else
+						msg.send(sock.out);
+				} else {
+					// the handshake and the call back to back in a single write, the daemon replies to them in order
+					byte[] hsbytes = handshake.to_bytes();
+					if(msgbytes!=null) {
+						byte[] both = new byte[hsbytes.length+msgbytes.length];
+						System.arraycopy(hsbytes, 0, both, 0, hsbytes.length);
+						System.arraycopy(msgbytes, 0, both, hsbytes.length, msgbytes.length);
+						IOUtil.send(sock.out, both);
+					} else if(msg.blobs==null) {
+						ByteBuffer[] buffers = msg.buffers();
+						ByteBuffer[] all = new ByteBuffer[buffers.length+1];
+						all[0] = ByteBuffer.wrap(hsbytes);
+						System.arraycopy(buffers, 0, all, 1, buffers.length);
+						sock.write(all);
+					} else {
+						IOUtil.send(sock.out, hsbytes);
+						msg.send(sock.out);
+					}
+					if(Config.MSG_TRACE_DIR!=null) {
+						Message.TraceMessageSend(connectionId, handshake.get_header_bytes(), handshake.get_annotations_bytes(), handshake.data);
+					}
+				}
+				if(Metrics.isEnabled())
+					Metrics.requestSent(msg.get_data_size(), Message.HEADER_SIZE + msg.get_annotations_size() + msg.get_data_size());
+				if(Config.MSG_TRACE_DIR!=null) {
+					Message.TraceMessageSend(connectionId, msg.get_header_bytes(), msg.get_annotations_bytes(), msg.data);
+				}
+				if(handshake!=null) {
+					// a rejected handshake closes the connection, the reply of the call is never read
+					handshakeResponse();
+					if(Metrics.isEnabled())
+						Metrics.connected(endpointHost(), port, connected-connectStart, System.nanoTime()-connected);
+				}
 
-			if ((flags & Message.FLAGS_ONEWAY) != 0)
-				return null;
+				if ((flags & Message.FLAGS_ONEWAY) != 0)
+					return null;
 
-			resultmsg = Message.recv(sock_in, new int[]{Message.MSG_RESULT});
+				resultmsg = Message.recv(sock.in, new int[]{Message.MSG_RESULT}, connectionId);
+			} catch (IOException x) {
+				// the connection is in an unknown state now, don't reuse it
+				close();
+				throw x;
+			}
+		} finally {
+			if(sock!=null)
+				sock.setDeadline(0);
+			lock.unlock();
 		}
-		if (resultmsg.seq != sequenceNr) {
+		if (resultmsg.seq != seq) {
 			throw new PyroException("result msg out of sync");
 		}
 		responseAnnotations(resultmsg.annotations, resultmsg.type);
+		if(resultmsg.get_annotations_size()>0 && receivesBlobs.get(getClass()))
+			responseBlobs(resultmsg.get_annotation_slices(), resultmsg.type);
+		long wireSize = Message.HEADER_SIZE + resultmsg.get_annotations_size() + resultmsg.get_data_size();
 		if ((resultmsg.flags & Message.FLAGS_COMPRESSED) != 0) {
-			_decompressMessageData(resultmsg);
+			resultmsg.decompress_data();
 		}
+		if(Metrics.isEnabled())
+			Metrics.responseReceived(wireSize, resultmsg.data!=null ? resultmsg.data.length : resultmsg.data_segments.length());
 		if ((resultmsg.flags & Message.FLAGS_ITEMSTREAMRESULT) != 0) {
 			byte[] streamId = resultmsg.annotations.get("STRM");
 			if(streamId==null)
@@ -267,12 +575,15 @@ public class PyroProxy implements Serializable {
 			return new PyroProxy.StreamResultIterable(new String(streamId), this);
 		}
 		if ((resultmsg.flags & Message.FLAGS_EXCEPTION) != 0) {
-			Throwable rx = (Throwable) ser.deserializeData(resultmsg.data);
+			Throwable rx = (Throwable) deserialize(ser, resultmsg);
 			if (rx instanceof PyroException) {
+				if(metadataFromCache && "builtins.AttributeError".equals(((PyroException) rx).pythonExceptionType)) {
+					// possibly an unknown method because the cached metadata is outdated
+					MetadataCache.getDefault().invalidate(metadataCacheKey());
+					metadataFromCache = false;
+				}
 				throw (PyroException) rx;
 			} else {
-				PyroException px = new PyroException(null, rx);
-
 				// if the source was a PythonException, copy its message and python exception type
 				// TODO how to do this without pickle?
 //				if(rx instanceof PythonException) {
@@ -281,40 +592,44 @@ public class PyroProxy implements Serializable {
 //					px.pythonExceptionType = rxp.pythonExceptionType;
 //				}
 
-				try {
-					Field remotetbField = rx.getClass().getDeclaredField("_pyroTraceback");
-					String remotetb = (String) remotetbField.get(rx);
-					px._pyroTraceback = remotetb;
-				} catch (Exception e) {
-					// exception didn't provide a pyro remote traceback
-				}
-				throw px;
+				throw PyroException.fromRemote(rx);
 			}
 		}
-		return ser.deserializeData(resultmsg.data);
+		return deserialize(ser, resultmsg);
+	}
+
+	private static Object deserialize(PyroSerializer ser, Message msg) throws IOException {
+		long start = Metrics.isEnabled() ? System.nanoTime() : 0;
+		Object result;
+		if(msg.data!=null)
+			result = ser.deserializeData(msg.data);
+		else
+			result = ser.deserializeData(msg.data_segments);
+		if(Metrics.isEnabled())
+			Metrics.deserialized(System.nanoTime()-start, msg.data!=null ? msg.data.length : msg.data_segments.length());
+		return result;
 	}
 
 	/**
-	 * Decompress the data bytes in the given message (in place).
+	 * The socket timeout to use for the next blocking operation, based on pyroTimeout and the call deadline (a System.nanoTime value).
+	 * 0 means no timeout. Throws a SocketTimeoutException if the deadline has already passed.
 	 */
-	private void _decompressMessageData(Message msg) {
-		if((msg.flags & Message.FLAGS_COMPRESSED) == 0) {
-			throw new IllegalArgumentException("message data is not compressed");
+	private int timeoutMillis(long deadline) throws SocketTimeoutException {
+		long timeout = (long) (pyroTimeout*1000.0);
+		if(deadline!=0) {
+			long remaining = (deadline-System.nanoTime())/1000000L;
+			if(remaining<=0)
+				throw new SocketTimeoutException("call deadline exceeded");
+			if(timeout<=0 || remaining<timeout)
+				timeout = remaining;
 		}
-		Inflater decompresser = new Inflater();
-		decompresser.setInput(msg.data);
-		ByteArrayOutputStream bos = new ByteArrayOutputStream(msg.data.length);
-		byte[] buffer = new byte[8192];
-		try {
-			while (!decompresser.finished()) {
-				int size = decompresser.inflate(buffer);
-				bos.write(buffer, 0, size);
-			}
-			msg.data = bos.toByteArray();
-			msg.flags &= ~Message.FLAGS_COMPRESSED;
-			decompresser.end();
-		} catch (DataFormatException e) {
-			throw new PyroException("invalid compressed data: ", e);
+		return (int) Math.min(timeout, Integer.MAX_VALUE);
+	}
+
+	private void setSockTimeout(int timeout) throws IOException {
+		if(timeout!=sockTimeout) {
+			sock.setTimeout(timeout);
+			sockTimeout = timeout;
 		}
 	}
 
@@ -325,23 +640,31 @@ public class PyroProxy implements Serializable {
 	public void close() {
 		if (this.sock != null)
 			try {
-				this.sock_in.close();
-				this.sock_out.close();
 				this.sock.close();
-				this.sock=null;
-				this.sock_in=null;
-				this.sock_out=null;
 			} catch (IOException e) {
+			} finally {
+				this.sock=null;
 			}
 	}
 
 	/**
 	 * Perform the Pyro protocol connection handshake with the Pyro daemon.
+	 * With optimisticConnect, the handshake of a connection made for a call is sent along with that call instead.
 	 */
-	@SuppressWarnings("unchecked")
 	protected void _handshake() throws IOException {
 		// do connection handshake
+		Message msg = handshakeMessage();
+		IOUtil.send(sock.out, msg.to_bytes());
+		if(Config.MSG_TRACE_DIR!=null) {
+			Message.TraceMessageSend(connectionId, msg.get_header_bytes(), msg.get_annotations_bytes(), msg.data);
+		}
+		handshakeResponse();
+	}
 
+	/**
+	 * The MSG_CONNECT message of the handshake.
+	 */
+	private Message handshakeMessage() throws IOException {
 		PyroSerializer ser = PyroSerializer.getSerpentSerializer();
 		Map<String, Object> handshakedata = new HashMap<String, Object>();
 		handshakedata.put("handshake", pyroHandshake);
@@ -351,22 +674,24 @@ public class PyroProxy implements Serializable {
 		if(correlation_id!=null) {
 			flags |= Message.FLAGS_CORR_ID;
 		}
-		Message msg = new Message(Message.MSG_CONNECT, data, ser.getSerializerId(), flags, sequenceNr, annotations(), correlation_id);
-		IOUtil.send(sock_out, msg.to_bytes());
-		if(Config.MSG_TRACE_DIR!=null) {
-			Message.TraceMessageSend(sequenceNr, msg.get_header_bytes(), msg.get_annotations_bytes(), msg.data);
-		}
+		return new Message(Message.MSG_CONNECT, data, ser.getSerializerId(), flags, sequenceNr, annotations(), correlation_id);
+	}
 
-		// process handshake response
-		msg = Message.recv(sock_in, new int[]{Message.MSG_CONNECTOK, Message.MSG_CONNECTFAIL});
+	/**
+	 * Receive and process the daemon's reply to the handshake.
+	 * Closes the connection and throws an exception if the connection was rejected.
+	 */
+	@SuppressWarnings("unchecked")
+	private void handshakeResponse() throws IOException {
+		Message msg = Message.recv(sock.in, new int[]{Message.MSG_CONNECTOK, Message.MSG_CONNECTFAIL}, connectionId);
 		responseAnnotations(msg.annotations, msg.type);
 		Object handshake_response = "?";
 		if(msg.data!=null) {
 			if((msg.flags & Message.FLAGS_COMPRESSED) != 0) {
-				_decompressMessageData(msg);
+				msg.decompress_data();
 			}
 			try {
-				ser = PyroSerializer.getFor(msg.serializer_id);
+				PyroSerializer ser = PyroSerializer.getFor(msg.serializer_id);
 				handshake_response = ser.deserializeData(msg.data);
 			} catch (Exception x) {
 				msg.type=Message.MSG_CONNECTFAIL;
@@ -413,6 +738,27 @@ public class PyroProxy implements Serializable {
 		// override this in subclass
 	}
 
+	/**
+	 * Process the annotation chunks of a call's response as read-only slices of the received bytes, without copying them.
+	 * Only called if a subclass overrides it, the slices aren't built otherwise.
+	 * The slices are only valid during this call: copy what you want to keep.
+	 */
+	public void responseBlobs(SortedMap<String, ByteBuffer> blobs, int msgtype)
+	{
+		// override this in subclass
+	}
+
+	private static final ClassValue<Boolean> receivesBlobs = new ClassValue<Boolean>() {
+		@Override
+		protected Boolean computeValue(Class<?> type) {
+			try {
+				return type.getMethod("responseBlobs", SortedMap.class, int.class).getDeclaringClass()!=PyroProxy.class;
+			} catch (NoSuchMethodException x) {
+				return false;
+			}
+		}
+	};
+
 	private static final HashSet<String> stopIterationExceptions;
 
 	static {
@@ -493,7 +839,7 @@ public class PyroProxy implements Serializable {
 				}
 				Object value = null;
 				try {
-					value = proxy.internal_call("get_next_stream_item", Config.DAEMON_NAME, 0, false, streamId);
+					value = proxy.internal_call("get_next_stream_item", Config.DAEMON_NAME, 0, false, 0, null, streamId);
 				} catch (PyroException x) {
 					exhausted=true;
 					if(stopIterationExceptions.contains(x.pythonExceptionType)) {
@@ -519,7 +865,7 @@ public class PyroProxy implements Serializable {
 			{
 				if(this.proxy!=null && this.proxy.sock!=null) {
 					try {
-						this.proxy.internal_call("close_stream", Config.DAEMON_NAME, Message.FLAGS_ONEWAY, false, this.streamId);
+						this.proxy.internal_call("close_stream", Config.DAEMON_NAME, Message.FLAGS_ONEWAY, false, 0, null, this.streamId);
 					} catch (IOException x) {
 						// meh
 					}
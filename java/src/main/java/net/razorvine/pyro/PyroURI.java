@@ -1,8 +1,7 @@
 package net.razorvine.pyro;
 
 import java.io.Serializable;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The Pyro URI object.
@@ -16,6 +15,11 @@ public class PyroURI implements Serializable {
 	public String objectid;
 	public String host;
 	public int port;
+	public String sockname;		// path of the Unix domain socket, when the daemon doesn't listen on host:port
+
+	private static final int MAX_INTERNED = 100000;
+	private static final ConcurrentHashMap<String, PyroURI> canonical = new ConcurrentHashMap<String, PyroURI>();	// by key(), not by the mutable uri itself
+	private static final ConcurrentHashMap<String, PyroURI> parsed = new ConcurrentHashMap<String, PyroURI>();
 
 	public PyroURI() {
 	}
@@ -25,33 +29,80 @@ public class PyroURI implements Serializable {
 		objectid = other.objectid;
 		host = other.host;
 		port = other.port;
+		sockname = other.sockname;
 	}
 
+	/**
+	 * Parses a uri string: PYRO:objectid@host:port, PYRO:objectid@[ipv6address]:port, PYRO:objectid@./u:socketpath,
+	 * and PYRONAME:name or PYROMETA:meta (location optional, default port is the name server port).
+	 */
 	public PyroURI(String uri) {
-		Matcher m = Pattern.compile("(PYRO[A-Z]*):(\\S+?)(@(\\S+))?$").matcher(uri);
-		if (m.find()) {
-			protocol = m.group(1);
-			objectid = m.group(2);
-			String location = m.group(4);
-			if(location.charAt(0)=='[') {
-				// ipv6
-				if(location.startsWith("[["))
-					throw new PyroException("invalid ipv6 address: enclosed in too many brackets");
-				Matcher ipv6locationmatch = Pattern.compile("\\[([0-9a-fA-F:%]+)](:(\\d+))?").matcher(location);
-				if(ipv6locationmatch.matches()) {
-					host = ipv6locationmatch.group(1);
-					port = Integer.parseInt(ipv6locationmatch.group(3));
-				} else {
+		int colon = uri.indexOf(':');
+		if(colon<4 || !uri.regionMatches(true, 0, "PYRO", 0, 4))
+			throw new PyroException("invalid URI string");
+		for(int i=4; i<colon; ++i) {
+			if(!Character.isLetter(uri.charAt(i)))
+				throw new PyroException("invalid URI string");
+		}
+		for(int i=colon+1; i<uri.length(); ++i) {
+			if(Character.isWhitespace(uri.charAt(i)))
+				throw new PyroException("invalid URI string");
+		}
+		protocol = uri.substring(0, colon).toUpperCase();
+		int at = uri.indexOf('@', colon+1);
+		objectid = uri.substring(colon+1, at<0 ? uri.length() : at);
+		if(objectid.isEmpty() || at==uri.length()-1)
+			throw new PyroException("invalid URI string");
+		if(at<0) {
+			if(protocol.equals("PYRONAME") || protocol.equals("PYROMETA"))
+				return;		// location is found via the name server
+			throw new PyroException("invalid URI string: location missing");
+		}
+		parseLocation(uri, at+1);
+	}
+
+	private void parseLocation(String uri, int start) {
+		if(uri.startsWith("./u:", start)) {
+			// unix domain socket
+			sockname = uri.substring(start+4);
+			if(sockname.isEmpty())
+				throw new PyroException("invalid uri: empty unix socket name");
+			return;
+		}
+		int portStart;
+		if(uri.charAt(start)=='[') {
+			// ipv6
+			if(uri.startsWith("[[", start))
+				throw new PyroException("invalid ipv6 address: enclosed in too many brackets");
+			int close = uri.indexOf(']', start);
+			if(close<0 || close==start+1 || (close+1<uri.length() && uri.charAt(close+1)!=':'))
+				throw new PyroException("invalid ipv6 address: the part between brackets must be a numeric ipv6 address");
+			for(int i=start+1; i<close; ++i) {
+				char c = uri.charAt(i);
+				if(Character.digit(c, 16)<0 && c!=':' && c!='%')
 					throw new PyroException("invalid ipv6 address: the part between brackets must be a numeric ipv6 address");
-				}
-			} else {
-				// regular ipv4
-				String[] loc = location.split(":");
-				host = loc[0];
-				port = Integer.parseInt(loc[1]);
 			}
+			host = uri.substring(start+1, close);
+			portStart = close+1;
 		} else {
-			throw new PyroException("invalid URI string");
+			int colon = uri.indexOf(':', start);
+			host = uri.substring(start, colon<0 ? uri.length() : colon);
+			portStart = colon<0 ? uri.length() : colon;
+		}
+		if(portStart==uri.length()) {
+			if(!protocol.equals("PYRONAME") && !protocol.equals("PYROMETA"))
+				throw new PyroException("invalid URI string: port missing");
+			port = Config.NS_PORT;
+			return;
+		}
+		port = 0;
+		if(portStart+1==uri.length() || uri.length()-portStart>6)
+			throw new PyroException("invalid port number");
+		for(int i=portStart+1; i<uri.length(); ++i) {
+			int digit = uri.charAt(i)-'0';
+			if(digit<0 || digit>9)
+				throw new PyroException("invalid port number");
+			port = port*10 + digit;
 		}
 	}
 
@@ -61,25 +112,99 @@ public class PyroURI implements Serializable {
 		this.port = port;
 	}
 
+	/**
+	 * A uri for an object on a daemon that listens on a Unix domain socket (Pyro5 form: PYRO:objectid@./u:sockname).
+	 */
+	public static PyroURI unixSocket(String objectid, String sockname) {
+		PyroURI uri = new PyroURI();
+		uri.objectid = objectid;
+		uri.sockname = sockname;
+		return uri;
+	}
+
+	/**
+	 * Returns the canonical instance of the given uri; equal uris return the same instance.
+	 * The canonical instances are shared, so they must not be modified.
+	 * They are not used as keys of any map (the fields are public), so a modified one can't corrupt those.
+	 */
+	public static PyroURI intern(PyroURI uri) {
+		String key = uri.key();
+		PyroURI c = canonical.get(key);
+		if(c==null) {
+			if(canonical.size()>=MAX_INTERNED)
+				canonical.clear();
+			c = new PyroURI(uri);	// the caller can still change its own instance
+			PyroURI existing = canonical.putIfAbsent(key, c);
+			if(existing!=null)
+				c = existing;
+		}
+		return c;
+	}
+
+	/**
+	 * A string of all the fields, equal for equal uris. Used as a map key instead of the (mutable) uri itself.
+	 */
+	String key() {
+		return key(protocol, objectid, host, port, sockname);
+	}
+
+	static String key(String protocol, String objectid, String host, int port, String sockname) {
+		StringBuilder sb = new StringBuilder(64);
+		sb.append(protocol).append('\0').append(objectid).append('\0').append(host).append('\0').append(port).append('\0').append(sockname);
+		return sb.toString();
+	}
+
+	/**
+	 * Returns the canonical instance of the uri in the given string. A string that was seen before isn't parsed again.
+	 * The canonical instances are shared, so they must not be modified.
+	 */
+	public static PyroURI intern(String uri) {
+		PyroURI c = parsed.get(uri);
+		if(c==null) {
+			if(parsed.size()>=MAX_INTERNED)
+				parsed.clear();
+			c = intern(new PyroURI(uri));
+			parsed.put(uri, c);
+		}
+		return c;
+	}
+
+	/**
+	 * Parses the uri string. Returns the interned instance if Config.INTERN_URIS is enabled, otherwise a new instance.
+	 */
+	public static PyroURI valueOf(String uri) {
+		return Config.INTERN_URIS ? intern(uri) : new PyroURI(uri);
+	}
+
 	public String toString() {
+		if(sockname!=null)
+			return "<PyroURI " + protocol + ":" + objectid + "@./u:" + sockname + ">";
 		return "<PyroURI " + protocol + ":" + objectid + "@" + host + ":" + port + ">";
 	}
 
 
 	@Override
 	public int hashCode() {
-		return toString().hashCode();
+		// the strings cache their own hash code, so this doesn't need to
+		int h = protocol==null ? 0 : protocol.hashCode();
+		h = 31*h + (objectid==null ? 0 : objectid.hashCode());
+		h = 31*h + (host==null ? 0 : host.hashCode());
+		h = 31*h + port;
+		return 31*h + (sockname==null ? 0 : sockname.hashCode());
 	}
 
 	@Override
 	public boolean equals(Object obj) {
 		if (this == obj)
 			return true;
-		if (obj == null)
-			return false;
 		if (!(obj instanceof PyroURI))
 			return false;
 		PyroURI other = (PyroURI) obj;
-		return toString().equals(other.toString());
+		return port==other.port && eq(objectid, other.objectid) && eq(host, other.host)
+				&& eq(sockname, other.sockname) && eq(protocol, other.protocol);
+	}
+
+	private static boolean eq(String a, String b) {
+		return a==null ? b==null : a.equals(b);
 	}
 }
@@ -0,0 +1,41 @@
+package net.razorvine.pyro;
+
+import java.io.Serializable;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Determines which failed calls of a proxy are retried, and how long to wait before each retry.
+ * The number of retries itself is the proxy's pyroMaxRetries (0 = no retries, like in Pyro).
+ * Only calls that failed because of a communication error (IOException) are retried,
+ * after the proxy has reconnected. The wait time grows exponentially and is randomized (jitter),
+ * so that many clients don't all reconnect at the same moment after a daemon restart.
+ */
+public class RetryPolicy implements Serializable {
+
+	private static final long serialVersionUID = -1460419203846163871L;
+
+	public long initialBackoffMillis = 50;
+	public long maxBackoffMillis = 5000;
+	public double multiplier = 2.0;
+	public double jitter = 0.5;				// fraction of the wait time that is randomized (0..1)
+	public Set<String> idempotentMethods;	// the methods that are safe to retry; null means all methods (like Pyro does)
+
+	/**
+	 * Is it safe to call the method again after a failed attempt?
+	 */
+	public boolean isRetryable(String method) {
+		return idempotentMethods==null || idempotentMethods.contains(method);
+	}
+
+	/**
+	 * Milliseconds to wait before the given retry attempt (0 = first retry).
+	 */
+	public long backoffMillis(int attempt) {
+		double backoff = initialBackoffMillis * Math.pow(multiplier, attempt);
+		if(backoff > maxBackoffMillis)
+			backoff = maxBackoffMillis;
+		double randomized = backoff * jitter * ThreadLocalRandom.current().nextDouble();
+		return (long) (backoff * (1.0-jitter) + randomized);
+	}
+}
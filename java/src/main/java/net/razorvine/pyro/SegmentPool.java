@@ -0,0 +1,67 @@
+package net.razorvine.pyro;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of fixed-size byte arrays that serialized calls are written into, see SegmentedOutputStream.
+ * Segments that are released while the pool already holds maxIdle of them are left to the garbage collector.
+ */
+public final class SegmentPool {
+
+	public static final int DEFAULT_SEGMENT_SIZE = 64*1024;
+	public static final int DEFAULT_MAX_IDLE = 256;		// 16 Mb of idle segments
+
+	private static final SegmentPool defaultPool = new SegmentPool(DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_IDLE);
+
+	private final int segmentSize;
+	private final int maxIdle;
+	private final ConcurrentLinkedQueue<byte[]> idle = new ConcurrentLinkedQueue<byte[]>();
+	private final AtomicInteger idleCount = new AtomicInteger();
+
+	public SegmentPool(int segmentSize, int maxIdle) {
+		if(segmentSize<=0)
+			throw new IllegalArgumentException("invalid segment size");
+		this.segmentSize = segmentSize;
+		this.maxIdle = maxIdle;
+	}
+
+	public static SegmentPool getDefault() {
+		return defaultPool;
+	}
+
+	public int segmentSize() {
+		return segmentSize;
+	}
+
+	/**
+	 * An idle segment, or a new one if there is none. Its contents are undefined.
+	 */
+	public byte[] acquire() {
+		byte[] segment = idle.poll();
+		if(segment==null)
+			return new byte[segmentSize];
+		idleCount.decrementAndGet();
+		return segment;
+	}
+
+	/**
+	 * Return a segment to the pool. It must not be used anymore after this.
+	 */
+	public void release(byte[] segment) {
+		if(segment.length!=segmentSize)
+			throw new IllegalArgumentException("segment is not from this pool");
+		if(idleCount.incrementAndGet()>maxIdle) {
+			idleCount.decrementAndGet();
+			return;
+		}
+		idle.add(segment);
+	}
+
+	/**
+	 * Number of idle segments.
+	 */
+	public int idle() {
+		return idleCount.get();
+	}
+}
@@ -0,0 +1,161 @@
+package net.razorvine.pyro;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Message data as a sequence of ByteBuffer segments, for payloads that don't fit in a single byte[] (2 Gb).
+ * The Pyro header allows up to 4 Gb of data, its length is an unsigned 32 bit value.
+ * The segments are shared, not copied: don't modify their contents. The buffer positions are never changed.
+ */
+public final class SegmentedBuffer {
+
+	public static final int DEFAULT_SEGMENT_SIZE = 64*1024*1024;
+	public static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE-8;	// the largest byte[] that a JVM can be relied upon to allocate
+	public static final int MAX_MAPPED_SEGMENT_SIZE = 1<<30;
+
+	private final ByteBuffer[] segments;
+	private final long length;
+
+	/**
+	 * The remaining bytes of the given buffers, in that order.
+	 */
+	public SegmentedBuffer(ByteBuffer... segments) {
+		this.segments = new ByteBuffer[segments.length];
+		long total = 0;
+		for(int i=0; i<segments.length; ++i) {
+			this.segments[i] = segments[i].slice();
+			total += this.segments[i].remaining();
+		}
+		this.length = total;
+	}
+
+	public static SegmentedBuffer wrap(byte[] data) {
+		return new SegmentedBuffer(ByteBuffer.wrap(data));
+	}
+
+	/**
+	 * Total number of bytes.
+	 */
+	public long length() {
+		return length;
+	}
+
+	public int segmentCount() {
+		return segments.length;
+	}
+
+	/**
+	 * A read-only view of the i-th segment.
+	 */
+	public ByteBuffer segment(int i) {
+		return segments[i].asReadOnlyBuffer();
+	}
+
+	/**
+	 * Duplicates of the segments, for a gathering write.
+	 */
+	ByteBuffer[] buffers() {
+		ByteBuffer[] buffers = new ByteBuffer[segments.length];
+		for(int i=0; i<segments.length; ++i)
+			buffers[i] = segments[i].duplicate();
+		return buffers;
+	}
+
+	/**
+	 * Copy everything into one array. Fails if there's more than MAX_ARRAY_SIZE bytes.
+	 */
+	public byte[] toByteArray() {
+		if(length>MAX_ARRAY_SIZE)
+			throw new PyroException("data of "+length+" bytes doesn't fit in a byte array");
+		if(segments.length==1 && segments[0].hasArray() && segments[0].arrayOffset()==0 && segments[0].array().length==length)
+			return segments[0].array();
+		byte[] result = new byte[(int) length];
+		int offset = 0;
+		for(ByteBuffer segment: segments) {
+			int size = segment.remaining();
+			segment.duplicate().get(result, offset, size);
+			offset += size;
+		}
+		return result;
+	}
+
+	/**
+	 * Write all segments to the stream.
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		byte[] chunk = null;
+		for(ByteBuffer segment: segments) {
+			if(segment.hasArray()) {
+				out.write(segment.array(), segment.arrayOffset()+segment.position(), segment.remaining());
+				continue;
+			}
+			if(chunk==null)
+				chunk = new byte[65536];
+			ByteBuffer source = segment.duplicate();
+			while(source.hasRemaining()) {
+				int size = Math.min(chunk.length, source.remaining());
+				source.get(chunk, 0, size);
+				out.write(chunk, 0, size);
+			}
+		}
+	}
+
+	/**
+	 * Read exactly length bytes from the stream, into heap segments of (at most) the given size.
+	 */
+	public static SegmentedBuffer read(InputStream in, long length, int segmentSize) throws IOException {
+		if(length<0)
+			throw new IllegalArgumentException("negative length");
+		if(segmentSize<=0)
+			throw new IllegalArgumentException("invalid segment size");
+		List<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+		long remaining = length;
+		while(remaining>0) {
+			int size = (int) Math.min(remaining, segmentSize);
+			segments.add(ByteBuffer.wrap(IOUtil.recv(in, size)));
+			remaining -= size;
+		}
+		return new SegmentedBuffer(segments.toArray(new ByteBuffer[segments.size()]));
+	}
+
+	/**
+	 * Read exactly length bytes from the stream into a temp file in the directory (null = the default temp directory),
+	 * and return the memory mapped file. The bytes stay off the heap, in the OS page cache.
+	 * The file is deleted right away; its space is released when the mapped segments have been garbage collected.
+	 */
+	public static SegmentedBuffer readToFile(InputStream in, long length, File directory) throws IOException {
+		if(length<0)
+			throw new IllegalArgumentException("negative length");
+		Path file = directory!=null ? Files.createTempFile(directory.toPath(), "pyro-", ".spill") : Files.createTempFile("pyro-", ".spill");
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+		try {
+			byte[] chunk = new byte[(int) Math.min(length, 1<<20)];
+			long remaining = length;
+			while(remaining>0) {
+				int count = in.read(chunk, 0, (int) Math.min(remaining, chunk.length));
+				if(count<0)
+					throw new IOException("premature end of data");
+				ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, count);
+				while(buffer.hasRemaining())
+					channel.write(buffer);
+				remaining -= count;
+			}
+			List<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+			for(long position=0; position<length; position+=MAX_MAPPED_SEGMENT_SIZE)
+				segments.add(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAX_MAPPED_SEGMENT_SIZE, length-position)));
+			return new SegmentedBuffer(segments.toArray(new ByteBuffer[segments.size()]));
+		} finally {
+			channel.close();		// the mappings stay valid
+		}
+	}
+}
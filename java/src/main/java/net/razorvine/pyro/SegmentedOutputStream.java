@@ -0,0 +1,113 @@
+package net.razorvine.pyro;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Output stream that collects its bytes in a chain of pooled segments instead of one growing array,
+ * so large serialized calls are never copied to enlarge or flatten the buffer.
+ * toBuffer() gives the segments as a SegmentedBuffer for a Message, which writes them to the connection as they are.
+ * Call release() once the message has been sent, to return the segments to the pool.
+ * Not thread safe.
+ */
+public final class SegmentedOutputStream extends OutputStream {
+
+	private final SegmentPool pool;
+	private final List<byte[]> segments = new ArrayList<byte[]>();
+	private byte[] current;
+	private int position;		// in the current segment
+	private long length;
+
+	public SegmentedOutputStream() {
+		this(SegmentPool.getDefault());
+	}
+
+	public SegmentedOutputStream(SegmentPool pool) {
+		this.pool = pool;
+	}
+
+	@Override
+	public void write(int b) {
+		if(current==null || position==current.length)
+			nextSegment();
+		current[position++] = (byte) b;
+		length++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		if(off<0 || len<0 || len>b.length-off)
+			throw new IndexOutOfBoundsException();
+		while(len>0) {
+			if(current==null || position==current.length)
+				nextSegment();
+			int count = Math.min(len, current.length-position);
+			System.arraycopy(b, off, current, position, count);
+			position += count;
+			off += count;
+			len -= count;
+			length += count;
+		}
+	}
+
+	private void nextSegment() {
+		current = pool.acquire();
+		segments.add(current);
+		position = 0;
+	}
+
+	/**
+	 * Total number of bytes written.
+	 */
+	public long length() {
+		return length;
+	}
+
+	public int segmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * The written bytes as a SegmentedBuffer over the pooled segments, they aren't copied.
+	 * The buffer is only valid until release().
+	 */
+	public SegmentedBuffer toBuffer() {
+		ByteBuffer[] buffers = new ByteBuffer[segments.size()];
+		for(int i=0; i<buffers.length; ++i) {
+			byte[] segment = segments.get(i);
+			buffers[i] = ByteBuffer.wrap(segment, 0, i==buffers.length-1 ? position : segment.length);
+		}
+		return new SegmentedBuffer(buffers);
+	}
+
+	/**
+	 * Copy the written bytes into one array, for small output that is sent in a single write anyway.
+	 */
+	public byte[] toByteArray() {
+		if(length>SegmentedBuffer.MAX_ARRAY_SIZE)
+			throw new PyroException("data of "+length+" bytes doesn't fit in a byte array");
+		byte[] result = new byte[(int) length];
+		int offset = 0;
+		for(int i=0; i<segments.size(); ++i) {
+			byte[] segment = segments.get(i);
+			int size = i==segments.size()-1 ? position : segment.length;
+			System.arraycopy(segment, 0, result, offset, size);
+			offset += size;
+		}
+		return result;
+	}
+
+	/**
+	 * Return the segments to the pool and start over empty.
+	 */
+	public void release() {
+		for(byte[] segment: segments)
+			pool.release(segment);
+		segments.clear();
+		current = null;
+		position = 0;
+		length = 0;
+	}
+}
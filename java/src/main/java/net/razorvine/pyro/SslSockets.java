@@ -0,0 +1,72 @@
+package net.razorvine.pyro;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * TLS for PYROSSL uris.
+ * All connections use the same SSLContext, so its client session cache is shared by every proxy:
+ * reconnects and other connections to the same daemon resume the TLS session instead of doing a full handshake.
+ * Set your own context to configure the trusted certificates, a client certificate, or the session cache size and timeout.
+ */
+public final class SslSockets {
+
+	private static volatile SSLContext context;
+
+	/**
+	 * Check that the daemon's certificate matches its host name (default true).
+	 */
+	public static volatile boolean verifyHostname = true;
+
+	private SslSockets() {
+	}
+
+	/**
+	 * The SSLContext used for PYROSSL connections. Defaults to the JVM's default context.
+	 */
+	public static SSLContext getContext() throws IOException {
+		SSLContext ctx = context;
+		if(ctx==null) {
+			try {
+				ctx = SSLContext.getDefault();
+			} catch (GeneralSecurityException x) {
+				throw new IOException("no default SSL context", x);
+			}
+			context = ctx;
+		}
+		return ctx;
+	}
+
+	/**
+	 * Use this SSLContext for new PYROSSL connections (null = the JVM's default context).
+	 */
+	public static void setContext(SSLContext ctx) {
+		context = ctx;
+	}
+
+	/**
+	 * Layer TLS over a connected socket, and do the handshake.
+	 * The host name and port identify the daemon in the session cache, so they must be the same for every connection to it.
+	 */
+	static SSLSocket wrap(Socket plain, String hostname, int port) throws IOException {
+		SSLSocket sock = (SSLSocket) getContext().getSocketFactory().createSocket(plain, hostname, port, true);
+		try {
+			sock.setUseClientMode(true);
+			if(verifyHostname) {
+				SSLParameters params = sock.getSSLParameters();
+				params.setEndpointIdentificationAlgorithm("HTTPS");
+				sock.setSSLParameters(params);
+			}
+			sock.startHandshake();
+			return sock;
+		} catch (IOException x) {
+			sock.close();
+			throw x;
+		}
+	}
+}
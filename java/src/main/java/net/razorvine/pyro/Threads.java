@@ -0,0 +1,101 @@
+package net.razorvine.pyro;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the threads that Pyrolite uses in the background, and the threads of your own code if you like.
+ * When Config.VIRTUAL_THREADS is enabled and the JVM supports them (Java 21+), these are virtual threads,
+ * otherwise they are daemon platform threads.
+ * Pyrolite itself doesn't block inside synchronized blocks, so calls made from virtual threads don't pin their carrier thread.
+ */
+public final class Threads {
+
+	private static final Method ofVirtual;
+	private static final Method builderName;
+	private static final Method builderUnstarted;
+	private static final Method threadPerTaskExecutor;
+
+	static {
+		Method ov = null, name = null, unstarted = null, perTask = null;
+		try {
+			ov = Thread.class.getMethod("ofVirtual");
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			name = builder.getMethod("name", String.class);
+			unstarted = builder.getMethod("unstarted", Runnable.class);
+			perTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+		} catch (ReflectiveOperationException x) {
+			// no virtual threads in this JVM
+			ov = null;
+		}
+		ofVirtual = ov;
+		builderName = name;
+		builderUnstarted = unstarted;
+		threadPerTaskExecutor = perTask;
+	}
+
+	private Threads() {
+	}
+
+	/**
+	 * Does this JVM have virtual threads?
+	 */
+	public static boolean virtualThreadsAvailable() {
+		return ofVirtual!=null;
+	}
+
+	/**
+	 * Create a virtual thread with the given name. Fails if the JVM doesn't support virtual threads.
+	 */
+	public static Thread newVirtualThread(String name, Runnable task) {
+		if(ofVirtual==null)
+			throw new UnsupportedOperationException("virtual threads require Java 21 or newer");
+		try {
+			Object builder = ofVirtual.invoke(null);
+			builder = builderName.invoke(builder, name);
+			return (Thread) builderUnstarted.invoke(builder, task);
+		} catch (ReflectiveOperationException x) {
+			throw new UnsupportedOperationException("can't create a virtual thread", x);
+		}
+	}
+
+	/**
+	 * Create a (not yet started) thread for a background task:
+	 * a virtual thread when Config.VIRTUAL_THREADS is enabled and available, otherwise a daemon thread.
+	 */
+	public static Thread newThread(String name, Runnable task) {
+		if(Config.VIRTUAL_THREADS && ofVirtual!=null)
+			return newVirtualThread(name, task);
+		Thread t = new Thread(task, name);
+		t.setDaemon(true);
+		return t;
+	}
+
+	/**
+	 * A thread factory that uses newThread.
+	 */
+	public static ThreadFactory factory(final String name) {
+		return new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				return Threads.newThread(name, r);
+			}
+		};
+	}
+
+	/**
+	 * A cached thread pool that creates its threads with newThread, for short blocking tasks.
+	 * With virtual threads enabled (and available), every task simply gets its own new virtual thread.
+	 */
+	public static ExecutorService newExecutor(String name) {
+		if(Config.VIRTUAL_THREADS && ofVirtual!=null) {
+			try {
+				return (ExecutorService) threadPerTaskExecutor.invoke(null, factory(name));
+			} catch (ReflectiveOperationException x) {
+				throw new UnsupportedOperationException("can't create a thread per task executor", x);
+			}
+		}
+		return Executors.newCachedThreadPool(factory(name));
+	}
+}
@@ -0,0 +1,193 @@
+package net.razorvine.pyro;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Implements an interface on top of a PyroProxy, see PyroProxy.as().
+ * Every interface method gets a CallSite when the proxy is created: the remote method name, the message flags,
+ * and how to convert the result. A call only has to find its CallSite, by identity of the Method object.
+ */
+final class TypedProxy implements InvocationHandler {
+
+	private static final int RESULT_VOID = 0;
+	private static final int RESULT_OBJECT = 1;
+	private static final int RESULT_CAST = 2;
+	private static final int RESULT_INT = 3;
+	private static final int RESULT_LONG = 4;
+	private static final int RESULT_DOUBLE = 5;
+	private static final int RESULT_FLOAT = 6;
+	private static final int RESULT_SHORT = 7;
+	private static final int RESULT_BYTE = 8;
+	private static final int RESULT_LIST = 9;
+
+	static final class CallSite {
+		final String method;
+		final int flags;
+		final int result;
+		final Class<?> resultType;		// boxed, if the method returns a primitive
+		final boolean primitive;
+		final boolean throwsIOException;
+
+		CallSite(String method, int flags, int result, Class<?> resultType, boolean throwsIOException) {
+			this.method = method;
+			this.flags = flags;
+			this.result = result;
+			this.primitive = resultType.isPrimitive();
+			if(resultType==boolean.class)
+				resultType = Boolean.class;
+			else if(resultType==char.class)
+				resultType = Character.class;
+			this.resultType = resultType;
+			this.throwsIOException = throwsIOException;
+		}
+	}
+
+	private final PyroProxy proxy;
+	private final Class<?> iface;
+	private final Map<Method, CallSite> sites;
+	// the Method objects that the java.lang.reflect.Proxy passes in are always the same instances,
+	// so after the first call of a method, finding its CallSite is an identity lookup
+	private volatile IdentityHashMap<Method, CallSite> identitySites = new IdentityHashMap<Method, CallSite>();
+
+	private TypedProxy(PyroProxy proxy, Class<?> iface, Map<Method, CallSite> sites) {
+		this.proxy = proxy;
+		this.iface = iface;
+		this.sites = sites;
+	}
+
+	static <T> T create(PyroProxy proxy, Class<T> iface) throws IOException {
+		if(!iface.isInterface())
+			throw new IllegalArgumentException(iface.getName() + " is not an interface");
+		Map<Method, CallSite> sites = new HashMap<Method, CallSite>();
+		for(Method m: iface.getMethods()) {
+			if(Modifier.isStatic(m.getModifiers()))
+				continue;
+			if(!Modifier.isAbstract(m.getModifiers()))
+				throw new IllegalArgumentException("default method " + m.getName() + " can't be implemented by a Pyro proxy");
+			sites.put(m, bind(proxy, m));
+		}
+		TypedProxy handler = new TypedProxy(proxy, iface, sites);
+		return iface.cast(Proxy.newProxyInstance(iface.getClassLoader(), new Class<?>[]{iface}, handler));
+	}
+
+	private static CallSite bind(PyroProxy proxy, Method m) throws IOException {
+		String name = m.getName();
+		if(proxy.pyroAttrs.contains(name))
+			throw new PyroException("cannot call an attribute: " + name);
+		if(!proxy.hasRemoteMethod(name))
+			throw new PyroException(String.format("remote object '%s' has no exposed attribute or method '%s'", proxy.objectid, name));
+		int flags = 0;
+		Class<?> type = m.getReturnType();
+		if(proxy.pyroOneway.contains(name)) {
+			if(type!=void.class)
+				throw new PyroException("oneway method " + name + " must return void");
+			flags |= Message.FLAGS_ONEWAY;
+		}
+		boolean throwsIOException = false;
+		for(Class<?> x: m.getExceptionTypes()) {
+			if(x.isAssignableFrom(IOException.class))
+				throwsIOException = true;
+		}
+		return new CallSite(name, flags, resultKind(type), type, throwsIOException);
+	}
+
+	private static int resultKind(Class<?> type) {
+		if(type==void.class)
+			return RESULT_VOID;
+		if(type==Object.class)
+			return RESULT_OBJECT;
+		if(type==int.class || type==Integer.class)
+			return RESULT_INT;
+		if(type==long.class || type==Long.class)
+			return RESULT_LONG;
+		if(type==double.class || type==Double.class)
+			return RESULT_DOUBLE;
+		if(type==float.class || type==Float.class)
+			return RESULT_FLOAT;
+		if(type==short.class || type==Short.class)
+			return RESULT_SHORT;
+		if(type==byte.class || type==Byte.class)
+			return RESULT_BYTE;
+		if(type==List.class)
+			return RESULT_LIST;
+		return RESULT_CAST;
+	}
+
+	public Object invoke(Object self, Method method, Object[] args) throws Throwable {
+		CallSite site = identitySites.get(method);
+		if(site==null) {
+			site = sites.get(method);
+			if(site==null)
+				return objectMethod(self, method, args);
+			IdentityHashMap<Method, CallSite> copy = new IdentityHashMap<Method, CallSite>(identitySites);
+			copy.put(method, site);
+			identitySites = copy;
+		}
+		Object result;
+		try {
+			result = proxy.typed_call(site.method, site.flags, args);
+		} catch (IOException x) {
+			if(site.throwsIOException)
+				throw x;
+			throw new PyroException("I/O error in call of " + site.method, x);
+		}
+		return convert(site, result);
+	}
+
+	private static Object convert(CallSite site, Object result) {
+		switch(site.result) {
+			case RESULT_VOID:
+				return null;
+			case RESULT_OBJECT:
+				return result;
+			case RESULT_LIST:
+				if(result instanceof Object[])
+					return Arrays.asList((Object[]) result);		// a tuple
+				break;
+			default:
+				if(result instanceof Number) {
+					Number n = (Number) result;
+					switch(site.result) {
+						case RESULT_INT: return n.intValue();
+						case RESULT_LONG: return n.longValue();
+						case RESULT_DOUBLE: return n.doubleValue();
+						case RESULT_FLOAT: return n.floatValue();
+						case RESULT_SHORT: return n.shortValue();
+						case RESULT_BYTE: return n.byteValue();
+						default: break;
+					}
+				}
+				break;
+		}
+		if(result==null) {
+			if(site.primitive)
+				throw new PyroException("method " + site.method + " returned None instead of a " + site.resultType.getName());
+			return null;
+		}
+		if(site.result==RESULT_CAST && site.resultType.isInstance(result))
+			return result;
+		if(site.result==RESULT_LIST && result instanceof List)
+			return result;
+		throw new PyroException("method " + site.method + " returned a " + result.getClass().getName() + " instead of a " + site.resultType.getName());
+	}
+
+	private Object objectMethod(Object self, Method method, Object[] args) {
+		String name = method.getName();
+		if(name.equals("equals") && args!=null && args.length==1)
+			return self==args[0];
+		if(name.equals("hashCode") && args==null)
+			return System.identityHashCode(self);
+		if(name.equals("toString") && args==null)
+			return "<typed proxy " + iface.getName() + " for " + proxy.objectid + ">";
+		throw new UnsupportedOperationException(method.toString());
+	}
+}
@@ -0,0 +1,85 @@
+package net.razorvine.pyro;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Unix domain sockets (Java 16+), used for uris of the form PYRO:objectid@./u:sockname.
+ * Pyro daemons on the same host can listen on a Unix domain socket, which has less per-call overhead than TCP over loopback.
+ * On older JVMs, connecting to such a uri fails with an UnsupportedOperationException.
+ */
+public final class UnixSockets {
+
+	private static final ProtocolFamily unixFamily;
+	private static final Method addressOf;
+	private static final Method openChannel;
+
+	static {
+		ProtocolFamily family = null;
+		Method of = null, open = null;
+		try {
+			family = StandardProtocolFamily.valueOf("UNIX");
+			of = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class);
+			open = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+		} catch (IllegalArgumentException x) {
+			family = null;	// no unix domain sockets in this JVM
+		} catch (ReflectiveOperationException x) {
+			family = null;
+		}
+		unixFamily = family;
+		addressOf = of;
+		openChannel = open;
+	}
+
+	private UnixSockets() {
+	}
+
+	/**
+	 * Does this JVM support Unix domain socket channels?
+	 */
+	public static boolean available() {
+		return unixFamily!=null;
+	}
+
+	/**
+	 * The socket address of the given socket file.
+	 */
+	public static SocketAddress address(String sockname) {
+		check();
+		try {
+			return (SocketAddress) addressOf.invoke(null, sockname);
+		} catch (InvocationTargetException x) {
+			if(x.getCause() instanceof RuntimeException)
+				throw (RuntimeException) x.getCause();
+			throw new UnsupportedOperationException(x.getCause());
+		} catch (IllegalAccessException x) {
+			throw new UnsupportedOperationException(x);
+		}
+	}
+
+	/**
+	 * Open a new, unconnected, Unix domain socket channel.
+	 */
+	public static SocketChannel openChannel() throws IOException {
+		check();
+		try {
+			return (SocketChannel) openChannel.invoke(null, unixFamily);
+		} catch (InvocationTargetException x) {
+			if(x.getCause() instanceof IOException)
+				throw (IOException) x.getCause();
+			throw new UnsupportedOperationException(x.getCause());
+		} catch (IllegalAccessException x) {
+			throw new UnsupportedOperationException(x);
+		}
+	}
+
+	private static void check() {
+		if(unixFamily==null)
+			throw new UnsupportedOperationException("unix domain sockets require Java 16 or newer");
+	}
+}
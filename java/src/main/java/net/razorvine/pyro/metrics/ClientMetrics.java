@@ -0,0 +1,127 @@
+package net.razorvine.pyro.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A metrics listener that aggregates everything in memory: latency histograms per remote method,
+ * byte counters, serialization timings, the number of calls in progress, and remote exception counts.
+ * Usage: <code>ClientMetrics m = new ClientMetrics(); Metrics.addListener(m); ... System.out.println(m.report());</code>
+ */
+public class ClientMetrics implements MetricsListener {
+
+	public final LatencyHistogram connectTime = new LatencyHistogram();
+	public final LatencyHistogram handshakeTime = new LatencyHistogram();
+	public final LatencyHistogram serializeTime = new LatencyHistogram();
+	public final LatencyHistogram deserializeTime = new LatencyHistogram();
+	public final LatencyHistogram receiveTime = new LatencyHistogram();
+	public final LongAdder requestPayloadBytes = new LongAdder();
+	public final LongAdder requestWireBytes = new LongAdder();
+	public final LongAdder responsePayloadBytes = new LongAdder();
+	public final LongAdder responseWireBytes = new LongAdder();
+	public final LongAdder failedCalls = new LongAdder();
+
+	private final ConcurrentHashMap<String, LatencyHistogram> callLatencies = new ConcurrentHashMap<String, LatencyHistogram>();
+	private final ConcurrentHashMap<String, LongAdder> remoteExceptions = new ConcurrentHashMap<String, LongAdder>();
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	/**
+	 * The call latency histogram of the given method ("objectid.method").
+	 */
+	public LatencyHistogram callLatency(String objectId, String method) {
+		String key = objectId + "." + method;
+		LatencyHistogram histogram = callLatencies.get(key);
+		if(histogram==null) {
+			LatencyHistogram existing = callLatencies.putIfAbsent(key, histogram = new LatencyHistogram());
+			if(existing!=null)
+				histogram = existing;
+		}
+		return histogram;
+	}
+
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * Number of remote exceptions per Python exception type.
+	 */
+	public Map<String, Long> getRemoteExceptionCounts() {
+		Map<String, Long> result = new TreeMap<String, Long>();
+		for(Map.Entry<String, LongAdder> entry: remoteExceptions.entrySet())
+			result.put(entry.getKey(), entry.getValue().sum());
+		return result;
+	}
+
+	public void connected(String host, int port, long connectNanos, long handshakeNanos) {
+		connectTime.record(connectNanos);
+		handshakeTime.record(handshakeNanos);
+	}
+
+	public void callStarted(String objectId, String method) {
+		inFlight.incrementAndGet();
+	}
+
+	public void callCompleted(String objectId, String method, long nanos, Throwable error) {
+		inFlight.decrementAndGet();
+		callLatency(objectId, method).record(nanos);
+		if(error!=null)
+			failedCalls.increment();
+	}
+
+	public void serialized(long nanos, long bytes) {
+		serializeTime.record(nanos);
+	}
+
+	public void deserialized(long nanos, long bytes) {
+		deserializeTime.record(nanos);
+	}
+
+	public void requestSent(long payloadBytes, long wireBytes) {
+		requestPayloadBytes.add(payloadBytes);
+		requestWireBytes.add(wireBytes);
+	}
+
+	public void responseReceived(long wireBytes, long payloadBytes) {
+		responseWireBytes.add(wireBytes);
+		responsePayloadBytes.add(payloadBytes);
+	}
+
+	public void messageReceived(int msgType, long wireBytes, long nanos) {
+		receiveTime.record(nanos);
+	}
+
+	public void remoteException(String pythonExceptionType) {
+		String key = pythonExceptionType==null ? "?" : pythonExceptionType;
+		LongAdder counter = remoteExceptions.get(key);
+		if(counter==null) {
+			LongAdder existing = remoteExceptions.putIfAbsent(key, counter = new LongAdder());
+			if(existing!=null)
+				counter = existing;
+		}
+		counter.increment();
+	}
+
+	/**
+	 * Human readable report of all metrics, times are in milliseconds.
+	 */
+	public String report() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("calls in flight: ").append(inFlight.get()).append(", failed calls: ").append(failedCalls.sum()).append('\n');
+		for(Map.Entry<String, LatencyHistogram> entry: new TreeMap<String, LatencyHistogram>(callLatencies).entrySet())
+			sb.append("call ").append(entry.getKey()).append(": ").append(entry.getValue().summary(1e6)).append('\n');
+		sb.append("connect: ").append(connectTime.summary(1e6)).append('\n');
+		sb.append("handshake: ").append(handshakeTime.summary(1e6)).append('\n');
+		sb.append("serialize: ").append(serializeTime.summary(1e6)).append('\n');
+		sb.append("deserialize: ").append(deserializeTime.summary(1e6)).append('\n');
+		sb.append("receive: ").append(receiveTime.summary(1e6)).append('\n');
+		sb.append(String.format("request bytes: payload=%d wire=%d, response bytes: wire=%d payload=%d%n",
+				requestPayloadBytes.sum(), requestWireBytes.sum(), responseWireBytes.sum(), responsePayloadBytes.sum()));
+		for(Map.Entry<String, Long> entry: getRemoteExceptionCounts().entrySet())
+			sb.append("remote exception ").append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+		return sb.toString();
+	}
+}
@@ -0,0 +1,105 @@
+package net.razorvine.pyro.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of non-negative long values (typically durations in nanoseconds) with a fixed memory footprint,
+ * in the style of HdrHistogram: every power of two range is split in 32 linear sub-buckets,
+ * so the recorded values are kept with a relative precision of about 3% over the whole long range.
+ * Recording is lock free and can be done concurrently from many threads.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1<<SUB_BUCKET_BITS;
+	private static final int BUCKETS = SUB_BUCKETS + (63-SUB_BUCKET_BITS)*SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long value) {
+		if(value<0)
+			value = 0;
+		counts.incrementAndGet(indexFor(value));
+		count.increment();
+		sum.add(value);
+		long currentMax = max.get();
+		while(value>currentMax && !max.compareAndSet(currentMax, value))
+			currentMax = max.get();
+	}
+
+	static int indexFor(long value) {
+		if(value<SUB_BUCKETS)
+			return (int) value;
+		int exponent = 63-Long.numberOfLeadingZeros(value);
+		int shift = exponent-SUB_BUCKET_BITS;
+		int sub = (int) (value>>>shift) - SUB_BUCKETS;
+		return SUB_BUCKETS + shift*SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * The highest value that ends up in the bucket with the given index.
+	 */
+	static long highestValueAt(int index) {
+		if(index<SUB_BUCKETS)
+			return index;
+		int shift = (index-SUB_BUCKETS)/SUB_BUCKETS;
+		long sub = (index-SUB_BUCKETS)%SUB_BUCKETS;
+		long lowest = (SUB_BUCKETS+sub)<<shift;
+		return lowest + (1L<<shift) - 1;
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long n = count.sum();
+		return n==0 ? 0.0 : (double) sum.sum()/n;
+	}
+
+	/**
+	 * The value below which the given percentage (0-100) of the recorded values fall.
+	 * The result is the upper bound of the bucket that contains that value, but never more than the maximum.
+	 */
+	public long getPercentile(double percentile) {
+		long total = 0;
+		for(int i=0; i<BUCKETS; ++i)
+			total += counts.get(i);
+		if(total==0)
+			return 0;
+		long target = Math.max(1, (long) Math.ceil(percentile/100.0*total));
+		long cumulative = 0;
+		for(int i=0; i<BUCKETS; ++i) {
+			cumulative += counts.get(i);
+			if(cumulative>=target)
+				return Math.min(highestValueAt(i), max.get());
+		}
+		return max.get();
+	}
+
+	public void reset() {
+		for(int i=0; i<BUCKETS; ++i)
+			counts.set(i, 0);
+		count.reset();
+		sum.reset();
+		max.set(0);
+	}
+
+	/**
+	 * Summary of the distribution, with the values divided by the given unit (for instance 1000000 for nanos to millis).
+	 */
+	public String summary(double unit) {
+		return String.format("count=%d mean=%.3f p50=%.3f p90=%.3f p99=%.3f p999=%.3f max=%.3f",
+				getCount(), getMean()/unit, getPercentile(50)/unit, getPercentile(90)/unit,
+				getPercentile(99)/unit, getPercentile(99.9)/unit, getMax()/unit);
+	}
+}
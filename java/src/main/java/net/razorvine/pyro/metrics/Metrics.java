@@ -0,0 +1,86 @@
+package net.razorvine.pyro.metrics;
+
+import java.util.Arrays;
+
+/**
+ * The registry of metrics listeners, and the entry points that Pyrolite uses to report its measurements.
+ * When no listener is registered, no measurements are made at all.
+ */
+public final class Metrics {
+
+	private static volatile MetricsListener[] listeners = new MetricsListener[0];
+
+	private Metrics() {
+	}
+
+	public static synchronized void addListener(MetricsListener listener) {
+		MetricsListener[] updated = Arrays.copyOf(listeners, listeners.length+1);
+		updated[listeners.length] = listener;
+		listeners = updated;
+	}
+
+	public static synchronized void removeListener(MetricsListener listener) {
+		MetricsListener[] current = listeners;
+		for(int i=0; i<current.length; ++i) {
+			if(current[i]==listener) {
+				MetricsListener[] updated = new MetricsListener[current.length-1];
+				System.arraycopy(current, 0, updated, 0, i);
+				System.arraycopy(current, i+1, updated, i, current.length-i-1);
+				listeners = updated;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Are there any listeners? If not, the measurements can be skipped.
+	 */
+	public static boolean isEnabled() {
+		return listeners.length>0;
+	}
+
+	public static void connected(String host, int port, long connectNanos, long handshakeNanos) {
+		for(MetricsListener l: listeners)
+			l.connected(host, port, connectNanos, handshakeNanos);
+	}
+
+	public static void callStarted(String objectId, String method) {
+		for(MetricsListener l: listeners)
+			l.callStarted(objectId, method);
+	}
+
+	public static void callCompleted(String objectId, String method, long nanos, Throwable error) {
+		for(MetricsListener l: listeners)
+			l.callCompleted(objectId, method, nanos, error);
+	}
+
+	public static void serialized(long nanos, long bytes) {
+		for(MetricsListener l: listeners)
+			l.serialized(nanos, bytes);
+	}
+
+	public static void deserialized(long nanos, long bytes) {
+		for(MetricsListener l: listeners)
+			l.deserialized(nanos, bytes);
+	}
+
+	public static void requestSent(long payloadBytes, long wireBytes) {
+		for(MetricsListener l: listeners)
+			l.requestSent(payloadBytes, wireBytes);
+	}
+
+	public static void responseReceived(long wireBytes, long payloadBytes) {
+		for(MetricsListener l: listeners)
+			l.responseReceived(wireBytes, payloadBytes);
+	}
+
+	public static void messageReceived(int msgType, long wireBytes, long nanos) {
+		for(MetricsListener l: listeners)
+			l.messageReceived(msgType, wireBytes, nanos);
+	}
+
+	public static void remoteException(String pythonExceptionType) {
+		for(MetricsListener l: listeners)
+			l.remoteException(pythonExceptionType);
+	}
+}
@@ -0,0 +1,73 @@
+package net.razorvine.pyro.metrics;
+
+/**
+ * Receives the measurements done by Pyrolite while it talks to Pyro daemons.
+ * All methods have an empty default implementation, so you only need to override the ones you're interested in.
+ * The methods are called on the thread that does the work, so they should be quick and thread safe.
+ * Durations are in nanoseconds. Register a listener with {@link Metrics#addListener(MetricsListener)}.
+ */
+public interface MetricsListener {
+
+	/**
+	 * A proxy made a new connection to a daemon.
+	 * @param connectNanos time it took to establish the network connection
+	 * @param handshakeNanos time it took to do the Pyro connection handshake
+	 */
+	default void connected(String host, int port, long connectNanos, long handshakeNanos) {
+	}
+
+	/**
+	 * A call to a remote method is about to start.
+	 */
+	default void callStarted(String objectId, String method) {
+	}
+
+	/**
+	 * A call to a remote method is finished.
+	 * @param error the exception that the call failed with, or null if it succeeded
+	 */
+	default void callCompleted(String objectId, String method, long nanos, Throwable error) {
+	}
+
+	/**
+	 * The arguments of a call were serialized.
+	 */
+	default void serialized(long nanos, long bytes) {
+	}
+
+	/**
+	 * A result was deserialized.
+	 */
+	default void deserialized(long nanos, long bytes) {
+	}
+
+	/**
+	 * A request message was sent.
+	 * @param payloadBytes size of the serialized data
+	 * @param wireBytes size of the complete message on the wire (header, annotations, possibly compressed data)
+	 */
+	default void requestSent(long payloadBytes, long wireBytes) {
+	}
+
+	/**
+	 * A response message was received.
+	 * @param wireBytes size of the complete message on the wire (header, annotations, possibly compressed data)
+	 * @param payloadBytes size of the (decompressed) serialized data
+	 */
+	default void responseReceived(long wireBytes, long payloadBytes) {
+	}
+
+	/**
+	 * A message has been read from the network.
+	 * @param nanos time spent waiting for and reading the message
+	 */
+	default void messageReceived(int msgType, long wireBytes, long nanos) {
+	}
+
+	/**
+	 * A call resulted in an exception in the remote object.
+	 * @param pythonExceptionType the Python exception class, such as "builtins.ValueError" (can be null)
+	 */
+	default void remoteException(String pythonExceptionType) {
+	}
+}
@@ -0,0 +1,387 @@
+package net.razorvine.pyro.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.razorvine.pyro.Config;
+import net.razorvine.pyro.Message;
+import net.razorvine.pyro.MessageFramer;
+import net.razorvine.pyro.MetadataCache;
+import net.razorvine.pyro.PyroException;
+import net.razorvine.pyro.PyroURI;
+import net.razorvine.pyro.UnixSockets;
+import net.razorvine.pyro.serializer.PyroSerializer;
+
+/**
+ * Proxy for a remote Pyro object whose connection is driven by a PyroClientEngine.
+ * The call methods don't block: they serialize the call, queue the message for the I/O thread,
+ * and return a future that is completed when the response arrives.
+ * Multiple calls can be in progress at the same time; the daemon answers them in order.
+ * Compressed responses and remote exceptions are handled like PyroProxy does, and the engine can validate the handshake.
+ * Item streaming (remote generators) is not supported by this proxy: such a call fails with a PyroException, use PyroProxy for that.
+ * Response annotations are ignored.
+ */
+public class AsyncPyroProxy {
+
+	public final PyroURI uri;
+	public UUID correlation_id = null;		// per-proxy correlation id (need to set/update this yourself)
+	public Set<String> pyroMethods = Collections.emptySet();	// remote methods
+	public Set<String> pyroAttrs = Collections.emptySet();		// remote attributes
+	public Set<String> pyroOneway = Collections.emptySet();		// oneway methods
+
+	final CompletableFuture<AsyncPyroProxy> connected = new CompletableFuture<AsyncPyroProxy>();
+
+	private static final AtomicLong connectionIds = new AtomicLong(1L<<32);	// distinct from the PyroProxy connection ids in the message trace
+
+	private final PyroClientEngine engine;
+	private final PyroClientEngine.IoLoop loop;
+	private final Object handshake;
+	private final PyroClientEngine.HandshakeValidator validator;
+	private final long connectionId = connectionIds.incrementAndGet();
+	private final AtomicInteger sequence = new AtomicInteger();
+	private final ConcurrentHashMap<Integer, CompletableFuture<Object>> pending = new ConcurrentHashMap<Integer, CompletableFuture<Object>>();
+	private final ConcurrentLinkedQueue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+	private volatile boolean closed;
+
+	// only used on the I/O thread:
+	private SocketChannel channel;
+	private SelectionKey key;
+	private final MessageFramer framer = new MessageFramer();
+	private final ByteBuffer[] gather = new ByteBuffer[16];
+
+	AsyncPyroProxy(PyroClientEngine engine, PyroClientEngine.IoLoop loop, PyroURI uri, Object handshake, PyroClientEngine.HandshakeValidator validator) {
+		this.engine = engine;
+		this.loop = loop;
+		this.uri = uri;
+		this.handshake = handshake;
+		this.validator = validator;
+	}
+
+	/**
+	 * Call a method on the remote object.
+	 * The future completes with the result, or exceptionally with a PyroException (also for remote exceptions) or IOException.
+	 */
+	public CompletableFuture<Object> call(String method, Object... arguments) {
+		CompletableFuture<Object> result = new CompletableFuture<Object>();
+		int flags = 0;
+		if(pyroOneway.contains(method))
+			flags |= Message.FLAGS_ONEWAY;
+		send(method, flags, arguments, result);
+		return result;
+	}
+
+	/**
+	 * Call a method on the remote object, using Oneway call semantics: no response is sent.
+	 * The future completes when the call has been written to the connection.
+	 */
+	public CompletableFuture<Object> call_oneway(String method, Object... arguments) {
+		CompletableFuture<Object> result = new CompletableFuture<Object>();
+		send(method, Message.FLAGS_ONEWAY, arguments, result);
+		return result;
+	}
+
+	/**
+	 * Returns a sorted map with annotations to be sent with each message.
+	 */
+	public SortedMap<String, byte[]> annotations() {
+		return new TreeMap<String, byte[]>();
+	}
+
+	/**
+	 * Number of calls that are waiting for their response.
+	 */
+	public int pendingCalls() {
+		return pending.size();
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Close the connection. Calls that are still in progress fail with an IOException.
+	 */
+	public void close() {
+		closed = true;
+		loop.execute(new Runnable() {
+			public void run() {
+				fail(new IOException("connection closed"));
+			}
+		});
+	}
+
+	@Override
+	public String toString() {
+		return "<AsyncPyroProxy " + uri + ">";
+	}
+
+	private void send(String method, int flags, Object[] arguments, CompletableFuture<Object> result) {
+		try {
+			if(closed)
+				throw new IOException("connection closed");
+			if(pyroAttrs.contains(method))
+				throw new PyroException("cannot call an attribute");
+			if(!pyroMethods.contains(method))
+				throw new PyroException(String.format("remote object '%s' has no exposed attribute or method '%s'", uri.objectid, method));
+			if(correlation_id!=null)
+				flags |= Message.FLAGS_CORR_ID;
+			PyroSerializer ser = PyroSerializer.getSerpentSerializer();
+			byte[] data = ser.serializeCall(uri.objectid, method, arguments==null ? new Object[0] : arguments, Collections.<String, Object>emptyMap());
+			int seq = sequence.incrementAndGet() & 0xffff;
+			Message msg = new Message(Message.MSG_INVOKE, data, ser.getSerializerId(), flags, seq, annotations(), correlation_id);
+			boolean oneway = (flags & Message.FLAGS_ONEWAY)!=0;
+			if(!oneway) {
+				if(pending.putIfAbsent(seq, result)!=null)
+					throw new PyroException("too many calls in progress on this connection");
+				if(closed && pending.remove(seq, result))
+					throw new IOException("connection closed");
+			}
+			enqueue(msg);
+			if(oneway)
+				result.complete(null);
+		} catch (IOException | RuntimeException x) {
+			result.completeExceptionally(x);
+		}
+	}
+
+	private void enqueue(Message msg) {
+		writeQueue.add(ByteBuffer.wrap(msg.to_bytes()));
+		if(Config.MSG_TRACE_DIR!=null)
+			Message.TraceMessageSend(connectionId, msg.get_header_bytes(), msg.get_annotations_bytes(), msg.data);
+		if(flushScheduled.compareAndSet(false, true)) {
+			loop.execute(new Runnable() {
+				public void run() {
+					flushScheduled.set(false);
+					try {
+						flush();
+					} catch (IOException x) {
+						fail(x);
+					}
+				}
+			});
+		}
+	}
+
+	void start(final SocketAddress address) {
+		loop.execute(new Runnable() {
+			public void run() {
+				try {
+					if(closed)
+						throw new IOException("connection closed");
+					if(address instanceof InetSocketAddress) {
+						if(((InetSocketAddress) address).isUnresolved())
+							throw new IOException("unknown host: " + ((InetSocketAddress) address).getHostString());
+						channel = SocketChannel.open();
+						channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+						channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+					} else {
+						channel = UnixSockets.openChannel();
+					}
+					channel.configureBlocking(false);
+					if(channel.connect(address)) {
+						key = channel.register(loop.selector, SelectionKey.OP_READ, AsyncPyroProxy.this);
+						sendHandshake();
+					} else {
+						key = channel.register(loop.selector, SelectionKey.OP_CONNECT, AsyncPyroProxy.this);
+					}
+				} catch (IOException | RuntimeException x) {
+					fail(x);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Called by the I/O thread when the channel is ready.
+	 */
+	void handle(SelectionKey key) {
+		try {
+			if(key.isValid() && key.isConnectable()) {
+				channel.finishConnect();
+				key.interestOps(SelectionKey.OP_READ);
+				sendHandshake();
+			}
+			if(key.isValid() && key.isReadable())
+				read();
+			if(key.isValid() && key.isWritable())
+				flush();
+		} catch (IOException | RuntimeException x) {
+			fail(x);
+		}
+	}
+
+	private void sendHandshake() throws IOException {
+		PyroSerializer ser = PyroSerializer.getSerpentSerializer();
+		Map<String, Object> handshakedata = new HashMap<String, Object>();
+		handshakedata.put("handshake", handshake);
+		handshakedata.put("object", uri.objectid);
+		int flags = correlation_id!=null ? Message.FLAGS_CORR_ID : 0;
+		enqueue(new Message(Message.MSG_CONNECT, ser.serializeData(handshakedata), ser.getSerializerId(), flags, 0, annotations(), correlation_id));
+	}
+
+	/**
+	 * Write as much of the queued messages as the socket accepts, with a gathering write.
+	 * If not everything could be written, wait for OP_WRITE.
+	 */
+	private void flush() throws IOException {
+		if(channel==null || !channel.isConnected())
+			return;		// the handshake is queued before the connection completes, it will be flushed then
+		while(true) {
+			int count = 0;
+			for(ByteBuffer buffer: writeQueue) {
+				gather[count++] = buffer;
+				if(count==gather.length)
+					break;
+			}
+			if(count==0)
+				break;
+			channel.write(gather, 0, count);
+			for(int i=0; i<count; ++i) {
+				if(gather[i].hasRemaining())
+					break;
+				writeQueue.poll();
+			}
+			boolean incomplete = gather[count-1].hasRemaining();
+			Arrays.fill(gather, 0, count, null);
+			if(incomplete) {
+				key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				return;
+			}
+		}
+		if((key.interestOps() & SelectionKey.OP_WRITE)!=0)
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+	}
+
+	/**
+	 * Read what is available and cut it into messages. A message can arrive in any number of pieces.
+	 */
+	private void read() throws IOException {
+		ByteBuffer buffer = loop.readBuffer;
+		while(true) {
+			buffer.clear();
+			int count = channel.read(buffer);
+			if(count<0)
+				throw new IOException("connection closed by the daemon");
+			if(count==0)
+				return;
+			buffer.flip();
+			Message msg;
+			while((msg=framer.next(buffer))!=null)
+				received(msg);
+		}
+	}
+
+	private void received(Message msg) throws IOException {
+		if(Config.MSG_TRACE_DIR!=null)
+			Message.TraceMessageRecv(connectionId, msg.get_header_bytes(), msg.get_annotations_bytes(), msg.data);
+
+		if(!connected.isDone()) {
+			handshakeResponse(msg);
+			return;
+		}
+		if(msg.type!=Message.MSG_RESULT)
+			throw new PyroException("invalid msg type "+msg.type+" received");
+		final CompletableFuture<Object> future = pending.remove(msg.seq);
+		if(future==null)
+			return;		// not waiting for this one (anymore)
+		final Message result = msg;
+		engine.complete(new Runnable() {
+			public void run() {
+				completeCall(future, result);
+			}
+		});
+	}
+
+	private void completeCall(CompletableFuture<Object> future, Message msg) {
+		try {
+			if((msg.flags & Message.FLAGS_ITEMSTREAMRESULT)!=0)
+				throw new PyroException("item streaming is not supported by the async proxy");
+			if((msg.flags & Message.FLAGS_COMPRESSED)!=0)
+				msg.decompress_data();
+			Object data = PyroSerializer.getFor(msg.serializer_id).deserializeData(msg.data);
+			if((msg.flags & Message.FLAGS_EXCEPTION)!=0) {
+				if(data instanceof PyroException)
+					throw (PyroException) data;
+				throw PyroException.fromRemote((Throwable) data);
+			}
+			future.complete(data);
+		} catch (IOException | RuntimeException x) {
+			future.completeExceptionally(x);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void handshakeResponse(Message msg) throws IOException {
+		if(msg.type!=Message.MSG_CONNECTOK && msg.type!=Message.MSG_CONNECTFAIL)
+			throw new PyroException("connect: invalid msg type "+msg.type+" received");
+		if((msg.flags & Message.FLAGS_COMPRESSED)!=0)
+			msg.decompress_data();
+		Object response;
+		try {
+			response = PyroSerializer.getFor(msg.serializer_id).deserializeData(msg.data);
+		} catch (Exception x) {
+			msg.type = Message.MSG_CONNECTFAIL;
+			response = "<not available because unsupported serialization format>";
+		}
+		if(msg.type==Message.MSG_CONNECTFAIL)
+			throw new PyroException("connection rejected, reason: "+response);
+		Map<String, Object> responseDict = (Map<String, Object>) response;
+		if(validator!=null)
+			validator.validateHandshake(responseDict.get("handshake"));
+		MetadataCache.Metadata metadata = MetadataCache.Metadata.fromDict((Map<String, Object>) responseDict.get("meta"));
+		if(Config.METADATA_CACHE) {
+			PyroURI cacheKey = new PyroURI(uri.objectid, uri.host, uri.port);
+			cacheKey.sockname = uri.sockname;
+			MetadataCache.getDefault().put(cacheKey, metadata);
+		}
+		pyroMethods = metadata.methods;		// unmodifiable, like the initial empty sets
+		pyroAttrs = metadata.attrs;
+		pyroOneway = metadata.oneways;
+		connected.complete(this);
+	}
+
+	/**
+	 * Close the connection because of the error, and fail everything that is waiting for it.
+	 */
+	void fail(Exception error) {
+		closed = true;
+		if(key!=null)
+			key.cancel();
+		if(channel!=null) {
+			try {
+				channel.close();
+			} catch (IOException x) {
+				// ignore
+			}
+		}
+		connected.completeExceptionally(error);
+		for(Integer seq: new HashSet<Integer>(pending.keySet())) {
+			CompletableFuture<Object> future = pending.remove(seq);
+			if(future!=null)
+				future.completeExceptionally(error);
+		}
+		writeQueue.clear();
+		engine.removed(this);
+	}
+}
@@ -0,0 +1,206 @@
+package net.razorvine.pyro.nio;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.razorvine.pyro.PyroURI;
+import net.razorvine.pyro.UnixSockets;
+
+/**
+ * Non-blocking client engine: a few I/O threads, each with its own Selector, serve the connections
+ * of any number of AsyncPyroProxy objects. The calls return CompletableFutures, and because the responses
+ * are matched by sequence number, many calls can be in flight on the same connection (pipelining).
+ * Use this instead of PyroProxy when you talk to a lot of daemons at once and don't want a blocked thread per connection.
+ *
+ * Usage: <code>engine = new PyroClientEngine(2); proxy = engine.connect(uri).get(); proxy.call("method", args).get();</code>
+ */
+public class PyroClientEngine implements Closeable {
+
+	/**
+	 * Where the results are deserialized and the futures are completed.
+	 * null (the default) means: on the I/O thread. Set an executor if the callbacks do a lot of work.
+	 */
+	public volatile Executor completionExecutor;
+
+	private final IoLoop[] loops;
+	private final AtomicInteger nextLoop = new AtomicInteger();
+	private final Set<AsyncPyroProxy> proxies = Collections.newSetFromMap(new ConcurrentHashMap<AsyncPyroProxy, Boolean>());
+	private volatile boolean closed;
+
+	/**
+	 * Create the engine and start the given number of I/O threads.
+	 */
+	public PyroClientEngine(int ioThreads) throws IOException {
+		if(ioThreads<1)
+			throw new IllegalArgumentException("need at least one I/O thread");
+		loops = new IoLoop[ioThreads];
+		for(int i=0; i<ioThreads; ++i) {
+			loops[i] = new IoLoop();
+			Thread thread = new Thread(loops[i], "pyro-nio-" + i);
+			thread.setDaemon(true);
+			loops[i].thread = thread;
+			thread.start();
+		}
+	}
+
+	/**
+	 * Connect to the daemon of the given uri and do the handshake. The future completes when the proxy is ready for calls.
+	 */
+	public CompletableFuture<AsyncPyroProxy> connect(PyroURI uri) {
+		return connect(uri, "hello");
+	}
+
+	/**
+	 * Connect to the daemon of the given uri and do the handshake with the given handshake data.
+	 */
+	public CompletableFuture<AsyncPyroProxy> connect(PyroURI uri, Object handshake) {
+		return connect(uri, handshake, null);
+	}
+
+	/**
+	 * Connect to the daemon of the given uri and do the handshake with the given handshake data.
+	 * The validator (can be null) checks the daemon's handshake response, the connection fails if it throws.
+	 */
+	public CompletableFuture<AsyncPyroProxy> connect(PyroURI uri, Object handshake, HandshakeValidator validator) {
+		if(closed || "PYROSSL".equals(uri.protocol)) {
+			CompletableFuture<AsyncPyroProxy> failed = new CompletableFuture<AsyncPyroProxy>();
+			failed.completeExceptionally(closed ? new IOException("engine is closed")
+					: new UnsupportedOperationException("PYROSSL is not supported by the nio engine, use PyroProxy"));
+			return failed;
+		}
+		IoLoop loop = loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+		AsyncPyroProxy proxy = new AsyncPyroProxy(this, loop, uri, handshake, validator);
+		proxies.add(proxy);
+		// resolving the host name can block, so do it here instead of on the I/O thread
+		try {
+			proxy.start(uri.sockname!=null ? UnixSockets.address(uri.sockname) : new InetSocketAddress(uri.host, uri.port));
+		} catch (RuntimeException x) {
+			proxy.fail(x);
+		}
+		return proxy.connected;
+	}
+
+	/**
+	 * Number of proxies that are connecting or connected.
+	 */
+	public int connectionCount() {
+		return proxies.size();
+	}
+
+	void removed(AsyncPyroProxy proxy) {
+		proxies.remove(proxy);
+	}
+
+	void complete(Runnable completion) {
+		Executor executor = completionExecutor;
+		if(executor==null)
+			completion.run();
+		else
+			executor.execute(completion);
+	}
+
+	/**
+	 * Close all connections and stop the I/O threads. Calls in progress fail with an IOException.
+	 */
+	public void close() {
+		closed = true;
+		for(AsyncPyroProxy proxy: proxies)
+			proxy.close();
+		for(IoLoop loop: loops)
+			loop.stop();
+	}
+
+	/**
+	 * Checks the handshake response of the daemon, like PyroProxy.validateHandshake. It is called on the I/O thread.
+	 */
+	public interface HandshakeValidator {
+		/**
+		 * Simply return without error if everything is ok.
+		 * Throw an IOException if something is wrong and the connection should not be made.
+		 */
+		void validateHandshake(Object response) throws IOException;
+	}
+
+	/**
+	 * An I/O thread with its selector. Everything that touches the channels and selection keys runs on this thread,
+	 * other threads hand over their work with execute().
+	 */
+	static final class IoLoop implements Runnable {
+		final Selector selector;
+		final ByteBuffer readBuffer = ByteBuffer.allocateDirect(65536);
+		private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		private volatile boolean running = true;
+		Thread thread;
+
+		IoLoop() throws IOException {
+			selector = Selector.open();
+		}
+
+		void execute(Runnable task) {
+			if(!running) {
+				task.run();		// the loop has stopped, everything is just being closed and failed now
+				return;
+			}
+			tasks.add(task);
+			if(Thread.currentThread()!=thread)
+				selector.wakeup();
+		}
+
+		boolean inLoop() {
+			return Thread.currentThread()==thread;
+		}
+
+		void stop() {
+			running = false;
+			selector.wakeup();
+		}
+
+		public void run() {
+			IOException error = null;
+			try {
+				while(running) {
+					// tasks that were added by this thread itself don't wake up the selector
+					if(tasks.isEmpty())
+						selector.select();
+					else
+						selector.selectNow();
+					Runnable task;
+					while((task=tasks.poll())!=null)
+						task.run();
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while(keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						((AsyncPyroProxy) key.attachment()).handle(key);
+					}
+				}
+			} catch (IOException x) {
+				error = x;		// the selector broke, the calls that are waiting on this loop get the reason
+			} finally {
+				running = false;
+				Runnable task;
+				while((task=tasks.poll())!=null)
+					task.run();
+				for(SelectionKey key: selector.keys())
+					((AsyncPyroProxy) key.attachment()).fail(error!=null ? error : new IOException("engine is closed"));
+				try {
+					selector.close();
+				} catch (IOException x) {
+					// ignore
+				}
+			}
+		}
+	}
+}
@@ -64,8 +64,11 @@ public class PyroProxySerpent implements IClassSerializer {
 			proxy.pyroOneway = oneways_set;
 		}
 
+		if(state[4]!=null)
+			proxy.pyroTimeout = ((Number) state[4]).doubleValue();
 		proxy.pyroHandshake = state[5];
-		// maxretries (state[6]) is not used/supported in pyrolite, so simply ignore it
+		if(state.length>6 && state[6]!=null)
+			proxy.pyroMaxRetries = ((Number) state[6]).intValue();
 
 		return proxy;
 	}
@@ -76,16 +79,19 @@ public class PyroProxySerpent implements IClassSerializer {
 		// uri, oneway set, methods set, attrs set, timeout, handshake, maxretries  (in this order)
 		PyroProxy proxy = (PyroProxy) obj;
 		Map<String, Object> dict = new HashMap<String, Object>();
-		String uri = String.format("PYRO:%s@%s:%d", proxy.objectid, proxy.hostname, proxy.port);
+		String protocol = proxy.ssl ? "PYROSSL" : "PYRO";
+		String uri = proxy.sockname!=null
+				? String.format("%s:%s@./u:%s", protocol, proxy.objectid, proxy.sockname)
+				: String.format("%s:%s@%s:%d", protocol, proxy.objectid, proxy.hostname, proxy.port);
 
 		dict.put("state", new Object[]{
 			uri,
 			proxy.pyroOneway,
 			proxy.pyroMethods,
 			proxy.pyroAttrs,
-			0.0,
+			proxy.pyroTimeout,
 			proxy.pyroHandshake,
-			0   // maxretries is not used/supported in pyrolite
+			proxy.pyroMaxRetries
 		});
 		dict.put("__class__", "Pyro5.client.Proxy");
 		return dict;
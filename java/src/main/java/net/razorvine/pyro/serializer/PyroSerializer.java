@@ -1,8 +1,10 @@
 package net.razorvine.pyro.serializer;
 
 import net.razorvine.pyro.PyroException;
+import net.razorvine.pyro.SegmentedBuffer;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Map;
 import java.util.Scanner;
 
@@ -17,6 +19,30 @@ public abstract class PyroSerializer
 	public abstract byte[] serializeData(Object obj) throws IOException;
 	public abstract Object deserializeData(byte[] data) throws IOException;
 
+	/**
+	 * Serialize a call into the stream, normally a SegmentedOutputStream so that large calls aren't held in one array.
+	 * This writes the result of serializeCall; override it if the serializer can write its output directly.
+	 */
+	public void serializeCall(String objectId, String method, Object[] vargs, Map<String, Object> kwargs, OutputStream out) throws IOException {
+		out.write(serializeCall(objectId, method, vargs, kwargs));
+	}
+
+	/**
+	 * Deserialize message data that was received in segments (because it is too large for a byte array).
+	 * This copies the segments into a single array, so it only works up to 2 Gb; override it if the format can be parsed in pieces.
+	 */
+	public Object deserializeData(SegmentedBuffer data) throws IOException {
+		return deserializeData(data.toByteArray());
+	}
+
+	/**
+	 * Does deserializeData(SegmentedBuffer) parse the segments where they are, instead of copying them?
+	 * Message.recv only spills large data to a memory mapped temp file (Config.SPILL_THRESHOLD) for serializers that do.
+	 */
+	public boolean deserializesSegments() {
+		return false;
+	}
+
 	protected static SerpentSerializer serpentSerializer;   // loaded if serpent.jar is available
 
 	public static PyroSerializer getSerpentSerializer()
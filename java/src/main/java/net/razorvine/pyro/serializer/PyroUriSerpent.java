@@ -1,5 +1,6 @@
 package net.razorvine.pyro.serializer;
 
+import net.razorvine.pyro.Config;
 import net.razorvine.pyro.PyroURI;
 import net.razorvine.serpent.IClassSerializer;
 
@@ -15,13 +16,16 @@ public class PyroUriSerpent implements IClassSerializer {
 
 	public static Object FromSerpentDict(Map<Object, Object> dict) {
 		Object[] state = (Object[])dict.get("state");  // protocol, objectid, socketname, hostname, port
-		return new PyroURI((String)state[1], (String)state[3], (Integer)state[4]);
+		PyroURI uri = new PyroURI((String)state[1], (String)state[3], state[4]==null ? 0 : (Integer)state[4]);
+		uri.protocol = (String)state[0];
+		uri.sockname = (String)state[2];
+		return Config.INTERN_URIS ? PyroURI.intern(uri) : uri;
 	}
 
 	public Map<String, Object> convert(Object obj) {
 		PyroURI uri = (PyroURI) obj;
 		Map<String, Object> dict = new HashMap<String, Object>();
-		dict.put("state", new Object[]{uri.protocol, uri.objectid, null, uri.host, uri.port});
+		dict.put("state", new Object[]{uri.protocol, uri.objectid, uri.sockname, uri.host, uri.sockname==null ? uri.port : null});
 		dict.put("__class__", "Pyro5.core.URI");
 		return dict;
 	}
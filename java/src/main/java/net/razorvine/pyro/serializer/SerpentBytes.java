@@ -0,0 +1,166 @@
+package net.razorvine.pyro.serializer;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+
+/**
+ * Base64 encoding and decoding of serpent's bytes dicts ({'data': '...', 'encoding': 'base64'}),
+ * without the intermediate strings, maps and arrays of serpent's generic path.
+ */
+final class SerpentBytes {
+
+	private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+	private static final int[] VALUES = new int[128];
+	private static final int BLOCK = 3072;		// bytes encoded per write, a multiple of 3 so only the last block is padded
+
+	static {
+		Arrays.fill(VALUES, -1);
+		for(int i=0; i<ALPHABET.length; ++i)
+			VALUES[ALPHABET[i]] = i;
+	}
+
+	private SerpentBytes() {
+	}
+
+	/**
+	 * Write the remaining bytes of the buffer as a serpent bytes dict, formatted like serpent's own dicts.
+	 * The buffer position isn't changed.
+	 */
+	static void write(ByteBuffer data, Writer out, boolean indent, int level) throws IOException {
+		if(indent) {
+			String spaces = indentation(level+1);
+			out.write("{\n");
+			out.write(spaces);
+			out.write("'data': '");
+			writeBase64(data, out);
+			out.write("',\n");
+			out.write(spaces);
+			out.write("'encoding': 'base64'\n");
+			out.write(indentation(level));
+			out.write("}");
+		} else {
+			out.write("{'data':'");
+			writeBase64(data, out);
+			out.write("','encoding':'base64'}");
+		}
+	}
+
+	private static String indentation(int level) {
+		char[] spaces = new char[level*2];
+		Arrays.fill(spaces, ' ');
+		return new String(spaces);
+	}
+
+	/**
+	 * Base64 encode the remaining bytes of the buffer straight into the writer, a block at a time.
+	 */
+	static void writeBase64(ByteBuffer data, Writer out) throws IOException {
+		ByteBuffer source = data.duplicate();
+		byte[] block = source.hasArray() ? null : new byte[Math.min(source.remaining(), BLOCK)];
+		char[] chars = new char[BLOCK/3*4];
+		while(source.hasRemaining()) {
+			int count = Math.min(source.remaining(), BLOCK);
+			if(block==null) {
+				int offset = source.arrayOffset()+source.position();
+				source.position(source.position()+count);
+				out.write(chars, 0, encode(source.array(), offset, count, chars));
+			} else {
+				source.get(block, 0, count);
+				out.write(chars, 0, encode(block, 0, count, chars));
+			}
+		}
+	}
+
+	private static int encode(byte[] bytes, int offset, int count, char[] chars) {
+		int end = offset+count;
+		int c = 0;
+		int i = offset;
+		for(; i+2<end; i+=3) {
+			int v = (bytes[i]&0xff)<<16 | (bytes[i+1]&0xff)<<8 | (bytes[i+2]&0xff);
+			chars[c++] = ALPHABET[v>>>18];
+			chars[c++] = ALPHABET[(v>>>12)&63];
+			chars[c++] = ALPHABET[(v>>>6)&63];
+			chars[c++] = ALPHABET[v&63];
+		}
+		if(i<end) {
+			boolean two = i+1<end;
+			int v = (bytes[i]&0xff)<<16 | (two ? (bytes[i+1]&0xff)<<8 : 0);
+			chars[c++] = ALPHABET[v>>>18];
+			chars[c++] = ALPHABET[(v>>>12)&63];
+			chars[c++] = two ? ALPHABET[(v>>>6)&63] : '=';
+			chars[c++] = '=';
+		}
+		return c;
+	}
+
+	/**
+	 * Decode base64 text into an array of the exact decoded size, without converting the text to bytes first.
+	 */
+	static byte[] decodeBase64(String text) {
+		int length = text.length();
+		if(length%4!=0)
+			throw new IllegalArgumentException("invalid base64 data");
+		int padding = 0;
+		if(length>0 && text.charAt(length-1)=='=')
+			padding = text.charAt(length-2)=='=' ? 2 : 1;
+		byte[] result = new byte[length/4*3-padding];
+		int r = 0;
+		int full = padding>0 ? length-4 : length;
+		for(int i=0; i<full; i+=4) {
+			int v = value(text, i)<<18 | value(text, i+1)<<12 | value(text, i+2)<<6 | value(text, i+3);
+			result[r++] = (byte) (v>>16);
+			result[r++] = (byte) (v>>8);
+			result[r++] = (byte) v;
+		}
+		if(padding>0) {
+			int v = value(text, full)<<18 | value(text, full+1)<<12;
+			result[r++] = (byte) (v>>16);
+			if(padding==1)
+				result[r] = (byte) ((v | value(text, full+2)<<6)>>8);
+		}
+		return result;
+	}
+
+	private static int value(String text, int index) {
+		char c = text.charAt(index);
+		int v = c<128 ? VALUES[c] : -1;
+		if(v<0)
+			throw new IllegalArgumentException("invalid base64 data");
+		return v;
+	}
+
+	/**
+	 * Is this a serpent bytes dict? Python's bytes, bytearray and memoryview are all serialized as one.
+	 */
+	static boolean isBytesDict(Map<?, ?> dict) {
+		return dict.size()==2 && "base64".equals(dict.get("encoding")) && dict.get("data") instanceof String;
+	}
+
+	/**
+	 * Replace the bytes dicts in the deserialized object graph by the decoded byte arrays.
+	 */
+	@SuppressWarnings("unchecked")
+	static Object decodeAll(Object obj) {
+		if(obj instanceof Map) {
+			Map<Object, Object> dict = (Map<Object, Object>) obj;
+			if(isBytesDict(dict))
+				return decodeBase64((String) dict.get("data"));
+			for(Map.Entry<Object, Object> entry: dict.entrySet())
+				entry.setValue(decodeAll(entry.getValue()));
+		} else if(obj instanceof List) {
+			ListIterator<Object> items = ((List<Object>) obj).listIterator();
+			while(items.hasNext())
+				items.set(decodeAll(items.next()));
+		} else if(obj instanceof Object[]) {
+			Object[] tuple = (Object[]) obj;
+			for(int i=0; i<tuple.length; ++i)
+				tuple[i] = decodeAll(tuple[i]);
+		}
+		return obj;
+	}
+}
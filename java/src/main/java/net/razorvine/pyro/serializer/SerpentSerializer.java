@@ -7,6 +7,10 @@ import net.razorvine.serpent.Serializer;
 import net.razorvine.serpent.ast.Ast;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.util.Map;
 
 public class SerpentSerializer extends PyroSerializer {
@@ -24,14 +28,24 @@ public class SerpentSerializer extends PyroSerializer {
 
 	@Override
 	public byte[] serializeCall(String objectId, String method, Object[] vargs, Map<String, Object> kwargs) throws IOException {
-		Serializer s = new Serializer(Config.SERPENT_INDENT, true);
+		Serializer s = new BytesSerializer(Config.SERPENT_INDENT);
 		Object[] invokeparams = new Object[] {objectId, method, vargs, kwargs};
 		return s.serialize(invokeparams);
 	}
 
+	/**
+	 * Serpent's output is encoded as UTF-8 straight into the stream, there is no intermediate string or array.
+	 */
+	@Override
+	public void serializeCall(String objectId, String method, Object[] vargs, Map<String, Object> kwargs, OutputStream out) throws IOException {
+		BytesSerializer s = new BytesSerializer(Config.SERPENT_INDENT);
+		Object[] invokeparams = new Object[] {objectId, method, vargs, kwargs};
+		s.serialize(invokeparams, out);
+	}
+
 	@Override
 	public byte[] serializeData(Object obj) throws IOException {
-		Serializer s = new Serializer(Config.SERPENT_INDENT, true);
+		Serializer s = new BytesSerializer(Config.SERPENT_INDENT);
 		return s.serialize(obj);
 	}
 
@@ -40,7 +54,58 @@ public class SerpentSerializer extends PyroSerializer {
 		Parser p = new Parser();
 		Ast ast = p.parse(data);
 		IDictToInstance dictConverter = new DictConverter();
-		return ast.getData(dictConverter);
+		Object result = ast.getData(dictConverter);
+		return Config.SERPENT_DECODE_BYTES ? SerpentBytes.decodeAll(result) : result;
+	}
+
+	/**
+	 * Serpent serializer that writes byte[] and ByteBuffer values as base64 straight into the output,
+	 * instead of via an encoded string and a dict that is then serialized as usual.
+	 * The output is identical to serpent's own.
+	 */
+	static class BytesSerializer extends Serializer
+	{
+		BytesSerializer(boolean indent) {
+			super(indent, true);
+		}
+
+		/**
+		 * Like serialize(Object), but writes to the stream.
+		 */
+		void serialize(Object obj, OutputStream out) throws IOException {
+			Utf8Writer writer = new Utf8Writer(out);
+			try {
+				writer.write("# serpent utf-8 python3.2\n");	// the header of serialize(Object), with set literals
+				serialize(obj, writer, 0);
+				writer.flush();
+			} catch (UncheckedIOException x) {
+				throw x.getCause();
+			}
+		}
+
+		@Override
+		protected void serialize(Object obj, StringWriter sw, int level) {
+			if(obj instanceof ByteBuffer)
+				writeBytes((ByteBuffer) obj, sw, level);
+			else
+				super.serialize(obj, sw, level);
+		}
+
+		@Override
+		protected void serialize_bytes(byte[] data, StringWriter sw, int level) {
+			if(bytesRepr)
+				super.serialize_bytes(data, sw, level);
+			else
+				writeBytes(ByteBuffer.wrap(data), sw, level);
+		}
+
+		private void writeBytes(ByteBuffer data, StringWriter sw, int level) {
+			try {
+				SerpentBytes.write(data, sw, indent, level);
+			} catch (IOException x) {
+				throw new PyroException("can't serialize bytes", x);	// a StringWriter doesn't throw
+			}
+		}
 	}
 
 	class DictConverter implements IDictToInstance
@@ -66,10 +131,12 @@ public class SerpentSerializer extends PyroSerializer {
 	 * Utility function to convert obj back to actual bytes if it is a serpent-encoded bytes dictionary
 	 * (a IDictionary with base-64 encoded 'data' in it and 'encoding'='base64').
 	 * If obj is already a byte array, return obj unmodified.
-	 * If it is something else, throw an IllegalArgumentException
-	 * (implementation used of net.razorvine.serpent.Parser)
+	 * If it is something else, throw an IllegalArgumentException.
+	 * The base64 data is decoded directly into an array of the right size.
 	 */
 	public static byte[] toBytes(Object obj) {
+		if(obj instanceof Map && SerpentBytes.isBytesDict((Map<?, ?>) obj))
+			return SerpentBytes.decodeBase64((String) ((Map<?, ?>) obj).get("data"));
 		return net.razorvine.serpent.Parser.toBytes(obj);
 	}
 }
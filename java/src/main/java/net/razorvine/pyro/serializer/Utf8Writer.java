@@ -0,0 +1,108 @@
+package net.razorvine.pyro.serializer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+
+/**
+ * Serpent's serializer writes to a StringWriter. This one encodes the text as UTF-8 straight into an output stream instead
+ * of collecting it in a StringBuffer, like String.getBytes would (unpaired surrogates become '?').
+ * Its own buffer stays empty, toString() doesn't return the text.
+ * IOExceptions of the stream are thrown as UncheckedIOException, because the StringWriter methods can't throw them.
+ */
+final class Utf8Writer extends StringWriter {
+
+	private final OutputStream out;
+	private final byte[] buffer = new byte[8192];
+	private int count;
+	private char highSurrogate;		// waiting for the low surrogate in the next write
+
+	Utf8Writer(OutputStream out) {
+		this.out = out;
+	}
+
+	@Override
+	public void write(int c) {
+		put((char) c);
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) {
+		for(int i=off; i<off+len; ++i)
+			put(cbuf[i]);
+	}
+
+	@Override
+	public void write(String str) {
+		write(str, 0, str.length());
+	}
+
+	@Override
+	public void write(String str, int off, int len) {
+		for(int i=off; i<off+len; ++i)
+			put(str.charAt(i));
+	}
+
+	private void put(char c) {
+		if(count>buffer.length-4)
+			drain();
+		if(highSurrogate!=0) {
+			char high = highSurrogate;
+			highSurrogate = 0;
+			if(Character.isLowSurrogate(c)) {
+				int cp = Character.toCodePoint(high, c);
+				buffer[count++] = (byte) (0xf0 | cp>>18);
+				buffer[count++] = (byte) (0x80 | (cp>>12 & 0x3f));
+				buffer[count++] = (byte) (0x80 | (cp>>6 & 0x3f));
+				buffer[count++] = (byte) (0x80 | (cp & 0x3f));
+				return;
+			}
+			buffer[count++] = '?';
+			if(count>buffer.length-4)
+				drain();
+		}
+		if(c<0x80) {
+			buffer[count++] = (byte) c;
+		} else if(c<0x800) {
+			buffer[count++] = (byte) (0xc0 | c>>6);
+			buffer[count++] = (byte) (0x80 | (c & 0x3f));
+		} else if(Character.isHighSurrogate(c)) {
+			highSurrogate = c;
+		} else if(Character.isLowSurrogate(c)) {
+			buffer[count++] = '?';
+		} else {
+			buffer[count++] = (byte) (0xe0 | c>>12);
+			buffer[count++] = (byte) (0x80 | (c>>6 & 0x3f));
+			buffer[count++] = (byte) (0x80 | (c & 0x3f));
+		}
+	}
+
+	private void drain() {
+		try {
+			out.write(buffer, 0, count);
+		} catch (IOException x) {
+			throw new UncheckedIOException(x);
+		}
+		count = 0;
+	}
+
+	/**
+	 * Write the buffered bytes to the stream; a high surrogate at the very end is written as '?'.
+	 */
+	@Override
+	public void flush() {
+		if(highSurrogate!=0) {
+			highSurrogate = 0;
+			if(count>buffer.length-4)
+				drain();
+			buffer[count++] = '?';
+		}
+		drain();
+	}
+
+	@Override
+	public void close() {
+		flush();
+	}
+}
@@ -0,0 +1,258 @@
+package net.razorvine.pyro.trace;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.razorvine.pyro.Config;
+import net.razorvine.pyro.Message;
+
+/**
+ * Asynchronous wire message tracer, active when Config.MSG_TRACE_DIR is set.
+ * The traced messages are put in an in-memory queue, so tracing doesn't do any I/O on the calling thread.
+ * A background thread drains the queue and appends the records to a binary log file in the trace directory.
+ * When a log file exceeds Config.MSG_TRACE_FILE_SIZE, the next file is started.
+ * The queue holds at most Config.MSG_TRACE_QUEUE_SIZE bytes: if the writer can't keep up, messages are dropped (and counted)
+ * instead of slowing down the calls. Message data larger than Config.MSG_TRACE_MAX_DATA_SIZE is cut off, and the data of
+ * segmented or spilled messages is not traced at all; such records are marked partial.
+ * If writing fails, the tracer stops and drops everything from then on (see isFailed and lastError).
+ * See TraceReader for the file format and to read it back.
+ */
+public class MessageTracer {
+
+	public static final byte DIRECTION_SEND = 'S';
+	public static final byte DIRECTION_RECV = 'R';
+
+	private static volatile MessageTracer instance;
+
+	public final File directory;
+	private final String configuredDirectory;	// Config.MSG_TRACE_DIR as it was, File normalizes the path
+	private final LinkedBlockingQueue<TraceRecord> queue = new LinkedBlockingQueue<TraceRecord>();
+	private final AtomicLong queuedBytes = new AtomicLong();
+	private final AtomicLong recordSequence = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final Thread writerThread;
+	private final String filePrefix;
+	private final Object flushLock = new Object();
+	private long flushedSequence;
+	private volatile boolean running = true;
+	private volatile Throwable error;
+	private FileChannel channel;
+	private long fileSize;
+	private int fileNumber;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(1<<20);
+
+	private MessageTracer(String directory) {
+		this.configuredDirectory = directory;
+		this.directory = new File(directory);
+		this.filePrefix = String.format("pyrotrace-%d-", System.currentTimeMillis());
+		writerThread = new Thread(new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		}, "pyro-message-tracer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	/**
+	 * Returns the tracer that writes into Config.MSG_TRACE_DIR (a new one is started if that directory has changed),
+	 * or null if tracing is not enabled.
+	 */
+	public static MessageTracer get() {
+		MessageTracer tracer = instance;
+		String dir = Config.MSG_TRACE_DIR;
+		if(tracer!=null && dir!=null && tracer.configuredDirectory.equals(dir))
+			return tracer;
+		return reconfigure(dir);
+	}
+
+	private static synchronized MessageTracer reconfigure(String dir) {
+		if(dir==null) {
+			if(instance!=null) {
+				instance.close();
+				instance = null;
+			}
+			return null;
+		}
+		if(instance==null || !instance.configuredDirectory.equals(dir)) {
+			if(instance!=null)
+				instance.close();
+			instance = new MessageTracer(dir);
+		}
+		return instance;
+	}
+
+	/**
+	 * Queue a message for tracing. Never blocks.
+	 * The data is null if it was received or sent in segments (or spilled to a file), then only the header and annotations are traced.
+	 * @return false if the message was dropped because the queue is full or the tracer has failed
+	 */
+	public boolean trace(long connectionId, byte direction, byte[] header, byte[] annotations, byte[] data) {
+		boolean partial = false;
+		if(data==null) {
+			partial = Message.from_header(header).get_data_size()>0;
+		} else if(data.length>Config.MSG_TRACE_MAX_DATA_SIZE) {
+			data = Arrays.copyOf(data, Config.MSG_TRACE_MAX_DATA_SIZE);
+			partial = true;
+		}
+		TraceRecord record = new TraceRecord(recordSequence.incrementAndGet(), System.currentTimeMillis(), connectionId, direction, header, annotations, data, partial);
+		int size = record.encodedSize();
+		if(running) {
+			if(queuedBytes.addAndGet(size)<=Config.MSG_TRACE_QUEUE_SIZE) {
+				queue.add(record);
+				return true;
+			}
+			queuedBytes.addAndGet(-size);
+		}
+		dropped.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Number of messages that were not traced because the queue was full.
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Did writing the trace fail? Then the tracer has stopped, and all messages are dropped.
+	 */
+	public boolean isFailed() {
+		return error!=null;
+	}
+
+	/**
+	 * The error that stopped the tracer, or null if it hasn't failed.
+	 */
+	public Throwable lastError() {
+		return error;
+	}
+
+	/**
+	 * Wait until everything that was queued so far has been written to the trace file.
+	 * Returns early if the tracer is closed or has failed.
+	 */
+	public void flush() throws InterruptedException {
+		long target = recordSequence.get();
+		synchronized (flushLock) {
+			while(flushedSequence<target && running && writerThread.isAlive())
+				flushLock.wait(100);
+		}
+	}
+
+	/**
+	 * Write the remaining queued messages and close the trace file.
+	 */
+	public void close() {
+		try {
+			flush();
+		} catch (InterruptedException x) {
+			Thread.currentThread().interrupt();
+		}
+		running = false;
+		writerThread.interrupt();
+		try {
+			writerThread.join(1000);
+		} catch (InterruptedException x) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void writeLoop() {
+		List<TraceRecord> batch = new ArrayList<TraceRecord>();
+		try {
+			while(running || !queue.isEmpty()) {
+				long queued = recordSequence.get();
+				TraceRecord record;
+				try {
+					record = queue.poll(100, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException x) {
+					record = queue.poll();
+				}
+				if(record==null) {
+					// idle: everything before this point has been written or was dropped
+					synchronized (flushLock) {
+						flushedSequence = Math.max(flushedSequence, queued);
+						flushLock.notifyAll();
+					}
+					continue;
+				}
+				batch.add(record);
+				queue.drainTo(batch);
+				long last = 0;
+				for(TraceRecord r: batch) {
+					write(r);
+					queuedBytes.addAndGet(-r.encodedSize());
+					last = r.sequence;
+				}
+				batch.clear();
+				writeBuffer();
+				synchronized (flushLock) {
+					flushedSequence = Math.max(flushedSequence, last);
+					flushLock.notifyAll();
+				}
+			}
+		} catch (Throwable x) {
+			error = x;
+		} finally {
+			running = false;
+			queue.clear();
+			try {
+				if(channel!=null)
+					channel.close();
+			} catch (IOException x) {
+				// ignore
+			}
+			synchronized (flushLock) {
+				flushLock.notifyAll();
+			}
+		}
+	}
+
+	private void write(TraceRecord record) throws IOException {
+		int size = record.encodedSize();
+		if(channel==null || fileSize+size > Config.MSG_TRACE_FILE_SIZE && fileSize>TraceReader.FILE_HEADER_SIZE)
+			nextFile();
+		if(size > buffer.capacity()) {
+			writeBuffer();
+			ByteBuffer encoded = record.encode();
+			while(encoded.hasRemaining())
+				channel.write(encoded);
+		} else {
+			if(size > buffer.remaining())
+				writeBuffer();
+			record.encodeInto(buffer);
+		}
+		fileSize += size;
+	}
+
+	private void writeBuffer() throws IOException {
+		buffer.flip();
+		while(buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	private void nextFile() throws IOException {
+		if(channel!=null) {
+			writeBuffer();
+			channel.close();
+		}
+		fileNumber++;
+		File file = new File(directory, String.format("%s%04d%s", filePrefix, fileNumber, TraceReader.FILE_EXTENSION));
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		buffer.put(TraceReader.FILE_MAGIC);
+		buffer.putInt(TraceReader.FILE_VERSION);
+		fileSize = TraceReader.FILE_HEADER_SIZE;
+	}
+}
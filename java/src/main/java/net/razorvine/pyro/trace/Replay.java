@@ -0,0 +1,263 @@
+package net.razorvine.pyro.trace;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.razorvine.pyro.Config;
+import net.razorvine.pyro.Message;
+import net.razorvine.pyro.PyroException;
+import net.razorvine.pyro.metrics.LatencyHistogram;
+import net.razorvine.pyro.serializer.PyroSerializer;
+
+/**
+ * Replays captured requests against a Pyro daemon, for load testing and performance tuning.
+ * The requests are the sent MSG_INVOKE messages from the binary trace files written by the MessageTracer,
+ * or from the older per-message .dat files in a trace directory.
+ * The messages are sent exactly as they were captured (same serializer, annotations and payload), only the sequence
+ * numbers are rewritten for the replay connections. Every replay connection does its own handshake first.
+ *
+ * Usage: <code>Replay &lt;tracefile or directory&gt; &lt;host&gt; &lt;port&gt; [-rate N] [-concurrency N] [-iterations N]</code>
+ *
+ * With a rate set, the requests are scheduled at fixed intervals and the latency is measured from the scheduled
+ * time, so a slow daemon also shows up as latency of the requests that had to wait (no coordinated omission).
+ */
+public class Replay {
+
+	public String host;
+	public int port;
+	public double rate = 0;			// requests per second over all connections, 0 = as fast as possible
+	public int concurrency = 1;		// number of connections, each with its own thread
+	public int iterations = 1;		// how many times the captured requests are replayed
+	public int timeout = 10000;		// socket timeout in milliseconds
+
+	private final List<Message> requests;
+
+	public Replay(List<Message> requests, String host, int port) {
+		if(requests.isEmpty())
+			throw new IllegalArgumentException("no requests to replay");
+		this.requests = requests;
+		this.host = host;
+		this.port = port;
+	}
+
+	/**
+	 * The outcome of a replay run.
+	 */
+	public static class Result {
+		public final LatencyHistogram latency = new LatencyHistogram();			// nanoseconds per request
+		public final LatencyHistogram throughput = new LatencyHistogram();		// completed requests per second
+		public final LongAdder completed = new LongAdder();
+		public final LongAdder failed = new LongAdder();
+		public final Queue<Exception> connectionErrors = new ConcurrentLinkedQueue<Exception>();	// why replay connections stopped early
+		public long elapsedNanos;
+		private final Map<Long, LongAdder> perSecond = new ConcurrentHashMap<Long, LongAdder>();
+
+		void completed(long startNanos, long latencyNanos) {
+			completed.increment();
+			latency.record(latencyNanos);
+			Long second = (System.nanoTime() - startNanos) / 1000000000L;
+			LongAdder counter = perSecond.get(second);
+			if(counter==null) {
+				LongAdder existing = perSecond.putIfAbsent(second, counter = new LongAdder());
+				if(existing!=null)
+					counter = existing;
+			}
+			counter.increment();
+		}
+
+		void finish(long elapsedNanos) {
+			this.elapsedNanos = elapsedNanos;
+			long lastSecond = elapsedNanos / 1000000000L;
+			for(Map.Entry<Long, LongAdder> entry: perSecond.entrySet()) {
+				// the last second is incomplete, it would skew the throughput percentiles
+				if(entry.getKey() < lastSecond || lastSecond==0)
+					throughput.record(entry.getValue().sum());
+			}
+		}
+
+		public double getRequestsPerSecond() {
+			return elapsedNanos==0 ? 0 : completed.sum() * 1e9 / elapsedNanos;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("completed=%d failed=%d connection errors=%d elapsed=%.3fs rate=%.1f/s%nlatency (ms): %s%nthroughput per second: count=%d min=%d p10=%d p50=%d p90=%d max=%d",
+					completed.sum(), failed.sum(), connectionErrors.size(), elapsedNanos/1e9, getRequestsPerSecond(),
+					latency.summary(1e6), throughput.getCount(), throughput.getPercentile(0), throughput.getPercentile(10),
+					throughput.getPercentile(50), throughput.getPercentile(90), throughput.getMax());
+		}
+	}
+
+	/**
+	 * Replay the requests and wait until all of them are done.
+	 * A connection that fails stops its thread, the error is in the connectionErrors of the result.
+	 */
+	public Result run() throws InterruptedException {
+		final Result result = new Result();
+		final AtomicLong next = new AtomicLong();
+		final long total = (long) requests.size() * iterations;
+		final long start = System.nanoTime();
+		Thread[] workers = new Thread[concurrency];
+		for(int i=0; i<concurrency; ++i) {
+			workers[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						replayConnection(next, total, start, result);
+					} catch (IOException | RuntimeException x) {
+						result.connectionErrors.add(x);
+					}
+				}
+			}, "pyro-replay-"+i);
+			workers[i].start();
+		}
+		for(Thread worker: workers)
+			worker.join();
+		result.finish(System.nanoTime() - start);
+		return result;
+	}
+
+	private void replayConnection(AtomicLong next, long total, long start, Result result) throws IOException {
+		Socket sock = new Socket();
+		try {
+			sock.connect(new InetSocketAddress(host, port), timeout);
+			sock.setSoTimeout(timeout);
+			sock.setTcpNoDelay(true);
+			OutputStream out = sock.getOutputStream();
+			InputStream in = sock.getInputStream();
+			handshake(out, in);
+			int seq = 0;
+			long index;
+			while((index = next.getAndIncrement()) < total) {
+				long scheduled = rate>0 ? start + (long)(index * 1e9 / rate) : System.nanoTime();
+				long wait = scheduled - System.nanoTime();
+				if(wait>0) {
+					try {
+						Thread.sleep(wait / 1000000L, (int)(wait % 1000000L));
+					} catch (InterruptedException x) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+				Message request = requests.get((int)(index % requests.size()));
+				seq = (seq+1) & 0xffff;
+				Message msg = new Message(request.type, request.data, request.serializer_id, request.flags, seq, request.annotations, request.correlation_id);
+				try {
+					out.write(msg.to_bytes());
+					if((msg.flags & Message.FLAGS_ONEWAY)==0) {
+						Message response = Message.recv(in, new int[]{Message.MSG_RESULT});
+						if(response.seq!=seq)
+							throw new PyroException("result msg out of sync");
+						if((response.flags & Message.FLAGS_EXCEPTION)!=0)
+							result.failed.increment();
+					}
+					result.completed(start, System.nanoTime() - scheduled);
+				} catch (IOException x) {
+					result.failed.increment();
+					throw x;
+				}
+			}
+		} finally {
+			sock.close();
+		}
+	}
+
+	private void handshake(OutputStream out, InputStream in) throws IOException {
+		PyroSerializer ser = PyroSerializer.getSerpentSerializer();
+		Map<String, Object> handshakedata = new HashMap<String, Object>();
+		handshakedata.put("handshake", "hello");
+		handshakedata.put("object", Config.DAEMON_NAME);
+		Message msg = new Message(Message.MSG_CONNECT, ser.serializeData(handshakedata), ser.getSerializerId(), 0, 0, null, null);
+		out.write(msg.to_bytes());
+		msg = Message.recv(in, new int[]{Message.MSG_CONNECTOK, Message.MSG_CONNECTFAIL});
+		if(msg.type==Message.MSG_CONNECTFAIL)
+			throw new PyroException("connection to daemon rejected");
+	}
+
+	/**
+	 * Loads the captured requests from a trace file or a trace directory.
+	 * Binary trace files (see TraceReader) and the older "NNNNN-a-send-header.dat" / "NNNNN-a-send-message.dat"
+	 * file pairs are both supported. Requests whose data was not traced completely are skipped.
+	 */
+	public static List<Message> loadRequests(File fileOrDirectory) throws IOException {
+		List<Message> requests = new ArrayList<Message>();
+		for(File file: TraceReader.traceFiles(fileOrDirectory)) {
+			if(!file.getName().endsWith(TraceReader.FILE_EXTENSION))
+				continue;
+			TraceReader reader = new TraceReader(file);
+			try {
+				TraceRecord record;
+				while((record = reader.next())!=null) {
+					if(record.isSend() && !record.partial) {
+						Message msg = record.toMessage();
+						if(msg.type==Message.MSG_INVOKE)
+							requests.add(msg);
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		if(fileOrDirectory.isDirectory()) {
+			File[] headers = fileOrDirectory.listFiles();
+			if(headers!=null) {
+				Arrays.sort(headers);
+				for(File header: headers) {
+					String name = header.getName();
+					if(!name.endsWith("-a-send-header.dat"))
+						continue;
+					File message = new File(fileOrDirectory, name.replace("-a-send-header.dat", "-a-send-message.dat"));
+					if(!message.exists())
+						continue;
+					byte[] headerAndAnnotations = Files.readAllBytes(header.toPath());
+					byte[] headerBytes = Arrays.copyOf(headerAndAnnotations, Message.HEADER_SIZE);
+					byte[] annotations = Arrays.copyOfRange(headerAndAnnotations, Message.HEADER_SIZE, headerAndAnnotations.length);
+					Message msg = new TraceRecord(0, 0, 0, MessageTracer.DIRECTION_SEND, headerBytes, annotations, Files.readAllBytes(message.toPath())).toMessage();
+					if(msg.type==Message.MSG_INVOKE)
+						requests.add(msg);
+				}
+			}
+		}
+		return requests;
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if(args.length<3) {
+			System.err.println("usage: Replay <tracefile or directory> <host> <port> [-rate N] [-concurrency N] [-iterations N]");
+			System.exit(1);
+		}
+		List<Message> requests = loadRequests(new File(args[0]));
+		System.out.println("loaded "+requests.size()+" requests");
+		if(requests.isEmpty())
+			return;
+		Replay replay = new Replay(requests, args[1], Integer.parseInt(args[2]));
+		for(int i=3; i+1<args.length; i+=2) {
+			if(args[i].equals("-rate"))
+				replay.rate = Double.parseDouble(args[i+1]);
+			else if(args[i].equals("-concurrency"))
+				replay.concurrency = Integer.parseInt(args[i+1]);
+			else if(args[i].equals("-iterations"))
+				replay.iterations = Integer.parseInt(args[i+1]);
+			else
+				throw new IllegalArgumentException("unknown option: "+args[i]);
+		}
+		Replay.Result result = replay.run();
+		for(Exception x: result.connectionErrors)
+			System.err.println("replay connection failed: "+x);
+		System.out.println(result);
+	}
+}
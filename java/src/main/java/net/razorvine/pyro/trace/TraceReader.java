@@ -0,0 +1,123 @@
+package net.razorvine.pyro.trace;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads the binary message trace files written by the MessageTracer.
+ *
+ * File format: an 8 byte magic "PYROTRCE", a 4 byte format version, then the records one after another.
+ * Every record is: int record size (including this int), long record sequence, long timestamp (epoch millis),
+ * long connection id, byte direction ('S' or 'R'), byte flags (1 = partial data), int length of header+annotations,
+ * int length of data, followed by the header and annotation bytes and the data bytes exactly as they were on the wire.
+ * The data of a partial record is shorter than the data size in its header, or empty. Version 1 files have no flags byte.
+ * All numbers are big endian.
+ *
+ * The main method prints a summary line for every message in the given files or directories.
+ */
+public class TraceReader implements Closeable {
+
+	public static final byte[] FILE_MAGIC = {'P', 'Y', 'R', 'O', 'T', 'R', 'C', 'E'};
+	public static final int FILE_VERSION = 2;
+	public static final int FILE_HEADER_SIZE = 12;
+	public static final String FILE_EXTENSION = ".pyrotrace";
+
+	private final DataInputStream in;
+	private final int version;
+
+	public TraceReader(File file) throws IOException {
+		in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+		byte[] magic = new byte[FILE_MAGIC.length];
+		try {
+			in.readFully(magic);
+			if(!Arrays.equals(magic, FILE_MAGIC))
+				throw new IOException("not a pyro trace file: "+file);
+			version = in.readInt();
+			if(version<1 || version>FILE_VERSION)
+				throw new IOException("unsupported trace file version: "+version);
+		} catch (IOException x) {
+			in.close();
+			throw x;
+		}
+	}
+
+	/**
+	 * Returns the next record, or null at the end of the file.
+	 */
+	public TraceRecord next() throws IOException {
+		int size;
+		try {
+			size = in.readInt();
+		} catch (EOFException x) {
+			return null;
+		}
+		if(size<TraceRecord.OVERHEAD-(version>1 ? 0 : 1))
+			throw new IOException("corrupt trace record");
+		byte[] record = new byte[size-4];
+		try {
+			in.readFully(record);
+		} catch (EOFException x) {
+			return null;	// incomplete last record, the tracer was still writing
+		}
+		return TraceRecord.decode(ByteBuffer.wrap(record), version);
+	}
+
+	/**
+	 * Reads all records of the file.
+	 */
+	public List<TraceRecord> readAll() throws IOException {
+		List<TraceRecord> records = new ArrayList<TraceRecord>();
+		TraceRecord record;
+		while((record=next())!=null)
+			records.add(record);
+		return records;
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * The trace files in the given directory, in the order they were written.
+	 * If the argument is a file, it is returned by itself.
+	 */
+	public static List<File> traceFiles(File fileOrDirectory) {
+		List<File> result = new ArrayList<File>();
+		if(fileOrDirectory.isDirectory()) {
+			File[] files = fileOrDirectory.listFiles();
+			if(files!=null) {
+				Arrays.sort(files);
+				for(File f: files) {
+					if(f.getName().endsWith(FILE_EXTENSION))
+						result.add(f);
+				}
+			}
+		} else {
+			result.add(fileOrDirectory);
+		}
+		return result;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if(args.length==0) {
+			System.err.println("usage: TraceReader <tracefile or directory>...");
+			System.exit(1);
+		}
+		for(String arg: args) {
+			for(File file: traceFiles(new File(arg))) {
+				System.out.println("--- " + file);
+				TraceReader reader = new TraceReader(file);
+				try {
+					TraceRecord record;
+					while((record=reader.next())!=null)
+						System.out.println(record);
+				} finally {
+					reader.close();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package net.razorvine.pyro.trace;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.TreeMap;
+
+import net.razorvine.pyro.Message;
+
+/**
+ * A single traced wire message.
+ */
+public class TraceRecord {
+
+	/** size of the fixed part of an encoded record */
+	public static final int OVERHEAD = 4+8+8+8+1+1+4+4;
+
+	static final byte FLAG_PARTIAL = 1;
+
+	public final long sequence;			// record number, increasing over the whole trace
+	public final long timestamp;		// System.currentTimeMillis() when the message was traced
+	public final long connectionId;		// identifies the proxy connection the message was sent or received on (0 = unknown)
+	public final byte direction;		// MessageTracer.DIRECTION_SEND or DIRECTION_RECV
+	public final byte[] header;			// the 40 header bytes
+	public final byte[] annotations;	// the annotation chunks, can be empty
+	public final byte[] data;			// the message payload
+	public final boolean partial;		// the data was not traced completely: omitted (segmented or spilled message) or cut off at Config.MSG_TRACE_MAX_DATA_SIZE
+
+	public TraceRecord(long sequence, long timestamp, long connectionId, byte direction, byte[] header, byte[] annotations, byte[] data) {
+		this(sequence, timestamp, connectionId, direction, header, annotations, data, false);
+	}
+
+	public TraceRecord(long sequence, long timestamp, long connectionId, byte direction, byte[] header, byte[] annotations, byte[] data, boolean partial) {
+		this.sequence = sequence;
+		this.timestamp = timestamp;
+		this.connectionId = connectionId;
+		this.direction = direction;
+		this.header = header;
+		this.annotations = annotations==null ? new byte[0] : annotations;
+		this.data = data==null ? new byte[0] : data;
+		this.partial = partial;
+	}
+
+	public boolean isSend() {
+		return direction==MessageTracer.DIRECTION_SEND;
+	}
+
+	/**
+	 * Reconstructs the traced message, including the annotations and the data (which is incomplete if the record is partial).
+	 */
+	public Message toMessage() {
+		Message msg = Message.from_header(header);
+		msg.annotations = new TreeMap<String, byte[]>();
+		int i = 0;
+		while(i<annotations.length) {
+			String key = new String(annotations, i, 4);
+			int length = ((annotations[i+4]&0xff)<<24) | ((annotations[i+5]&0xff)<<16) | ((annotations[i+6]&0xff)<<8) | (annotations[i+7]&0xff);
+			msg.annotations.put(key, Arrays.copyOfRange(annotations, i+8, i+8+length));
+			i += 8+length;
+		}
+		msg.data = data;
+		return msg;
+	}
+
+	int encodedSize() {
+		return OVERHEAD + header.length + annotations.length + data.length;
+	}
+
+	void encodeInto(ByteBuffer buffer) {
+		buffer.putInt(encodedSize());
+		buffer.putLong(sequence);
+		buffer.putLong(timestamp);
+		buffer.putLong(connectionId);
+		buffer.put(direction);
+		buffer.put(partial ? FLAG_PARTIAL : 0);
+		buffer.putInt(header.length + annotations.length);
+		buffer.putInt(data.length);
+		buffer.put(header);
+		buffer.put(annotations);
+		buffer.put(data);
+	}
+
+	ByteBuffer encode() {
+		ByteBuffer buffer = ByteBuffer.allocate(encodedSize());
+		encodeInto(buffer);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Decodes a record from the buffer, which must be positioned just after the record size.
+	 * Version 1 trace files have no flags byte.
+	 */
+	static TraceRecord decode(ByteBuffer buffer, int version) {
+		long sequence = buffer.getLong();
+		long timestamp = buffer.getLong();
+		long connectionId = buffer.getLong();
+		byte direction = buffer.get();
+		byte flags = version>1 ? buffer.get() : 0;
+		int headerLength = buffer.getInt();
+		int dataLength = buffer.getInt();
+		byte[] header = new byte[Message.HEADER_SIZE];
+		byte[] annotations = new byte[headerLength-Message.HEADER_SIZE];
+		byte[] data = new byte[dataLength];
+		buffer.get(header);
+		buffer.get(annotations);
+		buffer.get(data);
+		return new TraceRecord(sequence, timestamp, connectionId, direction, header, annotations, data, (flags & FLAG_PARTIAL)!=0);
+	}
+
+	@Override
+	public String toString() {
+		Message msg = Message.from_header(header);
+		return String.format("#%d %tF %<tT.%<tL conn=%d %s type=%d seq=%d flags=0x%04x annotations=%d data=%d%s",
+				sequence, timestamp, connectionId, isSend() ? "send" : "recv",
+				msg.type, msg.seq, msg.flags, annotations.length, data.length, partial ? " (partial, "+msg.get_data_size()+" on the wire)" : "");
+	}
+}
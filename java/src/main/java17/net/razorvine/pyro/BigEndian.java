@@ -0,0 +1,43 @@
+package net.razorvine.pyro;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * Reads and writes big endian (network order) numbers in byte arrays, for the wire protocol headers.
+ * Java 17+ version: uses byte array view VarHandles, which compile to single (byte swapping) loads and stores.
+ */
+final class BigEndian {
+
+	private static final VarHandle SHORT = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+	private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+	private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+	private BigEndian() {
+	}
+
+	static int getUnsignedShort(byte[] bytes, int offset) {
+		return Short.toUnsignedInt((short) SHORT.get(bytes, offset));
+	}
+
+	static void putShort(byte[] bytes, int offset, int value) {
+		SHORT.set(bytes, offset, (short) value);
+	}
+
+	static int getInt(byte[] bytes, int offset) {
+		return (int) INT.get(bytes, offset);
+	}
+
+	static void putInt(byte[] bytes, int offset, int value) {
+		INT.set(bytes, offset, value);
+	}
+
+	static long getLong(byte[] bytes, int offset) {
+		return (long) LONG.get(bytes, offset);
+	}
+
+	static void putLong(byte[] bytes, int offset, long value) {
+		LONG.set(bytes, offset, value);
+	}
+}
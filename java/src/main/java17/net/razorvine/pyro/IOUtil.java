@@ -0,0 +1,29 @@
+package net.razorvine.pyro;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Lowlevel I/O utilities.
+ * Java 17+ version: uses InputStream.readNBytes to fill the buffer.
+ */
+class IOUtil
+{
+	/**
+	 * send a message to the outputstream.
+	 */
+	public static void send(OutputStream out, byte[] message) throws IOException {
+		out.write(message);
+	}
+
+	/**
+	 * Receive a message of the given size from the inputstream.
+	 * Makes sure the complete message is received, raises IOException otherwise.
+	 */
+	public static byte[] recv(InputStream in, int size) throws IOException {
+		byte[] bytes = new byte[size];
+		if(in.readNBytes(bytes, 0, size) < size)
+			throw new IOException("premature end of data");
+		return bytes;
+	}
+}
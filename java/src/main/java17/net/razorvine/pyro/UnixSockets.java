@@ -0,0 +1,38 @@
+package net.razorvine.pyro;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Unix domain sockets, used for uris of the form PYRO:objectid@./u:sockname.
+ * Java 17+ version: uses UnixDomainSocketAddress directly instead of through reflection.
+ */
+public final class UnixSockets {
+
+	private UnixSockets() {
+	}
+
+	/**
+	 * Does this JVM support Unix domain socket channels?
+	 */
+	public static boolean available() {
+		return true;
+	}
+
+	/**
+	 * The socket address of the given socket file.
+	 */
+	public static SocketAddress address(String sockname) {
+		return UnixDomainSocketAddress.of(sockname);
+	}
+
+	/**
+	 * Open a new, unconnected, Unix domain socket channel.
+	 */
+	public static SocketChannel openChannel() throws IOException {
+		return SocketChannel.open(StandardProtocolFamily.UNIX);
+	}
+}
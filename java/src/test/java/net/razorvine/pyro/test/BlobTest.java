@@ -0,0 +1,154 @@
+package net.razorvine.pyro.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import net.razorvine.pyro.Blob;
+import net.razorvine.pyro.Message;
+import net.razorvine.pyro.MetadataCache;
+import net.razorvine.pyro.PyroProxy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for binary blobs sent as annotation chunks.
+ */
+public class BlobTest {
+
+	private FakeDaemon daemon;
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		MetadataCache.getDefault().clear();
+		daemon = new FakeDaemon();
+		daemon.register("store", "sizes", new FakeDaemon.Handler() {
+			public Object call(Object[] args) {
+				Map<String, Integer> sizes = new HashMap<String, Integer>();
+				for(Map.Entry<String, ByteBuffer> blob: FakeDaemon.currentAnnotations().entrySet()) {
+					sizes.put(blob.getKey(), blob.getValue().remaining());
+					// echo the blob in the response
+					byte[] copy = new byte[blob.getValue().remaining()];
+					blob.getValue().duplicate().get(copy);
+					FakeDaemon.addResponseAnnotation(blob.getKey().toLowerCase(), copy);
+				}
+				return sizes;
+			}
+		});
+		file = File.createTempFile("pyroblob", ".bin");
+	}
+
+	@After
+	public void tearDown() {
+		daemon.close();
+		file.delete();
+	}
+
+	private static byte[] bytes(int size, int seed) {
+		byte[] data = new byte[size];
+		for(int i=0; i<size; ++i)
+			data[i] = (byte) (i*seed);
+		return data;
+	}
+
+	private static byte[] copy(ByteBuffer buffer) {
+		byte[] data = new byte[buffer.remaining()];
+		buffer.duplicate().get(data);
+		return data;
+	}
+
+	@Test
+	public void testBlobs() throws IOException
+	{
+		byte[] heap = bytes(1000, 3);
+		byte[] direct = bytes(2*1024*1024, 5);		// larger than the copied annotations
+		byte[] contents = bytes(300000, 7);
+		Files.write(file.toPath(), contents);
+		ByteBuffer directBuffer = ByteBuffer.allocateDirect(direct.length);
+		directBuffer.put(direct);
+		directBuffer.flip();
+
+		final SortedMap<String, byte[]> responseAnnotations = new TreeMap<String, byte[]>();
+		final SortedMap<String, byte[]> responseBlobs = new TreeMap<String, byte[]>();
+		PyroProxy p = new PyroProxy(daemon.uri("store")) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public void responseAnnotations(SortedMap<String, byte[]> annotations, int msgtype) {
+				responseAnnotations.putAll(annotations);
+			}
+
+			@Override
+			public void responseBlobs(SortedMap<String, ByteBuffer> blobs, int msgtype) {
+				for(Map.Entry<String, ByteBuffer> blob: blobs.entrySet())
+					responseBlobs.put(blob.getKey(), copy(blob.getValue()));
+			}
+		};
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			Map<String, Blob> blobs = new HashMap<String, Blob>();
+			blobs.put("HEAP", Blob.of(ByteBuffer.wrap(heap)));
+			blobs.put("DRCT", Blob.of(directBuffer));
+			blobs.put("FILE", Blob.of(file.toPath()));
+			blobs.put("PART", Blob.of(channel, 1000, 5000));
+			Map<?, ?> sizes = (Map<?, ?>) p.callWithBlobs(blobs, "sizes");
+			assertEquals(1000, sizes.get("HEAP"));
+			assertEquals(direct.length, sizes.get("DRCT"));
+			assertEquals(contents.length, sizes.get("FILE"));
+			assertEquals(5000, sizes.get("PART"));
+			assertEquals(0, channel.position());
+			assertEquals(0, directBuffer.position());
+
+			assertArrayEquals(heap, responseBlobs.get("heap"));
+			assertArrayEquals(direct, responseBlobs.get("drct"));
+			assertArrayEquals(contents, responseBlobs.get("file"));
+			assertArrayEquals(Arrays.copyOfRange(contents, 1000, 6000), responseBlobs.get("part"));
+			assertArrayEquals(heap, responseAnnotations.get("heap"));
+			assertArrayEquals(direct, responseAnnotations.get("drct"));
+
+			// the blobs can be sent again
+			assertEquals(5000, ((Map<?, ?>) p.callWithBlobs(blobs, "sizes")).get("PART"));
+			assertTrue(((Map<?, ?>) p.call("sizes")).isEmpty());
+		} finally {
+			channel.close();
+			p.close();
+		}
+	}
+
+	@Test
+	public void testMessageWithBlobs() throws IOException
+	{
+		SortedMap<String, byte[]> annotations = new TreeMap<String, byte[]>();
+		annotations.put("ANNO", new byte[]{1,2,3});
+		Message msg = new Message(Message.MSG_INVOKE, new byte[]{9,8,7}, (byte)1, 0, 1, annotations, null);
+		msg.add_blob("BLOB", Blob.of(ByteBuffer.wrap(new byte[]{4,5,6,7})));
+		assertEquals(11+12, msg.get_annotations_size());
+		Message received = Message.recv(new ByteArrayInputStream(msg.to_bytes()), null);
+		assertArrayEquals(new byte[]{1,2,3}, received.annotations.get("ANNO"));
+		assertArrayEquals(new byte[]{4,5,6,7}, received.annotations.get("BLOB"));
+		assertArrayEquals(new byte[]{4,5,6,7}, copy(received.get_annotation_slices().get("BLOB")));
+		assertTrue(received.get_annotation_slices().get("BLOB").isReadOnly());
+		assertSame(received.get_annotation_slices(), received.get_annotation_slices());	// built once
+		assertArrayEquals(new byte[]{9,8,7}, received.data);
+		try {
+			msg.add_blob("TOOLONG", Blob.of(ByteBuffer.allocate(1)));
+			fail("expected invalid key");
+		} catch (IllegalArgumentException x) {
+			// ok
+		}
+	}
+}
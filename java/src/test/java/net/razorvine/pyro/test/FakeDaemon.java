@@ -0,0 +1,505 @@
+package net.razorvine.pyro.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.ProtocolFamily;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import java.util.zip.Deflater;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+import net.razorvine.pyro.Config;
+import net.razorvine.pyro.Message;
+import net.razorvine.pyro.PyroException;
+import net.razorvine.pyro.PyroURI;
+import net.razorvine.pyro.UnixSockets;
+import net.razorvine.pyro.serializer.PyroSerializer;
+
+/**
+ * A minimal in-process implementation of the daemon side of the Pyro5 wire protocol, to test and benchmark
+ * the client without a Python Pyro server. It serves Java handlers registered per object id and method name.
+ * Supported: the connection handshake, get_metadata, method calls (also oneway and batched), attribute access,
+ * MSG_PING, and item streaming of handlers that return an Iterator.
+ * Every connection is served by its own thread, like Pyro's default thread pool server.
+ * It listens on a free TCP port on the loopback interface (optionally with TLS), or on a Unix domain socket (Java 16+).
+ */
+public class FakeDaemon implements Closeable {
+
+	/**
+	 * A remote method implemented in Java.
+	 * A PyroException thrown by the handler is passed to the client with its pythonExceptionType,
+	 * other exceptions are passed with the Java class name as exception type.
+	 */
+	public interface Handler {
+		Object call(Object[] args) throws Exception;
+	}
+
+	private static class RemoteObject {
+		final Map<String, Handler> methods = new ConcurrentHashMap<String, Handler>();
+		final Set<String> oneways = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		final Map<String, Object> attrs = new ConcurrentHashMap<String, Object>();
+	}
+
+	public final AtomicInteger connections = new AtomicInteger();	// currently open connections
+	public final AtomicLong invocations = new AtomicLong();			// messages handled, excluding the handshakes
+	public final Queue<Long> tlsSessions = new ConcurrentLinkedQueue<Long>();	// creation time of the TLS session of every connection, resumed sessions keep theirs
+	public volatile boolean compressResults = false;		// deflate the data of the results and handshake replies, like Pyro's COMPRESSION setting
+	public volatile int replyPieceDelay = 0;		// milliseconds: send the results in 4 pieces, with this delay before each
+	public final AtomicInteger dropCalls = new AtomicInteger();		// this many of the next calls close their connection instead of being handled
+
+	private final ServerSocket serverSocket;
+	private final ServerSocketChannel unixServer;
+	private final String sockname;
+	private final ExecutorService workers;
+	private final ConcurrentHashMap<String, RemoteObject> objects = new ConcurrentHashMap<String, RemoteObject>();
+	private final Map<String, Iterator<?>> streams = new ConcurrentHashMap<String, Iterator<?>>();
+	private final Set<Closeable> clients = Collections.newSetFromMap(new ConcurrentHashMap<Closeable, Boolean>());
+	private volatile boolean running = true;
+	private static final ThreadLocal<Message> currentCall = new ThreadLocal<Message>();
+	private static final ThreadLocal<SortedMap<String, byte[]>> responseAnnotations = new ThreadLocal<SortedMap<String, byte[]>>();
+
+	/**
+	 * Starts a daemon on a free port on the loopback interface.
+	 */
+	public FakeDaemon() throws IOException {
+		this(new ServerSocket(0, 200, InetAddress.getLoopbackAddress()), null, null);
+	}
+
+	/**
+	 * Starts a daemon with TLS (PYROSSL) on a free port on the loopback interface, with the server certificate of the given context.
+	 */
+	public FakeDaemon(SSLContext context) throws IOException {
+		this(context.getServerSocketFactory().createServerSocket(0, 200, InetAddress.getLoopbackAddress()), null, null);
+	}
+
+	/**
+	 * Starts a daemon on the Unix domain socket with the given path. An existing socket file is replaced.
+	 */
+	public FakeDaemon(String sockname) throws IOException {
+		this(null, openUnixServer(sockname), sockname);
+	}
+
+	private static ServerSocketChannel openUnixServer(String sockname) throws IOException {
+		Files.deleteIfExists(Paths.get(sockname));
+		ServerSocketChannel server;
+		try {
+			// through reflection like UnixSockets, the tests are compiled for Java 8 as well
+			Method open = ServerSocketChannel.class.getMethod("open", ProtocolFamily.class);
+			server = (ServerSocketChannel) open.invoke(null, StandardProtocolFamily.valueOf("UNIX"));
+		} catch (ReflectiveOperationException x) {
+			throw new IOException("unix domain sockets unavailable", x);
+		}
+		server.bind(UnixSockets.address(sockname), 200);
+		return server;
+	}
+
+	private FakeDaemon(ServerSocket serverSocket, ServerSocketChannel unixServer, String sockname) {
+		this.serverSocket = serverSocket;
+		this.unixServer = unixServer;
+		this.sockname = sockname;
+		workers = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "fakedaemon-worker");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		register(Config.DAEMON_NAME, "ping", new Handler() {
+			public Object call(Object[] args) {
+				return null;
+			}
+		});
+		register(Config.DAEMON_NAME, "get_metadata", new Handler() {
+			public Object call(Object[] args) {
+				return metadata(findObject((String) args[0]));
+			}
+		});
+		register(Config.DAEMON_NAME, "get_next_stream_item", new Handler() {
+			public Object call(Object[] args) {
+				Iterator<?> stream = streams.get(args[0]);
+				if(stream==null)
+					throw pyroError("builtins.PyroError", "item stream terminated");
+				if(!stream.hasNext()) {
+					streams.remove(args[0]);
+					throw pyroError("builtins.StopIteration", "");
+				}
+				return stream.next();
+			}
+		});
+		register(Config.DAEMON_NAME, "close_stream", new Handler() {
+			public Object call(Object[] args) {
+				streams.remove(args[0]);
+				return null;
+			}
+		});
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				acceptLoop();
+			}
+		}, "fakedaemon-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	public String getHost() {
+		return serverSocket.getInetAddress().getHostAddress();
+	}
+
+	public PyroURI uri(String objectId) {
+		if(sockname!=null)
+			return PyroURI.unixSocket(objectId, sockname);
+		PyroURI uri = new PyroURI(objectId, getHost(), getPort());
+		if(serverSocket instanceof SSLServerSocket)
+			uri.protocol = "PYROSSL";
+		return uri;
+	}
+
+	/**
+	 * Number of item streams that are still open.
+	 */
+	public int openStreams() {
+		return streams.size();
+	}
+
+	public void register(String objectId, String method, Handler handler) {
+		remoteObject(objectId).methods.put(method, handler);
+	}
+
+	public void registerOneway(String objectId, String method, Handler handler) {
+		RemoteObject obj = remoteObject(objectId);
+		obj.methods.put(method, handler);
+		obj.oneways.add(method);
+	}
+
+	/**
+	 * The annotation chunks of the call that the current handler is running for, like Pyro's current_context.annotations.
+	 */
+	public static SortedMap<String, ByteBuffer> currentAnnotations() {
+		return currentCall.get().get_annotation_slices();
+	}
+
+	/**
+	 * Add an annotation to the response of the call that the current handler is running for.
+	 */
+	public static void addResponseAnnotation(String key, byte[] value) {
+		responseAnnotations.get().put(key, value);
+	}
+
+	public void setAttribute(String objectId, String name, Object value) {
+		remoteObject(objectId).attrs.put(name, value);
+	}
+
+	public Object getAttribute(String objectId, String name) {
+		return objects.get(objectId).attrs.get(name);
+	}
+
+	public void close() {
+		running = false;
+		try {
+			if(unixServer!=null) {
+				unixServer.close();
+				Files.deleteIfExists(Paths.get(sockname));
+			} else {
+				serverSocket.close();
+			}
+		} catch (IOException x) {
+			// ignore
+		}
+		for(Closeable client: clients) {
+			try {
+				client.close();
+			} catch (IOException x) {
+				// ignore
+			}
+		}
+		workers.shutdownNow();
+	}
+
+	private void acceptLoop() {
+		while(running) {
+			try {
+				final Closeable client;
+				final InputStream in;
+				final OutputStream out;
+				if(unixServer!=null) {
+					SocketChannel channel = unixServer.accept();
+					client = channel;
+					in = Channels.newInputStream(channel);
+					out = Channels.newOutputStream(channel);
+				} else {
+					Socket socket = serverSocket.accept();
+					socket.setTcpNoDelay(true);
+					client = socket;
+					in = socket.getInputStream();
+					out = socket.getOutputStream();
+				}
+				clients.add(client);
+				if(!running) {
+					client.close();		// accepted while the daemon was being closed
+					break;
+				}
+				workers.execute(new Runnable() {
+					public void run() {
+						connections.incrementAndGet();
+						try {
+							if(client instanceof SSLSocket) {
+								((SSLSocket) client).startHandshake();
+								tlsSessions.add(((SSLSocket) client).getSession().getCreationTime());
+							}
+							serve(in, out);
+						} catch (IOException x) {
+							// connection closed
+						} finally {
+							connections.decrementAndGet();
+							clients.remove(client);
+							try {
+								client.close();
+							} catch (IOException x) {
+								// ignore
+							}
+						}
+					}
+				});
+			} catch (SocketException | ClosedChannelException x) {
+				// server socket closed
+			} catch (RejectedExecutionException x) {
+				// closed while this connection was being accepted, the client is closed with the others
+			} catch (IOException x) {
+				if(running)
+					x.printStackTrace();
+			}
+		}
+	}
+
+	private void serve(InputStream in, OutputStream out) throws IOException {
+		PyroSerializer ser = PyroSerializer.getSerpentSerializer();
+		if(!handshake(in, out, ser))
+			return;
+		while(running) {
+			Message msg = Message.recv(in, new int[]{Message.MSG_INVOKE, Message.MSG_PING});
+			invocations.incrementAndGet();
+			if(msg.type==Message.MSG_PING) {
+				reply(out, new Message(Message.MSG_PING, msg.data, msg.serializer_id, 0, msg.seq, null, msg.correlation_id));
+				continue;
+			}
+			if(dropCall())
+				return;
+			Object[] invoke = (Object[]) ser.deserializeData(msg.data);
+			String objectId = (String) invoke[0];
+			String method = (String) invoke[1];
+			Object[] args = toArray(invoke[2]);
+			int flags = msg.flags & Message.FLAGS_CORR_ID;
+			SortedMap<String, byte[]> annotations = null;
+			Object result;
+			if((msg.flags & Message.FLAGS_BATCH)!=0) {
+				List<Object> results = new ArrayList<Object>();
+				for(Object call: args) {
+					Object[] c = toArray(call);
+					try {
+						results.add(invoke(objectId, (String)c[0], toArray(c[1])));
+					} catch (Exception x) {
+						results.add(exceptionDict(x));
+						break;
+					}
+				}
+				result = results;
+			} else {
+				currentCall.set(msg);
+				responseAnnotations.set(annotations = new TreeMap<String, byte[]>());
+				try {
+					result = invoke(objectId, method, args);
+					if(result instanceof Iterator) {
+						String streamId = UUID.randomUUID().toString();
+						streams.put(streamId, (Iterator<?>) result);
+						annotations.put("STRM", streamId.getBytes());
+						flags |= Message.FLAGS_ITEMSTREAMRESULT;
+						result = null;
+					}
+				} catch (Exception x) {
+					result = exceptionDict(x);
+					flags |= Message.FLAGS_EXCEPTION;
+				} finally {
+					currentCall.remove();
+					responseAnnotations.remove();
+				}
+			}
+			if((msg.flags & Message.FLAGS_ONEWAY)!=0)
+				continue;
+			byte[] data = ser.serializeData(result);
+			if(compressResults) {
+				data = compress(data);
+				flags |= Message.FLAGS_COMPRESSED;
+			}
+			reply(out, new Message(Message.MSG_RESULT, data, ser.getSerializerId(), flags, msg.seq, annotations, msg.correlation_id));
+		}
+	}
+
+	private boolean dropCall() {
+		int count;
+		while((count=dropCalls.get())>0) {
+			if(dropCalls.compareAndSet(count, count-1))
+				return true;
+		}
+		return false;
+	}
+
+	private static byte[] compress(byte[] data) {
+		Deflater deflater = new Deflater();
+		deflater.setInput(data);
+		deflater.finish();
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		while(!deflater.finished())
+			bos.write(buffer, 0, deflater.deflate(buffer));
+		deflater.end();
+		return bos.toByteArray();
+	}
+
+	private boolean handshake(InputStream in, OutputStream out, PyroSerializer ser) throws IOException {
+		Message msg = Message.recv(in, new int[]{Message.MSG_CONNECT});
+		@SuppressWarnings("unchecked")
+		Map<Object, Object> data = (Map<Object, Object>) ser.deserializeData(msg.data);
+		String objectId = (String) data.get("object");
+		int flags = msg.flags & Message.FLAGS_CORR_ID;
+		RemoteObject obj = objectId==null ? null : objects.get(objectId);
+		if(obj==null) {
+			byte[] reason = ser.serializeData("unknown object");
+			reply(out, new Message(Message.MSG_CONNECTFAIL, reason, ser.getSerializerId(), flags, msg.seq, null, msg.correlation_id));
+			return false;
+		}
+		Map<String, Object> response = new HashMap<String, Object>();
+		response.put("handshake", data.get("handshake"));
+		response.put("meta", metadata(obj));
+		byte[] reply = ser.serializeData(response);
+		if(compressResults) {
+			reply = compress(reply);
+			flags |= Message.FLAGS_COMPRESSED;
+		}
+		reply(out, new Message(Message.MSG_CONNECTOK, reply, ser.getSerializerId(), flags, msg.seq, null, msg.correlation_id));
+		return true;
+	}
+
+	private void reply(OutputStream out, Message msg) throws IOException {
+		byte[] bytes = msg.to_bytes();
+		int delay = replyPieceDelay;
+		if(delay<=0 || msg.type!=Message.MSG_RESULT) {
+			out.write(bytes);
+			return;
+		}
+		int piece = (bytes.length+3)/4;
+		for(int offset=0; offset<bytes.length; offset+=piece) {
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException x) {
+				throw new InterruptedIOException();
+			}
+			out.write(bytes, offset, Math.min(piece, bytes.length-offset));
+			out.flush();
+		}
+	}
+
+	private RemoteObject remoteObject(String objectId) {
+		RemoteObject obj = objects.get(objectId);
+		if(obj==null) {
+			RemoteObject existing = objects.putIfAbsent(objectId, obj = new RemoteObject());
+			if(existing!=null)
+				obj = existing;
+		}
+		return obj;
+	}
+
+	private RemoteObject findObject(String objectId) {
+		RemoteObject obj = objects.get(objectId);
+		if(obj==null)
+			throw pyroError("Pyro5.errors.DaemonError", "unknown object");
+		return obj;
+	}
+
+	private Object invoke(String objectId, String method, Object[] args) throws Exception {
+		RemoteObject obj = findObject(objectId);
+		if("__getattr__".equals(method)) {
+			if(!obj.attrs.containsKey(args[0]))
+				throw pyroError("builtins.AttributeError", "no such attribute: "+args[0]);
+			return obj.attrs.get(args[0]);
+		}
+		if("__setattr__".equals(method)) {
+			if(!obj.attrs.containsKey(args[0]))
+				throw pyroError("builtins.AttributeError", "no such attribute: "+args[0]);
+			obj.attrs.put((String) args[0], args[1]);
+			return null;
+		}
+		Handler handler = obj.methods.get(method);
+		if(handler==null)
+			throw pyroError("builtins.AttributeError", "remote object has no exposed attribute or method '"+method+"'");
+		return handler.call(args);
+	}
+
+	private static Map<String, Object> metadata(RemoteObject obj) {
+		Map<String, Object> meta = new HashMap<String, Object>();
+		meta.put("methods", new HashSet<String>(obj.methods.keySet()));
+		meta.put("attrs", new HashSet<String>(obj.attrs.keySet()));
+		meta.put("oneway", new HashSet<String>(obj.oneways));
+		return meta;
+	}
+
+	private static PyroException pyroError(String pythonType, String message) {
+		PyroException x = new PyroException(message);
+		x.pythonExceptionType = pythonType;
+		return x;
+	}
+
+	/**
+	 * The serialized form of a Python exception, as the serpent serializer of Pyro5 produces it.
+	 */
+	private static Map<String, Object> exceptionDict(Exception x) {
+		String type = x.getClass().getName();
+		if(x instanceof PyroException && ((PyroException) x).pythonExceptionType!=null)
+			type = ((PyroException) x).pythonExceptionType;
+		Map<String, Object> dict = new HashMap<String, Object>();
+		dict.put("__class__", type);
+		dict.put("__exception__", true);
+		dict.put("args", new Object[] { x.getMessage()==null ? "" : x.getMessage() });
+		dict.put("attributes", new HashMap<String, Object>());
+		return dict;
+	}
+
+	private static Object[] toArray(Object sequence) {
+		if(sequence instanceof Object[])
+			return (Object[]) sequence;
+		if(sequence instanceof Collection)
+			return ((Collection<?>) sequence).toArray();
+		return new Object[0];
+	}
+}
@@ -0,0 +1,696 @@
+package net.razorvine.pyro.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.razorvine.pyro.CircuitBreaker;
+import net.razorvine.pyro.Config;
+import net.razorvine.pyro.LoadBalancingProxy;
+import net.razorvine.pyro.Message;
+import net.razorvine.pyro.MetadataCache;
+import net.razorvine.pyro.PyroException;
+import net.razorvine.pyro.PyroProxy;
+import net.razorvine.pyro.PyroURI;
+import net.razorvine.pyro.UnixSockets;
+import net.razorvine.pyro.nio.AsyncPyroProxy;
+import net.razorvine.pyro.nio.PyroClientEngine;
+import net.razorvine.pyro.serializer.PyroSerializer;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Client tests against the in-process fake daemon.
+ */
+public class FakeDaemonTest {
+
+	private FakeDaemon daemon;
+
+	@Before
+	public void setUp() throws IOException {
+		MetadataCache.getDefault().clear();		// ports of earlier daemons can be reused
+		daemon = new FakeDaemon();
+		daemon.register("calc", "add", new FakeDaemon.Handler() {
+			public Object call(Object[] args) {
+				return ((Number)args[0]).intValue() + ((Number)args[1]).intValue();
+			}
+		});
+		daemon.register("calc", "fail", new FakeDaemon.Handler() {
+			public Object call(Object[] args) {
+				PyroException x = new PyroException("bad value");
+				x.pythonExceptionType = "builtins.ValueError";
+				throw x;
+			}
+		});
+		daemon.register("calc", "count", new FakeDaemon.Handler() {
+			public Object call(Object[] args) {
+				return Arrays.asList(1, 2, 3, 4, 5).iterator();
+			}
+		});
+		daemon.setAttribute("calc", "name", "calculator");
+	}
+
+	@After
+	public void tearDown() {
+		daemon.close();
+	}
+
+	@Test
+	public void testCallsAndMetadata() throws IOException
+	{
+		PyroProxy p = new PyroProxy(daemon.uri("calc"));
+		try {
+			assertEquals(5, p.call("add", 2, 3));
+			assertTrue(p.pyroMethods.contains("add"));
+			assertTrue(p.pyroAttrs.contains("name"));
+			assertEquals("calculator", p.getattr("name"));
+			p.setattr("name", "other");
+			assertEquals("other", daemon.getAttribute("calc", "name"));
+			try {
+				p.call("fail");
+				fail("expected remote exception");
+			} catch (PyroException x) {
+				assertEquals("builtins.ValueError", x.pythonExceptionType);
+			}
+			assertEquals(7, p.call("add", 3, 4));
+		} finally {
+			p.close();
+		}
+	}
+
+	@Test
+	public void testStaleCachedMetadata() throws IOException
+	{
+		// the cache thinks add is oneway, the handshake reply corrects that
+		PyroURI key = new PyroURI("calc", daemon.getHost(), daemon.getPort());
+		MetadataCache.getDefault().put(key, new MetadataCache.Metadata(Arrays.asList("add"), Arrays.asList("name"), Arrays.asList("add")));
+		PyroProxy p = new PyroProxy(daemon.uri("calc"));
+		try {
+			assertEquals(5, p.call("add", 2, 3));
+			assertFalse(p.pyroOneway.contains("add"));
+			assertTrue(MetadataCache.getDefault().get(key).oneways.isEmpty());
+			p.pyroMethods.add("other");		// the proxy's own copy
+			assertFalse(MetadataCache.getDefault().get(key).methods.contains("other"));
+		} finally {
+			p.close();
+		}
+	}
+
+	@Test
+	public void testSharedMetadata() throws IOException
+	{
+		PyroURI key = new PyroURI("calc", daemon.getHost(), daemon.getPort());
+		PyroProxy p1 = new PyroProxy(daemon.uri("calc"));
+		PyroProxy p2 = new PyroProxy(daemon.uri("calc"));
+		try {
+			assertEquals(5, p1.call("add", 2, 3));
+			MetadataCache.Metadata cached = MetadataCache.getDefault().get(key);
+			assertEquals(5, p2.call("add", 2, 3));
+			assertSame(cached, MetadataCache.getDefault().get(key));	// unchanged, so not replaced
+			assertEquals(cached.methods, p2.pyroMethods);
+
+			p1.pyroMethods.add("other");
+			p1.pyroOneway.remove("nothing");
+			Iterator<String> it = p2.pyroMethods.iterator();
+			it.next();
+			it.remove();
+			assertTrue(p1.pyroMethods.contains("other"));
+			assertFalse(p2.pyroMethods.contains("other"));
+			assertEquals(cached.methods.size()-1, p2.pyroMethods.size());
+			assertFalse(cached.methods.contains("other"));
+			assertEquals(cached.methods, MetadataCache.getDefault().get(key).methods);	// the removal only changed p2's copy
+		} finally {
+			p1.close();
+			p2.close();
+		}
+	}
+
+	@Test(timeout=10000)
+	public void testCallDeadline() throws Exception
+	{
+		PyroProxy p = new PyroProxy(daemon.uri("calc"));
+		try {
+			assertEquals(3, p.call(Duration.ofSeconds(5), "add", 1, 2));
+
+			// every piece of the response arrives well within the time left, the whole response doesn't
+			daemon.replyPieceDelay = 150;
+			long start = System.nanoTime();
+			try {
+				p.call(Duration.ofMillis(400), "add", 1, 2);
+				fail("expected timeout");
+			} catch (SocketTimeoutException x) {
+				// ok
+			}
+			long elapsed = (System.nanoTime()-start)/1000000L;
+			assertTrue("took "+elapsed+" ms", elapsed < 550);
+
+			p.pyroTimeout = 0.4;		// the socket timeout is per read
+			assertEquals(3, p.call("add", 1, 2));
+			p.pyroTimeout = 0;
+			daemon.replyPieceDelay = 0;
+			assertEquals(3, p.call(Duration.ofSeconds(5), "add", 1, 2));
+		} finally {
+			p.close();
+		}
+	}
+
+	@Test(timeout=10000)
+	public void testConnectTimeout() throws Exception
+	{
+		ServerSocket silent = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());		// connects, but never does the handshake
+		try {
+			PyroProxy p = new PyroProxy(new PyroURI("calc", "127.0.0.1", silent.getLocalPort()));
+			long start = System.nanoTime();
+			try {
+				p.call(Duration.ofMillis(300), "add", 1, 2);
+				fail("expected timeout");
+			} catch (SocketTimeoutException x) {
+				// ok
+			}
+			assertTrue((System.nanoTime()-start)/1000000L < 1000);
+			p.close();
+
+			p.pyroTimeout = 0.3;
+			start = System.nanoTime();
+			try {
+				p.call("add", 1, 2);
+				fail("expected timeout");
+			} catch (SocketTimeoutException x) {
+				// ok
+			}
+			assertTrue((System.nanoTime()-start)/1000000L < 1000);
+			p.close();
+		} finally {
+			silent.close();
+		}
+	}
+
+	@Test
+	public void testUnknownObject() throws IOException
+	{
+		PyroProxy p = new PyroProxy(daemon.uri("nothere"));
+		try {
+			p.call("add", 1, 2);
+			fail("expected connection rejected");
+		} catch (PyroException x) {
+			assertTrue(x.getMessage().contains("unknown object"));
+		} finally {
+			p.close();
+		}
+	}
+
+	@Test
+	public void testOptimisticConnect() throws IOException
+	{
+		PyroProxy p = new PyroProxy(daemon.uri("calc"));
+		p.optimisticConnect = true;
+		try {
+			try {
+				p.call("subtract", 3, 1);		// not checked before the metadata is known, the daemon refuses it
+				fail("expected unknown method");
+			} catch (PyroException x) {
+				assertEquals("builtins.AttributeError", x.pythonExceptionType);
+			}
+			assertTrue(p.pyroMethods.contains("add"));		// the metadata came with the handshake reply
+			assertEquals(5, p.call("add", 2, 3));
+			p.close();
+			assertEquals(7, p.call("add", 3, 4));		// reconnects optimistically
+		} finally {
+			p.close();
+		}
+
+		// a rejected handshake fails the call, and the call that was sent along is never answered
+		p = new PyroProxy(daemon.uri("nothere"));
+		p.optimisticConnect = true;
+		for(int i=0; i<2; ++i) {
+			try {
+				p.call("add", 1, 2);
+				fail("expected connection rejected");
+			} catch (PyroException x) {
+				assertTrue(x.getMessage().contains("unknown object"));
+			}
+		}
+		p.close();
+	}
+
+	@Test
+	public void testRetries() throws Exception
+	{
+		final AtomicInteger counter = new AtomicInteger();
+		daemon.register("calc", "increment", new FakeDaemon.Handler() {
+			public Object call(Object[] args) {
+				return counter.incrementAndGet();
+			}
+		});
+		PyroProxy p = new PyroProxy(daemon.uri("calc"));
+		p.pyroMaxRetries = 2;
+		p.retryPolicy.initialBackoffMillis = 1;
+		p.retryPolicy.idempotentMethods = new HashSet<String>(Arrays.asList("add"));
+		try {
+			assertEquals(3, p.call("add", 1, 2));
+
+			// the daemon drops the connection, the idempotent method is called again on a new connection
+			daemon.dropCalls.set(2);
+			assertEquals(5, p.call("add", 2, 3));
+			assertEquals(0, daemon.dropCalls.get());
+
+			// but not more often than pyroMaxRetries
+			daemon.dropCalls.set(3);
+			try {
+				p.call("add", 2, 3);
+				fail("expected connection error");
+			} catch (IOException x) {
+				// ok
+			}
+			assertEquals(0, daemon.dropCalls.get());
+
+			// a method that isn't idempotent is not retried
+			daemon.dropCalls.set(1);
+			try {
+				p.call("increment");
+				fail("expected connection error");
+			} catch (IOException x) {
+				// ok
+			}
+			assertEquals(0, counter.get());
+			assertEquals(1, p.call("increment"));
+		} finally {
+			p.close();
+		}
+	}
+
+	@Test
+	public void testCircuitBreakerOpens() throws Exception
+	{
+		int threshold = Config.CIRCUIT_BREAKER_THRESHOLD;
+		long openMillis = Config.CIRCUIT_BREAKER_OPEN_MILLIS;
+		Config.CIRCUIT_BREAKER_THRESHOLD = 3;
+		Config.CIRCUIT_BREAKER_OPEN_MILLIS = 200;
+		PyroProxy p = new PyroProxy(daemon.uri("calc"));
+		try {
+			CircuitBreaker breaker = CircuitBreaker.forEndpoint(daemon.getHost(), daemon.getPort());
+			breaker.success();		// the breakers are shared, an earlier daemon may have had this port
+			daemon.dropCalls.set(3);
+			for(int i=0; i<3; ++i) {
+				assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+				try {
+					p.call("add", 1, 2);
+					fail("expected connection error");
+				} catch (IOException x) {
+					// ok
+				}
+			}
+			assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+			// the calls fail without trying to connect
+			long invocations = daemon.invocations.get();
+			try {
+				p.call("add", 1, 2);
+				fail("expected open circuit");
+			} catch (PyroException x) {
+				assertTrue(x.getMessage().contains("circuit breaker is open"));
+			}
+			assertEquals(invocations, daemon.invocations.get());
+
+			// after the wait a trial call goes through, when it fails the circuit opens again right away
+			Thread.sleep(250);
+			daemon.dropCalls.set(1);
+			try {
+				p.call("add", 1, 2);
+				fail("expected connection error");
+			} catch (IOException x) {
+				// ok
+			}
+			assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+			try {
+				p.call("add", 1, 2);
+				fail("expected open circuit");
+			} catch (PyroException x) {
+				assertTrue(x.getMessage().contains("circuit breaker is open"));
+			}
+
+			// a successful trial call closes it
+			Thread.sleep(250);
+			assertEquals(3, p.call("add", 1, 2));
+			assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+			assertEquals(5, p.call("add", 2, 3));
+		} finally {
+			Config.CIRCUIT_BREAKER_THRESHOLD = threshold;
+			Config.CIRCUIT_BREAKER_OPEN_MILLIS = openMillis;
+			p.close();
+		}
+	}
+
+	@Test
+	public void testCircuitBreakerTrial() throws Exception
+	{
+		daemon.register("calc", "sleep", new FakeDaemon.Handler() {
+			public Object call(Object[] args) throws Exception {
+				Thread.sleep(((Number)args[0]).intValue());
+				return null;
+			}
+		});
+		int threshold = Config.CIRCUIT_BREAKER_THRESHOLD;
+		long openMillis = Config.CIRCUIT_BREAKER_OPEN_MILLIS;
+		Config.CIRCUIT_BREAKER_THRESHOLD = 1;
+		Config.CIRCUIT_BREAKER_OPEN_MILLIS = 100;
+		PyroProxy p = new PyroProxy(daemon.uri("calc"));
+		PyroProxy unknown = new PyroProxy(daemon.uri("nothere"));
+		try {
+			assertEquals(3, p.call("add", 1, 2));
+			CircuitBreaker breaker = CircuitBreaker.forEndpoint(daemon.getHost(), daemon.getPort());
+			p.pyroTimeout = 0.1;
+			try {
+				p.call("sleep", 1000);
+				fail("expected timeout");
+			} catch (SocketTimeoutException x) {
+				// ok
+			}
+			p.pyroTimeout = 0;
+			assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+			// a remote exception in the trial call closes the circuit
+			Thread.sleep(150);
+			try {
+				p.call("fail");
+				fail("expected remote exception");
+			} catch (PyroException x) {
+				assertEquals("builtins.ValueError", x.pythonExceptionType);
+			}
+			assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+			assertEquals(5, p.call("add", 2, 3));
+
+			// any other exception in the trial call counts as a failure, and frees the trial
+			breaker.failure();
+			Thread.sleep(150);
+			try {
+				unknown.call("add", 1, 2);
+				fail("expected connection rejected");
+			} catch (PyroException x) {
+				assertNull(x.pythonExceptionType);
+			}
+			assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+			Thread.sleep(150);
+			assertEquals(7, p.call("add", 3, 4));
+			assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		} finally {
+			Config.CIRCUIT_BREAKER_THRESHOLD = threshold;
+			Config.CIRCUIT_BREAKER_OPEN_MILLIS = openMillis;
+			p.close();
+			unknown.close();
+		}
+	}
+
+	@Test
+	public void testLargeAndCompressedResults() throws IOException
+	{
+		final char[] chars = new char[200000];
+		Random random = new Random(42);
+		for(int i=0; i<chars.length; ++i)
+			chars[i] = (char) ('a'+random.nextInt(26));
+		daemon.register("calc", "big", new FakeDaemon.Handler() {
+			public Object call(Object[] args) {
+				return new String(chars);
+			}
+		});
+		PyroProxy p = new PyroProxy(daemon.uri("calc"));
+		long threshold = Config.SPILL_THRESHOLD;
+		int segmented = Config.SEGMENTED_DATA_SIZE;
+		try {
+			Config.SPILL_THRESHOLD = 100000;
+			assertEquals(new String(chars), p.call("big"));		// serpent parses from an array, so it isn't spilled
+			Config.SPILL_THRESHOLD = threshold;
+
+			daemon.compressResults = true;
+			assertEquals(new String(chars), p.call("big"));
+			assertEquals(3, p.call("add", 1, 2));
+			Config.SEGMENTED_DATA_SIZE = 1000;
+			assertEquals(new String(chars), p.call("big"));		// inflated from the segments
+			assertEquals(3, p.call("add", 1, 2));
+		} finally {
+			Config.SPILL_THRESHOLD = threshold;
+			Config.SEGMENTED_DATA_SIZE = segmented;
+			p.close();
+		}
+	}
+
+	@Test
+	public void testOneway() throws Exception
+	{
+		final CountDownLatch called = new CountDownLatch(1);
+		daemon.registerOneway("calc", "notify", new FakeDaemon.Handler() {
+			public Object call(Object[] args) {
+				called.countDown();
+				return null;
+			}
+		});
+		PyroProxy p = new PyroProxy(daemon.uri("calc"));
+		try {
+			assertEquals(3, p.call("add", 1, 2));
+			assertTrue(p.pyroOneway.contains("notify"));
+			assertNull(p.call("notify"));
+			assertTrue(called.await(5, TimeUnit.SECONDS));
+			assertEquals(5, p.call("add", 2, 3));
+		} finally {
+			p.close();
+		}
+	}
+
+	@Test
+	public void testStreaming() throws IOException
+	{
+		PyroProxy p = new PyroProxy(daemon.uri("calc"));
+		try {
+			Iterable<?> items = (Iterable<?>) p.call("count");
+			int sum = 0;
+			for(Object item: items)
+				sum += (Integer) item;
+			assertEquals(15, sum);
+			assertEquals(0, daemon.openStreams());
+		} finally {
+			p.close();
+		}
+	}
+
+	@Test
+	public void testBatchAndPing() throws IOException
+	{
+		PyroSerializer ser = PyroSerializer.getSerpentSerializer();
+		Socket sock = new Socket(daemon.getHost(), daemon.getPort());
+		try {
+			Map<String, Object> handshake = new HashMap<String, Object>();
+			handshake.put("handshake", "hello");
+			handshake.put("object", "calc");
+			sock.getOutputStream().write(new Message(Message.MSG_CONNECT, ser.serializeData(handshake), ser.getSerializerId(), 0, 0, null, null).to_bytes());
+			assertEquals(Message.MSG_CONNECTOK, Message.recv(sock.getInputStream(), null).type);
+
+			sock.getOutputStream().write(new Message(Message.MSG_PING, "ping".getBytes(), ser.getSerializerId(), 0, 1, null, null).to_bytes());
+			Message pong = Message.recv(sock.getInputStream(), new int[]{Message.MSG_PING});
+			assertEquals(1, pong.seq);
+
+			Object[] calls = new Object[] {
+				new Object[] {"add", new Object[] {1, 2}, Collections.emptyMap()},
+				new Object[] {"fail", new Object[0], Collections.emptyMap()},
+				new Object[] {"add", new Object[] {3, 4}, Collections.emptyMap()}
+			};
+			byte[] data = ser.serializeCall("calc", "<batch>", calls, Collections.<String, Object>emptyMap());
+			sock.getOutputStream().write(new Message(Message.MSG_INVOKE, data, ser.getSerializerId(), Message.FLAGS_BATCH, 2, null, null).to_bytes());
+			Message result = Message.recv(sock.getInputStream(), new int[]{Message.MSG_RESULT});
+			assertEquals(2, result.seq);
+			List<?> results = (List<?>) ser.deserializeData(result.data);
+			assertEquals(2, results.size());
+			assertEquals(3, results.get(0));
+			assertEquals("builtins.ValueError", ((PyroException) results.get(1)).pythonExceptionType);
+		} finally {
+			sock.close();
+		}
+	}
+
+	@Test
+	public void testLoadBalancing() throws Exception
+	{
+		FakeDaemon daemon2 = new FakeDaemon();
+		try {
+			daemon2.register("calc", "add", new FakeDaemon.Handler() {
+				public Object call(Object[] args) {
+					return ((Number)args[0]).intValue() + ((Number)args[1]).intValue();
+				}
+			});
+			LoadBalancingProxy lb = new LoadBalancingProxy(Arrays.asList(daemon.uri("calc"), daemon2.uri("calc")), LoadBalancingProxy.Strategy.ROUND_ROBIN);
+			try {
+				for(int i=0; i<10; ++i)
+					assertEquals(i+1, lb.call("add", i, 1));
+				assertTrue(daemon.invocations.get() > 0);
+				assertTrue(daemon2.invocations.get() > 0);
+				Map<String, Integer> outstanding = lb.outstandingCalls();
+				assertEquals(2, outstanding.size());
+				assertEquals(Integer.valueOf(0), outstanding.get(daemon.uri("calc").toString()));
+				assertEquals(Integer.valueOf(0), outstanding.get(daemon2.uri("calc").toString()));
+			} finally {
+				lb.close();
+			}
+		} finally {
+			daemon2.close();
+		}
+	}
+
+	@Test
+	public void testLoadBalancingDropsBrokenProxies() throws Exception
+	{
+		final AtomicInteger created = new AtomicInteger();
+		final AtomicInteger failLocally = new AtomicInteger();
+		LoadBalancingProxy lb = new LoadBalancingProxy(Arrays.asList(daemon.uri("calc")), LoadBalancingProxy.Strategy.ROUND_ROBIN) {
+			@Override
+			protected PyroProxy createProxy(PyroURI uri) throws IOException {
+				created.incrementAndGet();
+				return new PyroProxy(uri) {
+					private static final long serialVersionUID = 1L;
+
+					@Override
+					public void responseAnnotations(SortedMap<String, byte[]> annotations, int msgtype) {
+						if(failLocally.getAndSet(0)!=0)
+							throw new PyroException("result msg out of sync");
+					}
+				};
+			}
+		};
+		try {
+			assertEquals(3, lb.call("add", 1, 2));
+			assertEquals(3, lb.call("add", 1, 2));
+			assertEquals(1, created.get());
+			try {
+				lb.call("fail");
+				fail("expected remote exception");
+			} catch (PyroException x) {
+				assertNotNull(x.pythonExceptionType);
+			}
+			assertEquals(3, lb.call("add", 1, 2));
+			assertEquals(1, created.get());		// still the same connection
+
+			failLocally.set(1);
+			try {
+				lb.call("add", 1, 2);
+				fail("expected local failure");
+			} catch (PyroException x) {
+				assertNull(x.pythonExceptionType);
+			}
+			assertEquals(3, lb.call("add", 1, 2));
+			assertEquals(2, created.get());		// the broken connection was not reused
+		} finally {
+			lb.close();
+		}
+	}
+
+	@Test
+	public void testDaemonObject() throws IOException
+	{
+		PyroProxy p = new PyroProxy(daemon.uri(Config.DAEMON_NAME));
+		try {
+			p.call("ping");
+			assertTrue(p.pyroMethods.contains("get_metadata"));
+		} finally {
+			p.close();
+		}
+	}
+
+	@Test
+	public void testConcurrentCalls() throws Exception
+	{
+		final PyroProxy shared = new PyroProxy(daemon.uri("calc"));
+		final LoadBalancingProxy pool = new LoadBalancingProxy(Arrays.asList(daemon.uri("calc")), LoadBalancingProxy.Strategy.ROUND_ROBIN);
+		pool.maxConnectionsPerEndpoint = 4;
+		final AtomicInteger errors = new AtomicInteger();
+		Thread[] threads = new Thread[50];
+		for(int i=0; i<threads.length; ++i) {
+			final int n = i;
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					try {
+						for(int c=0; c<20; ++c) {
+							if(!Integer.valueOf(n+c).equals(shared.call("add", n, c)))
+								errors.incrementAndGet();
+							if(!Integer.valueOf(n-c).equals(pool.call("add", n, -c)))
+								errors.incrementAndGet();
+						}
+					} catch (Exception x) {
+						errors.incrementAndGet();
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for(Thread t: threads)
+			t.join();
+		assertEquals(0, errors.get());
+		assertTrue(daemon.connections.get() <= 5);	// the shared proxy plus at most 4 pooled connections
+		shared.close();
+		pool.close();
+	}
+
+	@Test
+	public void testUnixSocket() throws Exception
+	{
+		Assume.assumeTrue(UnixSockets.available());
+		File sockname = File.createTempFile("pyrolite", ".sock");
+		FakeDaemon unixDaemon = new FakeDaemon(sockname.getPath());
+		try {
+			unixDaemon.register("calc", "add", new FakeDaemon.Handler() {
+				public Object call(Object[] args) {
+					return ((Number)args[0]).intValue() + ((Number)args[1]).intValue();
+				}
+			});
+			unixDaemon.register("calc", "sleep", new FakeDaemon.Handler() {
+				public Object call(Object[] args) throws Exception {
+					Thread.sleep(((Number)args[0]).intValue());
+					return null;
+				}
+			});
+			PyroURI uri = unixDaemon.uri("calc");
+			assertEquals(sockname.getPath(), uri.sockname);
+
+			PyroProxy p = new PyroProxy(uri);
+			assertEquals(42, p.call("add", 40, 2));
+			assertTrue(p.pyroMethods.contains("sleep"));
+			p.pyroTimeout = 0.2;
+			try {
+				p.call("sleep", 2000);
+				fail("expected timeout");
+			} catch (SocketTimeoutException x) {
+				// ok
+			}
+			assertEquals(5, p.call("add", 2, 3));	// reconnected
+			p.close();
+
+			PyroClientEngine engine = new PyroClientEngine(1);
+			try {
+				AsyncPyroProxy ap = engine.connect(uri).get(5, TimeUnit.SECONDS);
+				assertEquals(7, ap.call("add", 3, 4).get(5, TimeUnit.SECONDS));
+			} finally {
+				engine.close();
+			}
+		} finally {
+			unixDaemon.close();
+		}
+	}
+}
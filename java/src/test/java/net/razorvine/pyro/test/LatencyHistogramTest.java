@@ -0,0 +1,64 @@
+package net.razorvine.pyro.test;
+
+import static org.junit.Assert.*;
+
+import net.razorvine.pyro.metrics.ClientMetrics;
+import net.razorvine.pyro.metrics.LatencyHistogram;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the metrics histogram.
+ */
+public class LatencyHistogramTest {
+
+	@Test
+	public void testEmpty()
+	{
+		LatencyHistogram h = new LatencyHistogram();
+		assertEquals(0, h.getCount());
+		assertEquals(0, h.getPercentile(99));
+		assertEquals(0.0, h.getMean(), 0.0);
+	}
+
+	@Test
+	public void testPercentiles()
+	{
+		LatencyHistogram h = new LatencyHistogram();
+		for(int i=1; i<=1000; ++i)
+			h.record(i*1000L);
+		assertEquals(1000, h.getCount());
+		assertEquals(1000000L, h.getMax());
+		assertEquals(500500.0, h.getMean(), 0.001);
+		long p50 = h.getPercentile(50);
+		long p99 = h.getPercentile(99);
+		assertTrue("p50 "+p50, p50>=500000 && p50<=500000*1.04);
+		assertTrue("p99 "+p99, p99>=990000 && p99<=990000*1.04);
+		assertEquals(1000000L, h.getPercentile(100));
+
+		h.reset();
+		assertEquals(0, h.getCount());
+		h.record(7);
+		assertEquals(7, h.getPercentile(50));
+		h.record(Long.MAX_VALUE);
+		assertEquals(Long.MAX_VALUE, h.getPercentile(100));
+	}
+
+	@Test
+	public void testClientMetrics()
+	{
+		ClientMetrics m = new ClientMetrics();
+		m.callStarted("obj", "method");
+		assertEquals(1, m.getInFlight());
+		m.callCompleted("obj", "method", 2000000, null);
+		m.callStarted("obj", "method");
+		m.callCompleted("obj", "method", 4000000, new RuntimeException());
+		m.remoteException("builtins.ValueError");
+		m.remoteException("builtins.ValueError");
+		assertEquals(0, m.getInFlight());
+		assertEquals(2, m.callLatency("obj", "method").getCount());
+		assertEquals(1, m.failedCalls.sum());
+		assertEquals(Long.valueOf(2), m.getRemoteExceptionCounts().get("builtins.ValueError"));
+		assertTrue(m.report().contains("call obj.method: count=2"));
+	}
+}
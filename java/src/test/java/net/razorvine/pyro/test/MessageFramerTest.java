@@ -0,0 +1,224 @@
+package net.razorvine.pyro.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import net.razorvine.pyro.Config;
+import net.razorvine.pyro.Message;
+import net.razorvine.pyro.MessageFramer;
+import net.razorvine.pyro.PyroException;
+import net.razorvine.pyro.SegmentedBuffer;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the incremental message framer.
+ */
+public class MessageFramerTest {
+
+	private static Message makeMessage(int seq, int dataSize, int annotationSize) {
+		byte[] data = new byte[dataSize];
+		for(int i=0; i<dataSize; ++i)
+			data[i] = (byte)(i*7+seq);
+		SortedMap<String, byte[]> annotations = new TreeMap<String, byte[]>();
+		if(annotationSize>0) {
+			byte[] value = new byte[annotationSize];
+			for(int i=0; i<annotationSize; ++i)
+				value[i] = (byte)i;
+			annotations.put("BLOB", value);
+			annotations.put("XYZZ", "zork".getBytes());
+		}
+		return new Message(Message.MSG_RESULT, data, Message.SERIALIZER_SERPENT, 0, seq, annotations, UUID.randomUUID());
+	}
+
+	private static void assertSameMessage(Message expected, Message actual) {
+		assertEquals(expected.type, actual.type);
+		assertEquals(expected.seq, actual.seq);
+		assertEquals(expected.data_size, actual.data_size);
+		assertArrayEquals(expected.data, actual.data);
+		assertEquals(expected.annotations.keySet(), actual.annotations.keySet());
+		for(String key: expected.annotations.keySet())
+			assertArrayEquals(expected.annotations.get(key), actual.annotations.get(key));
+	}
+
+	@Test
+	public void testSingleBytes()
+	{
+		Message msg = makeMessage(42, 300, 200);
+		byte[] bytes = msg.to_bytes();
+		MessageFramer framer = new MessageFramer();
+		for(int i=0; i<bytes.length-1; ++i) {
+			assertNull(framer.next(ByteBuffer.wrap(bytes, i, 1)));
+			assertTrue(framer.inProgress());
+		}
+		Message result = framer.next(ByteBuffer.wrap(bytes, bytes.length-1, 1));
+		assertNotNull(result);
+		assertFalse(framer.inProgress());
+		assertSameMessage(msg, result);
+	}
+
+	@Test
+	public void testRandomFragments() throws IOException
+	{
+		Random random = new Random(1234);
+		List<Message> messages = new ArrayList<Message>();
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		for(int i=0; i<200; ++i) {
+			Message msg = makeMessage(i, random.nextInt(3000), random.nextInt(3) == 0 ? random.nextInt(10000) : 0);
+			messages.add(msg);
+			stream.write(msg.to_bytes());
+		}
+		byte[] bytes = stream.toByteArray();
+
+		MessageFramer framer = new MessageFramer();
+		List<Message> received = new ArrayList<Message>();
+		int offset = 0;
+		while(offset<bytes.length) {
+			int size = Math.min(bytes.length-offset, 1+random.nextInt(5000));
+			ByteBuffer fragment = ByteBuffer.allocateDirect(size);
+			fragment.put(bytes, offset, size).flip();
+			offset += size;
+			Message msg;
+			while((msg=framer.next(fragment))!=null)
+				received.add(msg);
+			assertEquals(0, fragment.remaining());
+		}
+		assertEquals(messages.size(), received.size());
+		for(int i=0; i<messages.size(); ++i)
+			assertSameMessage(messages.get(i), received.get(i));
+	}
+
+	@Test
+	public void testLeavesTheNextMessage()
+	{
+		byte[] first = makeMessage(1, 0, 0).to_bytes();
+		byte[] second = makeMessage(2, 10, 0).to_bytes();
+		ByteBuffer buffer = ByteBuffer.allocate(first.length+second.length);
+		buffer.put(first).put(second).flip();
+		MessageFramer framer = new MessageFramer();
+		assertEquals(1, framer.next(buffer).seq);
+		assertEquals(second.length, buffer.remaining());
+		assertEquals(2, framer.next(buffer).seq);
+		assertNull(framer.next(buffer));
+	}
+
+	@Test
+	public void testEarlyValidation()
+	{
+		MessageFramer framer = new MessageFramer();
+		try {
+			framer.next(ByteBuffer.wrap("PYX".getBytes()));
+			fail("should crash");
+		} catch (PyroException x) {
+			assertEquals("invalid message", x.getMessage());
+		}
+
+		byte[] bytes = makeMessage(1, 10, 0).to_bytes();
+		bytes[4] = 0;
+		bytes[5] = 47;
+		framer = new MessageFramer();
+		try {
+			framer.next(ByteBuffer.wrap(bytes, 0, 6));
+			fail("should crash");
+		} catch (PyroException x) {
+			assertEquals("invalid protocol version: 47", x.getMessage());
+		}
+	}
+
+	@Test
+	public void testSizeLimit()
+	{
+		assertEquals(SegmentedBuffer.MAX_ARRAY_SIZE, new MessageFramer().maxMessageSize);	// no limit configured
+		long limit = Config.MAX_MESSAGE_SIZE;
+		Config.MAX_MESSAGE_SIZE = 5000;
+		try {
+			assertEquals(5000, new MessageFramer().maxMessageSize);
+		} finally {
+			Config.MAX_MESSAGE_SIZE = limit;
+		}
+
+		MessageFramer framer = new MessageFramer();
+		framer.maxMessageSize = 1000;
+		assertNotNull(framer.next(ByteBuffer.wrap(makeMessage(1, 900, 0).to_bytes())));
+		try {
+			framer.next(ByteBuffer.wrap(makeMessage(2, 1001, 0).to_bytes(), 0, Message.HEADER_SIZE));
+			fail("should crash");
+		} catch (PyroException x) {
+			assertEquals("max message size exceeded", x.getMessage());
+		}
+
+		// sizes over 2 Gb don't fit in an int
+		byte[] bytes = makeMessage(3, 0, 0).to_bytes();
+		bytes[12] = (byte)0x80;
+		try {
+			new MessageFramer().next(ByteBuffer.wrap(bytes));
+			fail("should crash");
+		} catch (PyroException x) {
+			assertEquals("max message size exceeded", x.getMessage());
+		}
+	}
+
+	@Test
+	public void testGrowingBuffers()
+	{
+		Message msg = makeMessage(8, 300000, 10000);
+		byte[] bytes = msg.to_bytes();
+		MessageFramer framer = new MessageFramer();
+		for(int i=0; i<bytes.length-1000; i+=1000)
+			assertNull(framer.next(ByteBuffer.wrap(bytes, i, 1000)));
+		int rest = bytes.length%1000==0 ? 1000 : bytes.length%1000;
+		Message received = framer.next(ByteBuffer.wrap(bytes, bytes.length-rest, rest));
+		assertSameMessage(msg, received);
+		assertEquals(300000, received.data.length);
+	}
+
+	@Test
+	public void testHeaderDoesntReserveMemory()
+	{
+		// every header announces almost 2 Gb, allocating that up front would run out of memory
+		byte[] bytes = makeMessage(9, 0, 0).to_bytes();
+		bytes[12] = 0x7f;
+		bytes[13] = (byte)0xff;
+		List<MessageFramer> framers = new ArrayList<MessageFramer>();
+		for(int i=0; i<100; ++i) {
+			MessageFramer framer = new MessageFramer();
+			assertNull(framer.next(ByteBuffer.wrap(bytes)));
+			assertNull(framer.next(ByteBuffer.wrap(new byte[100000])));
+			assertTrue(framer.inProgress());
+			framers.add(framer);
+		}
+	}
+
+	@Test
+	public void testAnnotationLengthBytesOver127() throws IOException
+	{
+		// chunk lengths with bytes >= 0x80 used to be parsed as negative numbers by Message.recv
+		Message msg = makeMessage(5, 10, 0x80ff);
+		byte[] bytes = msg.to_bytes();
+		assertSameMessage(msg, new MessageFramer().next(ByteBuffer.wrap(bytes)));
+		assertSameMessage(msg, Message.recv(new ByteArrayInputStream(bytes), null));
+	}
+
+	@Test
+	public void testInvalidAnnotationChunk()
+	{
+		byte[] bytes = makeMessage(6, 10, 20).to_bytes();
+		bytes[Message.HEADER_SIZE+7] = 100;		// chunk length larger than the annotations
+		try {
+			new MessageFramer().next(ByteBuffer.wrap(bytes));
+			fail("should crash");
+		} catch (PyroException x) {
+			assertEquals("invalid annotation chunk length", x.getMessage());
+		}
+	}
+}
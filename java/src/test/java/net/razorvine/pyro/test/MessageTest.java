@@ -1,7 +1,10 @@
 package net.razorvine.pyro.test;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.util.Arrays;
+import java.util.Random;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
@@ -259,4 +262,142 @@ public class MessageTest {
 		assertEquals(0, msg.annotations_size);
 		assertEquals(0, msg.annotations.size());
 	}
+
+	@Test
+	public void testUnsignedSizes() throws IOException
+	{
+		Message msg = new Message(Message.MSG_RESULT, "hello".getBytes(), (byte)99, 0, 1, null, null);
+		msg.data_size = 0xc0000000;		// 3 Gb
+		byte[] hdr = getHeaderBytes(msg.to_bytes());
+		msg = Message.from_header(hdr);
+		assertEquals(3L*1024*1024*1024, msg.get_data_size());
+		assertEquals(0, msg.get_annotations_size());
+		long limit = Config.MAX_MESSAGE_SIZE;
+		Config.MAX_MESSAGE_SIZE = 2L*1024*1024*1024;
+		try {
+			Message.recv(new ByteArrayInputStream(hdr), null);
+			fail("expected size refused");
+		} catch (PyroException x) {
+			assertEquals("max message size exceeded", x.getMessage());
+		} finally {
+			Config.MAX_MESSAGE_SIZE = limit;
+		}
+	}
+
+	@Test
+	public void testSegmentedReceive() throws IOException
+	{
+		// over the (lowered) threshold: received in segments, with the default message size limit
+		byte[] payload = new byte[5000];
+		new Random(1).nextBytes(payload);
+		Message msg = new Message(Message.MSG_RESULT, payload, (byte)99, 0, 1, null, null);
+		int threshold = Config.SEGMENTED_DATA_SIZE;
+		Config.SEGMENTED_DATA_SIZE = 1000;
+		try {
+			Message received = Message.recv(new ByteArrayInputStream(msg.to_bytes()), null);
+			assertNull(received.data);
+			assertArrayEquals(payload, received.data_segments.toByteArray());
+		} finally {
+			Config.SEGMENTED_DATA_SIZE = threshold;
+		}
+
+		// 3 Gb of data passes the size check and is read in segments, until the stream ends
+		msg.data_size = 0xc0000000;
+		byte[] bytes = msg.to_bytes();
+		try {
+			Message.recv(new ByteArrayInputStream(bytes), null);
+			fail("expected premature end");
+		} catch (IOException x) {
+			assertEquals("premature end of data", x.getMessage());
+		}
+	}
+
+	@Test
+	public void testSegmentedData() throws IOException
+	{
+		byte[] payload = ser.serializeData(Arrays.asList("segmented", 42, "data"));
+		ByteBuffer direct = ByteBuffer.allocateDirect(payload.length-10);
+		direct.put(payload, 5, payload.length-10).flip();
+		SegmentedBuffer body = new SegmentedBuffer(
+				ByteBuffer.wrap(payload, 0, 5),
+				direct,
+				ByteBuffer.wrap(payload, payload.length-5, 5));
+		assertEquals(payload.length, body.length());
+		assertEquals(3, body.segmentCount());
+		assertArrayEquals(payload, body.toByteArray());
+		assertEquals(Arrays.asList("segmented", 42, "data"), ser.deserializeData(body));
+
+		SortedMap<String, byte[]> annotations = new TreeMap<String, byte[]>();
+		annotations.put("TEST", new byte[]{1,2,3});
+		Message msg = new Message(Message.MSG_RESULT, body, ser.getSerializerId(), 0, 7, annotations, null);
+		assertEquals(payload.length, msg.get_data_size());
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		msg.send(out);
+		assertArrayEquals(new Message(Message.MSG_RESULT, payload, ser.getSerializerId(), 0, 7, annotations, null).to_bytes(), out.toByteArray());
+		assertArrayEquals(out.toByteArray(), msg.to_bytes());
+
+		int threshold = Config.SEGMENTED_DATA_SIZE;
+		Config.SEGMENTED_DATA_SIZE = 10;
+		try {
+			msg = Message.recv(new ByteArrayInputStream(out.toByteArray()), null);
+		} finally {
+			Config.SEGMENTED_DATA_SIZE = threshold;
+		}
+		assertNull(msg.data);
+		assertEquals(payload.length, msg.data_segments.length());
+		assertArrayEquals(new byte[]{1,2,3}, msg.annotations.get("TEST"));
+		assertArrayEquals(payload, msg.data_segments.toByteArray());
+
+		SegmentedBuffer read = SegmentedBuffer.read(new ByteArrayInputStream(payload), payload.length, 4);
+		assertEquals((payload.length+3)/4, read.segmentCount());
+		assertArrayEquals(payload, read.toByteArray());
+		try {
+			SegmentedBuffer.read(new ByteArrayInputStream(payload), payload.length+1, 4);
+			fail("expected premature end");
+		} catch (IOException x) {
+			// ok
+		}
+	}
+
+	@Test
+	public void testSpillToFile() throws IOException
+	{
+		byte[] payload = new byte[100000];
+		for(int i=0; i<payload.length; ++i)
+			payload[i] = (byte) i;
+		byte[] wire = new Message(Message.MSG_RESULT, payload, Message.SERIALIZER_MARSHAL, 0, 1, null, null).to_bytes();	// not deserialized by Pyrolite
+		File dir = Files.createTempDirectory("pyrospill").toFile();
+		long threshold = Config.SPILL_THRESHOLD;
+		Config.SPILL_THRESHOLD = 1000;
+		Config.SPILL_DIR = dir.getPath();
+		try {
+			Message msg = Message.recv(new ByteArrayInputStream(wire), null);
+			assertNull(msg.data);
+			assertEquals(1, msg.data_segments.segmentCount());
+			assertTrue(msg.data_segments.segment(0).isDirect());		// memory mapped
+			assertArrayEquals(payload, msg.data_segments.toByteArray());
+			assertEquals(0, dir.list().length);		// the temp file is already gone
+
+			// serpent and compressed data would be copied onto the heap anyway
+			byte[] serpent = new Message(Message.MSG_RESULT, payload, ser.getSerializerId(), 0, 1, null, null).to_bytes();
+			assertArrayEquals(payload, Message.recv(new ByteArrayInputStream(serpent), null).data);
+			byte[] compressed = new Message(Message.MSG_RESULT, payload, Message.SERIALIZER_MARSHAL, Message.FLAGS_COMPRESSED, 1, null, null).to_bytes();
+			assertArrayEquals(payload, Message.recv(new ByteArrayInputStream(compressed), null).data);
+
+			byte[] small = new Message(Message.MSG_RESULT, new byte[]{1,2,3}, ser.getSerializerId(), 0, 1, null, null).to_bytes();
+			msg = Message.recv(new ByteArrayInputStream(small), null);
+			assertArrayEquals(new byte[]{1,2,3}, msg.data);		// below the threshold
+
+			try {
+				Message.recv(new ByteArrayInputStream(Arrays.copyOf(wire, 5000)), null);
+				fail("expected premature end");
+			} catch (IOException x) {
+				assertEquals(0, dir.list().length);
+			}
+		} finally {
+			Config.SPILL_THRESHOLD = threshold;
+			Config.SPILL_DIR = null;
+			dir.delete();
+		}
+	}
 }
@@ -0,0 +1,233 @@
+package net.razorvine.pyro.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import net.razorvine.pyro.Config;
+import net.razorvine.pyro.Message;
+import net.razorvine.pyro.trace.MessageTracer;
+import net.razorvine.pyro.trace.Replay;
+import net.razorvine.pyro.trace.TraceReader;
+import net.razorvine.pyro.serializer.PyroSerializer;
+import net.razorvine.pyro.trace.TraceRecord;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the asynchronous message tracer.
+ */
+public class MessageTracerTest {
+
+	private File dir;
+	private long oldFileSize;
+	private long oldQueueSize;
+	private int oldMaxDataSize;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("pyrotrace").toFile();
+		oldFileSize = Config.MSG_TRACE_FILE_SIZE;
+		oldQueueSize = Config.MSG_TRACE_QUEUE_SIZE;
+		oldMaxDataSize = Config.MSG_TRACE_MAX_DATA_SIZE;
+	}
+
+	@After
+	public void tearDown() {
+		Config.MSG_TRACE_DIR = null;
+		MessageTracer.get();	// stops the tracer
+		Config.MSG_TRACE_FILE_SIZE = oldFileSize;
+		Config.MSG_TRACE_QUEUE_SIZE = oldQueueSize;
+		Config.MSG_TRACE_MAX_DATA_SIZE = oldMaxDataSize;
+		for(File f: dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+
+	private List<TraceRecord> readAll() throws IOException {
+		List<TraceRecord> records = new ArrayList<TraceRecord>();
+		for(File file: TraceReader.traceFiles(dir)) {
+			TraceReader reader = new TraceReader(file);
+			try {
+				records.addAll(reader.readAll());
+			} finally {
+				reader.close();
+			}
+		}
+		return records;
+	}
+
+	@Test
+	public void testTraceAndRead() throws Exception
+	{
+		Config.MSG_TRACE_DIR = dir.getPath();
+		SortedMap<String, byte[]> annotations = new TreeMap<String, byte[]>();
+		annotations.put("XYZZ", new byte[300]);
+		Message msg = new Message(Message.MSG_INVOKE, "hello".getBytes(), (byte)42, 0, 70000, annotations, null);
+		Message.TraceMessageSend(5L, msg.get_header_bytes(), msg.get_annotations_bytes(), msg.data);
+		Message.TraceMessageRecv(5L, msg.get_header_bytes(), null, new byte[0]);
+		MessageTracer.get().flush();
+
+		List<TraceRecord> records = readAll();
+		assertEquals(2, records.size());
+		TraceRecord send = records.get(0);
+		assertTrue(send.isSend());
+		assertEquals(5L, send.connectionId);
+		assertTrue(send.timestamp>0);
+		Message traced = send.toMessage();
+		assertEquals(Message.MSG_INVOKE, traced.type);
+		assertEquals(70000 & 0xffff, traced.seq);
+		assertArrayEquals("hello".getBytes(), traced.data);
+		assertEquals(300, traced.annotations.get("XYZZ").length);
+		TraceRecord recv = records.get(1);
+		assertFalse(recv.isSend());
+		assertTrue(recv.sequence>send.sequence);
+		assertEquals(0, recv.data.length);
+	}
+
+	@Test
+	public void testSameTracer() throws Exception
+	{
+		Config.MSG_TRACE_DIR = dir.getPath() + File.separator;	// a File would drop the trailing separator
+		MessageTracer tracer = MessageTracer.get();
+		assertSame(tracer, MessageTracer.get());
+		assertFalse(tracer.isFailed());
+		assertNull(tracer.lastError());
+		Config.MSG_TRACE_DIR = dir.getPath();
+		assertNotSame(tracer, MessageTracer.get());
+	}
+
+	@Test
+	public void testRollingFiles() throws Exception
+	{
+		Config.MSG_TRACE_DIR = dir.getPath();
+		Config.MSG_TRACE_FILE_SIZE = 1000;
+		Message msg = new Message(Message.MSG_RESULT, new byte[400], (byte)42, 0, 1, null, null);
+		for(int i=0; i<10; ++i)
+			Message.TraceMessageRecv(1L, msg.get_header_bytes(), null, msg.data);
+		MessageTracer.get().flush();
+		assertEquals(5, TraceReader.traceFiles(dir).size());
+		List<TraceRecord> records = readAll();
+		assertEquals(10, records.size());
+		for(int i=0; i<10; ++i)
+			assertEquals(i+1, records.get(i).sequence);
+	}
+
+	@Test
+	public void testPartialAndDropped() throws Exception
+	{
+		Config.MSG_TRACE_DIR = dir.getPath();
+		Config.MSG_TRACE_MAX_DATA_SIZE = 100;
+		Message msg = new Message(Message.MSG_RESULT, new byte[400], (byte)42, 0, 1, null, null);
+		Message.TraceMessageRecv(1L, msg.get_header_bytes(), null, msg.data);
+		Message.TraceMessageRecv(1L, msg.get_header_bytes(), null, null);		// segmented
+		Message empty = new Message(Message.MSG_RESULT, new byte[0], (byte)42, 0, 2, null, null);
+		Message.TraceMessageRecv(1L, empty.get_header_bytes(), null, null);
+		MessageTracer.get().flush();
+		List<TraceRecord> records = readAll();
+		assertEquals(3, records.size());
+		assertTrue(records.get(0).partial);
+		assertEquals(100, records.get(0).data.length);
+		assertTrue(records.get(1).partial);
+		assertEquals(0, records.get(1).data.length);
+		assertEquals(400, records.get(1).toMessage().data_size);
+		assertFalse(records.get(2).partial);
+
+		Config.MSG_TRACE_QUEUE_SIZE = TraceRecord.OVERHEAD + Message.HEADER_SIZE + 50;
+		MessageTracer tracer = MessageTracer.get();
+		assertFalse(tracer.trace(1L, MessageTracer.DIRECTION_RECV, msg.get_header_bytes(), null, msg.data));
+		assertEquals(1, tracer.getDropped());
+		assertTrue(tracer.trace(1L, MessageTracer.DIRECTION_RECV, msg.get_header_bytes(), null, new byte[50]));
+		tracer.flush();
+		assertEquals(4, readAll().size());
+	}
+
+	@Test(timeout=5000)
+	public void testWriterFailure() throws Exception
+	{
+		File notADirectory = new File(dir, "file");
+		Files.write(notADirectory.toPath(), new byte[1]);
+		Config.MSG_TRACE_DIR = notADirectory.getPath();
+		MessageTracer tracer = MessageTracer.get();
+		Message msg = new Message(Message.MSG_RESULT, new byte[10], (byte)42, 0, 1, null, null);
+		tracer.trace(1L, MessageTracer.DIRECTION_RECV, msg.get_header_bytes(), null, msg.data);
+		tracer.flush();		// must not hang
+		assertTrue(tracer.isFailed());
+		assertTrue(tracer.lastError() instanceof IOException);
+		assertFalse(tracer.trace(1L, MessageTracer.DIRECTION_RECV, msg.get_header_bytes(), null, msg.data));
+		assertEquals(1, tracer.getDropped());
+	}
+
+	@Test
+	public void testLoadReplayRequests() throws Exception
+	{
+		Config.MSG_TRACE_DIR = dir.getPath();
+		Message invoke = new Message(Message.MSG_INVOKE, "call".getBytes(), (byte)1, 0, 1, null, null);
+		Message connect = new Message(Message.MSG_CONNECT, "hello".getBytes(), (byte)1, 0, 0, null, null);
+		Message.TraceMessageSend(1L, connect.get_header_bytes(), null, connect.data);
+		Message.TraceMessageSend(1L, invoke.get_header_bytes(), null, invoke.data);
+		Message.TraceMessageRecv(1L, invoke.get_header_bytes(), null, invoke.data);
+		MessageTracer.get().flush();
+
+		// an old style trace file pair
+		SortedMap<String, byte[]> annotations = new TreeMap<String, byte[]>();
+		annotations.put("CORR", new byte[16]);
+		Message old = new Message(Message.MSG_INVOKE, "old".getBytes(), (byte)1, 0, 2, annotations, null);
+		Files.write(new File(dir, "00002-a-send-header.dat").toPath(), concat(old.get_header_bytes(), old.get_annotations_bytes()));
+		Files.write(new File(dir, "00002-a-send-message.dat").toPath(), old.data);
+
+		List<Message> requests = Replay.loadRequests(dir);
+		assertEquals(2, requests.size());
+		assertArrayEquals("call".getBytes(), requests.get(0).data);
+		assertArrayEquals("old".getBytes(), requests.get(1).data);
+		assertEquals(16, requests.get(1).annotations.get("CORR").length);
+	}
+
+	@Test
+	public void testReplay() throws Exception
+	{
+		PyroSerializer ser = PyroSerializer.getSerpentSerializer();
+		byte[] ping = ser.serializeCall(Config.DAEMON_NAME, "ping", new Object[0], Collections.<String, Object>emptyMap());
+		List<Message> requests = Arrays.asList(new Message(Message.MSG_INVOKE, ping, ser.getSerializerId(), 0, 1, null, null));
+		FakeDaemon daemon = new FakeDaemon();
+		try {
+			Replay replay = new Replay(requests, daemon.getHost(), daemon.getPort());
+			replay.concurrency = 2;
+			replay.iterations = 10;
+			Replay.Result result = replay.run();
+			assertEquals(10, result.completed.sum());
+			assertEquals(0, result.failed.sum());
+			assertTrue(result.connectionErrors.isEmpty());
+		} finally {
+			daemon.close();
+		}
+
+		ServerSocket unused = new ServerSocket(0);
+		int port = unused.getLocalPort();
+		unused.close();
+		Replay replay = new Replay(requests, "127.0.0.1", port);
+		replay.concurrency = 2;
+		Replay.Result result = replay.run();
+		assertEquals(0, result.completed.sum());
+		assertEquals(2, result.connectionErrors.size());
+		assertTrue(result.connectionErrors.peek() instanceof IOException);
+	}
+
+	private static byte[] concat(byte[] a, byte[] b) {
+		byte[] result = new byte[a.length+b.length];
+		System.arraycopy(a, 0, result, 0, a.length);
+		System.arraycopy(b, 0, result, a.length, b.length);
+		return result;
+	}
+}
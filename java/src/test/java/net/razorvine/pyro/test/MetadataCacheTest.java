@@ -0,0 +1,123 @@
+package net.razorvine.pyro.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import net.razorvine.pyro.MetadataCache;
+import net.razorvine.pyro.PyroException;
+import net.razorvine.pyro.PyroURI;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the metadata cache.
+ */
+public class MetadataCacheTest {
+
+	@Test
+	public void testFromDict()
+	{
+		Map<String, Object> dict = new HashMap<String, Object>();
+		dict.put("methods", new Object[] {"method1", "method2"});
+		dict.put("attrs", new HashSet<String>(Arrays.asList("attr1")));
+		dict.put("oneways", new Object[] {"method2"});
+		MetadataCache.Metadata md = MetadataCache.Metadata.fromDict(dict);
+		assertEquals(new HashSet<String>(Arrays.asList("method1", "method2")), md.methods);
+		assertEquals(new HashSet<String>(Arrays.asList("attr1")), md.attrs);
+		assertEquals(new HashSet<String>(Arrays.asList("method2")), md.oneways);
+		try {
+			md.methods.add("method3");
+			fail("sets should be immutable");
+		} catch (UnsupportedOperationException x) {
+			// ok
+		}
+
+		dict.clear();
+		dict.put("oneways", new Object[] {"method2"});
+		try {
+			MetadataCache.Metadata.fromDict(dict);
+			fail("should fail, nothing exposed");
+		} catch (PyroException x) {
+			// ok
+		}
+	}
+
+	@Test
+	public void testMatches()
+	{
+		Map<String, Object> dict = new HashMap<String, Object>();
+		dict.put("methods", new Object[] {"method1", "method2"});
+		dict.put("attrs", new HashSet<String>(Arrays.asList("attr1")));
+		dict.put("oneway", new Object[] {"method2"});
+		MetadataCache.Metadata md = MetadataCache.Metadata.fromDict(dict);
+		assertTrue(md.matches(dict));
+		dict.put("methods", new HashSet<String>(Arrays.asList("method2", "method1")));
+		assertTrue(md.matches(dict));
+		dict.put("methods", new Object[] {"method1", "method3"});
+		assertFalse(md.matches(dict));
+		dict.put("methods", new Object[] {"method1", "method2"});
+		dict.remove("oneway");
+		assertFalse(md.matches(dict));
+	}
+
+	@Test
+	public void testSaveLoad() throws IOException
+	{
+		MetadataCache cache = new MetadataCache();
+		PyroURI uri = new PyroURI("PYRO:something@localhost:4444");
+		cache.put(uri, new MetadataCache.Metadata(Arrays.asList("m1"), Arrays.asList("a1"), Arrays.asList("m1")));
+		assertNotNull(cache.get(new PyroURI("PYRO:something@localhost:4444")));
+
+		File file = File.createTempFile("pyrometadata", ".ser");
+		try {
+			cache.save(file);
+			MetadataCache cache2 = new MetadataCache();
+			cache2.load(file);
+			assertEquals(1, cache2.size());
+			MetadataCache.Metadata md = cache2.get(uri);
+			assertTrue(md.methods.contains("m1"));
+			assertTrue(md.attrs.contains("a1"));
+			assertTrue(md.oneways.contains("m1"));
+			cache2.invalidate(uri);
+			assertNull(cache2.get(uri));
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testBounded()
+	{
+		MetadataCache cache = new MetadataCache(3);
+		MetadataCache.Metadata md = new MetadataCache.Metadata(Arrays.asList("m1"), Arrays.asList("a1"), Arrays.asList("m1"));
+		for(int i=0; i<3; ++i)
+			cache.put(new PyroURI("obj"+i, "localhost", 4444), md);
+		assertNotNull(cache.get(new PyroURI("obj0", "localhost", 4444)));	// now the most recently used
+		cache.put(new PyroURI("obj3", "localhost", 4444), md);
+		assertEquals(3, cache.size());
+		assertNull(cache.get(new PyroURI("obj1", "localhost", 4444)));
+		assertNotNull(cache.get(new PyroURI("obj0", "localhost", 4444)));
+		assertNotNull(cache.get(new PyroURI("obj3", "localhost", 4444)));
+	}
+
+	@Test
+	public void testKeyUriChanged()
+	{
+		MetadataCache cache = new MetadataCache();
+		MetadataCache.Metadata md = new MetadataCache.Metadata(Arrays.asList("m1"), Arrays.asList("a1"), Arrays.asList("m1"));
+		PyroURI uri = PyroURI.intern(new PyroURI("obj", "localhost", 4444));
+		cache.put(uri, md);
+		uri.port = 5555;		// the uri fields are public, the cache must not depend on them staying the same
+		assertSame(md, cache.get(new PyroURI("obj", "localhost", 4444)));
+		assertNull(cache.get(uri));
+		uri.port = 4444;
+		cache.invalidate(new PyroURI("obj", "localhost", 4444));
+		assertEquals(0, cache.size());
+	}
+}
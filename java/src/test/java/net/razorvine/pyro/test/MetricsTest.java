@@ -0,0 +1,210 @@
+package net.razorvine.pyro.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import net.razorvine.pyro.Message;
+import net.razorvine.pyro.MetadataCache;
+import net.razorvine.pyro.OnewayPublisher;
+import net.razorvine.pyro.PyroException;
+import net.razorvine.pyro.PyroProxy;
+import net.razorvine.pyro.metrics.Metrics;
+import net.razorvine.pyro.metrics.MetricsListener;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the proxy and the oneway publisher report their measurements to the metrics listeners, against the fake daemon.
+ */
+public class MetricsTest {
+
+	private FakeDaemon daemon;
+	private final List<Object[]> events = new CopyOnWriteArrayList<Object[]>();
+
+	private final MetricsListener listener = new MetricsListener() {
+		public void connected(String host, int port, long connectNanos, long handshakeNanos) {
+			events.add(new Object[] {"connected", host, port, connectNanos, handshakeNanos});
+		}
+		public void callStarted(String objectId, String method) {
+			events.add(new Object[] {"callStarted", objectId, method});
+		}
+		public void callCompleted(String objectId, String method, long nanos, Throwable error) {
+			events.add(new Object[] {"callCompleted", objectId, method, nanos, error});
+		}
+		public void serialized(long nanos, long bytes) {
+			events.add(new Object[] {"serialized", nanos, bytes});
+		}
+		public void deserialized(long nanos, long bytes) {
+			events.add(new Object[] {"deserialized", nanos, bytes});
+		}
+		public void requestSent(long payloadBytes, long wireBytes) {
+			events.add(new Object[] {"requestSent", payloadBytes, wireBytes});
+		}
+		public void responseReceived(long wireBytes, long payloadBytes) {
+			events.add(new Object[] {"responseReceived", wireBytes, payloadBytes});
+		}
+		public void messageReceived(int msgType, long wireBytes, long nanos) {
+			events.add(new Object[] {"messageReceived", msgType, wireBytes, nanos});
+		}
+		public void remoteException(String pythonExceptionType) {
+			events.add(new Object[] {"remoteException", pythonExceptionType});
+		}
+	};
+
+	@Before
+	public void setUp() throws IOException {
+		MetadataCache.getDefault().clear();
+		daemon = new FakeDaemon();
+		daemon.register("calc", "add", new FakeDaemon.Handler() {
+			public Object call(Object[] args) {
+				return ((Number)args[0]).intValue() + ((Number)args[1]).intValue();
+			}
+		});
+		daemon.register("calc", "fail", new FakeDaemon.Handler() {
+			public Object call(Object[] args) {
+				PyroException x = new PyroException("bad value");
+				x.pythonExceptionType = "builtins.ValueError";
+				throw x;
+			}
+		});
+		daemon.register("calc", "text", new FakeDaemon.Handler() {
+			public Object call(Object[] args) {
+				char[] chars = new char[((Number)args[0]).intValue()];
+				Arrays.fill(chars, 'x');
+				return new String(chars);
+			}
+		});
+		daemon.registerOneway("calc", "fire", new FakeDaemon.Handler() {
+			public Object call(Object[] args) {
+				return null;
+			}
+		});
+		Metrics.addListener(listener);
+	}
+
+	@After
+	public void tearDown() {
+		Metrics.removeListener(listener);
+		daemon.close();
+	}
+
+	private List<Object[]> events(String name) {
+		List<Object[]> found = new ArrayList<Object[]>();
+		for(Object[] event: events) {
+			if(event[0].equals(name))
+				found.add(event);
+		}
+		return found;
+	}
+
+	private static long number(Object[] event, int index) {
+		return ((Number) event[index]).longValue();
+	}
+
+	@Test
+	public void testCall() throws IOException
+	{
+		PyroProxy p = new PyroProxy(daemon.uri("calc"));
+		try {
+			assertEquals(5, p.call("add", 2, 3));
+		} finally {
+			p.close();
+		}
+
+		// the connection and the handshake
+		assertEquals(1, events("connected").size());
+		Object[] connected = events("connected").get(0);
+		assertEquals(daemon.getHost(), connected[1]);
+		assertEquals(daemon.getPort(), connected[2]);
+		assertTrue(number(connected, 3)>0);
+		assertTrue(number(connected, 4)>0);
+
+		// the call itself
+		assertEquals(1, events("callStarted").size());
+		assertArrayEquals(new Object[] {"callStarted", "calc", "add"}, events("callStarted").get(0));
+		assertEquals(1, events("callCompleted").size());
+		Object[] completed = events("callCompleted").get(0);
+		assertEquals("add", completed[2]);
+		assertTrue(number(completed, 3)>0);
+		assertNull(completed[4]);
+
+		Object[] serialized = events("serialized").get(0);
+		Object[] sent = events("requestSent").get(0);
+		assertEquals(1, events("requestSent").size());
+		assertEquals(number(serialized, 2), number(sent, 1));
+		assertEquals(Message.HEADER_SIZE + number(sent, 1), number(sent, 2));
+
+		// the handshake reply and the result are read from the network (the fake daemon reports the messages it reads as well)
+		List<Object[]> received = new ArrayList<Object[]>();
+		for(Object[] event: events("messageReceived")) {
+			if(event[1].equals((int) Message.MSG_CONNECTOK) || event[1].equals((int) Message.MSG_RESULT))
+				received.add(event);
+		}
+		assertEquals(2, received.size());
+		assertEquals((int) Message.MSG_CONNECTOK, received.get(0)[1]);
+		assertEquals((int) Message.MSG_RESULT, received.get(1)[1]);
+		assertTrue(number(received.get(1), 3)>0);
+		Object[] response = events("responseReceived").get(0);
+		assertEquals(number(received.get(1), 2), number(response, 1));
+		Object[] deserialized = events("deserialized").get(0);
+		assertEquals(number(response, 2), number(deserialized, 2));
+		assertTrue(number(response, 1) > number(response, 2));
+	}
+
+	@Test
+	public void testRemoteExceptionAndCompression() throws IOException
+	{
+		daemon.compressResults = true;
+		PyroProxy p = new PyroProxy(daemon.uri("calc"));
+		try {
+			assertEquals(100000, ((String) p.call("text", 100000)).length());
+			try {
+				p.call("fail");
+				fail("expected remote exception");
+			} catch (PyroException x) {
+				// ok
+			}
+		} finally {
+			p.close();
+		}
+
+		// the payload of the response is the decompressed size, the wire size the compressed one
+		Object[] response = events("responseReceived").get(0);
+		assertTrue(number(response, 2) > 100000);
+		assertTrue(number(response, 1) < 10000);
+
+		assertEquals(1, events("remoteException").size());
+		assertEquals("builtins.ValueError", events("remoteException").get(0)[1]);
+		List<Object[]> completed = events("callCompleted");
+		assertEquals(2, completed.size());
+		assertNull(completed.get(0)[4]);
+		assertTrue(completed.get(1)[4] instanceof PyroException);
+	}
+
+	@Test
+	public void testOnewayPublisher() throws Exception
+	{
+		OnewayPublisher pub = new OnewayPublisher(daemon.uri("calc"), 100);
+		try {
+			for(int i=0; i<10; ++i)
+				assertTrue(pub.publish("fire", i));
+			pub.flush();
+		} finally {
+			pub.close();
+		}
+		List<Object[]> sent = events("requestSent");
+		assertEquals(10, sent.size());
+		for(Object[] event: sent) {
+			assertTrue(number(event, 1)>0);
+			assertEquals(Message.HEADER_SIZE + number(event, 1), number(event, 2));
+		}
+		assertEquals(1, events("connected").size());
+	}
+}
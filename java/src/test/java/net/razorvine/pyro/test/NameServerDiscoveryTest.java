@@ -0,0 +1,133 @@
+package net.razorvine.pyro.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+
+import net.razorvine.pyro.NameServerDiscovery;
+import net.razorvine.pyro.PyroURI;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for locating the name server with parallel probes.
+ */
+public class NameServerDiscoveryTest {
+
+	private FakeDaemon daemon;
+	private DatagramSocket responder;
+
+	@Before
+	public void setUp() throws IOException {
+		daemon = new FakeDaemon();
+		daemon.register("Pyro.NameServer", "ping", new FakeDaemon.Handler() {
+			public Object call(Object[] args) {
+				return null;
+			}
+		});
+	}
+
+	@After
+	public void tearDown() {
+		daemon.close();
+		if(responder!=null)
+			responder.close();
+	}
+
+	private NameServerDiscovery discovery(String host) {
+		NameServerDiscovery discovery = new NameServerDiscovery();
+		discovery.hosts.clear();
+		discovery.hosts.add(host);
+		discovery.broadcast = false;
+		discovery.timeout = 1000;
+		return discovery;
+	}
+
+	/**
+	 * Answers one broadcast lookup on localhost, after the delay.
+	 */
+	private void startResponder(final long delay, final String answer) throws IOException {
+		if(responder!=null)
+			responder.close();
+		responder = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				try {
+					DatagramPacket request = new DatagramPacket(new byte[100], 100);
+					responder.receive(request);
+					Thread.sleep(delay);
+					byte[] bytes = answer.getBytes();
+					responder.send(new DatagramPacket(bytes, bytes.length, request.getSocketAddress()));
+				} catch (Exception x) {
+					// closed
+				}
+			}
+		});
+		t.setDaemon(true);
+		t.start();
+	}
+
+	@Test
+	public void testHostProbeAndCache() throws IOException
+	{
+		NameServerDiscovery discovery = discovery("127.0.0.1:"+daemon.getPort());
+		PyroURI uri = discovery.locate();
+		assertEquals("Pyro.NameServer", uri.objectid);
+		assertEquals("127.0.0.1", uri.host);
+		assertEquals(daemon.getPort(), uri.port);
+		assertSame(uri, discovery.locate());
+		discovery.invalidate();
+		PyroURI again = discovery.locate();
+		assertNotSame(uri, again);
+		assertEquals(uri, again);
+	}
+
+	@Test(timeout=5000)
+	public void testHostTimeout() throws IOException
+	{
+		ServerSocket silent = new ServerSocket(0);		// accepts connections but never answers
+		try {
+			NameServerDiscovery discovery = discovery("127.0.0.1:"+silent.getLocalPort());
+			discovery.timeout = 300;
+			long start = System.currentTimeMillis();
+			try {
+				discovery.discover();
+				fail("expected timeout");
+			} catch (SocketTimeoutException x) {
+				// ok
+			}
+			assertTrue(System.currentTimeMillis()-start < 2000);
+		} finally {
+			silent.close();
+		}
+	}
+
+	@Test
+	public void testFirstAnswerOrBroadcast() throws IOException
+	{
+		String broadcastAnswer = "PYRO:Pyro.NameServer@broadcasthost:9999";
+		startResponder(300, broadcastAnswer);
+		NameServerDiscovery discovery = discovery("127.0.0.1:"+daemon.getPort());
+		discovery.broadcast = true;
+		discovery.broadcastAddress = "127.0.0.1";
+		discovery.broadcastPort = responder.getLocalPort();
+		assertEquals(daemon.getPort(), discovery.discover().port);		// the host answers first
+
+		startResponder(300, broadcastAnswer);
+		discovery.broadcastPort = responder.getLocalPort();
+		discovery.preferBroadcast = true;
+		assertEquals(new PyroURI(broadcastAnswer), discovery.discover());
+
+		// without a broadcast answer, the host is used after all
+		responder.close();
+		discovery.timeout = 500;
+		assertEquals(daemon.getPort(), discovery.discover().port);
+	}
+}
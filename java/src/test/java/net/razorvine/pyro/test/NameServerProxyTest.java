@@ -0,0 +1,145 @@
+package net.razorvine.pyro.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import net.razorvine.pyro.NameServerProxy;
+import net.razorvine.pyro.PrefixWatch;
+import net.razorvine.pyro.PyroURI;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the bulk name server calls and the prefix watch, against a name server on the fake daemon.
+ */
+public class NameServerProxyTest {
+
+	private FakeDaemon daemon;
+	private NameServerProxy ns;
+	private final Map<String, String> registrations = new ConcurrentHashMap<String, String>();
+
+	@Before
+	public void setUp() throws IOException {
+		daemon = new FakeDaemon();
+		// list(prefix, regex, return_metadata) like the Pyro name server: the regex must match at the start of the name
+		daemon.register("Pyro.NameServer", "list", new FakeDaemon.Handler() {
+			public Object call(Object[] args) {
+				String prefix = (String) args[0];
+				Pattern regex = args[1]==null ? null : Pattern.compile((String) args[1]);
+				Map<String, Object> result = new HashMap<String, Object>();
+				for(Map.Entry<String, String> entry: registrations.entrySet()) {
+					String name = entry.getKey();
+					if(prefix!=null && !name.startsWith(prefix))
+						continue;
+					if(regex!=null && !regex.matcher(name).lookingAt())
+						continue;
+					result.put(name, Boolean.TRUE.equals(args[2]) ? new Object[] {entry.getValue(), new Object[0]} : entry.getValue());
+				}
+				return result;
+			}
+		});
+		ns = new NameServerProxy(daemon.getHost(), daemon.getPort());
+	}
+
+	@After
+	public void tearDown() {
+		ns.close();
+		daemon.close();
+	}
+
+	private static String uri(String name) {
+		return "PYRO:" + name.replaceAll("[^\\w.]", "_") + "@localhost:9999";
+	}
+
+	@Test
+	public void testLookupMany() throws IOException
+	{
+		for(String name: Arrays.asList("app.service", "appXservice", "price$", "price", "a|b", "a", "b", "app.service.extra"))
+			registrations.put(name, uri(name));
+		Map<String, PyroURI> found = ns.lookupMany(Arrays.asList("app.service", "price$", "a|b", "missing"));
+		assertEquals(new HashSet<String>(Arrays.asList("app.service", "price$", "a|b")), found.keySet());
+		assertEquals(PyroURI.valueOf(uri("price$")), found.get("price$"));
+		assertEquals(PyroURI.valueOf(uri("a|b")), found.get("a|b"));
+
+		assertTrue(ns.lookupMany(Arrays.asList("missing", "app")).isEmpty());
+		assertTrue(ns.lookupMany(Collections.<String>emptyList()).isEmpty());
+	}
+
+	@Test
+	public void testListUris() throws IOException
+	{
+		registrations.put("svc.a", uri("a"));
+		registrations.put("svc.b", uri("b"));
+		registrations.put("other.c", uri("c"));
+		Map<String, String> expected = new HashMap<String, String>();
+		expected.put("svc.a", uri("a"));
+		expected.put("svc.b", uri("b"));
+		assertEquals(expected, ns.listUris("svc."));
+		assertEquals(3, ns.listUris(null).size());
+		assertTrue(ns.listUris("nothing.").isEmpty());
+	}
+
+	@Test
+	public void testPrefixWatch() throws Exception
+	{
+		registrations.put("svc.a", uri("a"));
+		registrations.put("svc.b", uri("b"));
+		registrations.put("other.c", uri("c"));
+		final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+		PrefixWatch watch = ns.watchPrefix("svc.", 50, new PrefixWatch.Listener() {
+			public void added(String name, PyroURI uri) {
+				events.add("added "+name+" "+uri.objectid);
+			}
+			public void removed(String name, PyroURI uri) {
+				events.add("removed "+name+" "+uri.objectid);
+			}
+			public void changed(String name, PyroURI oldUri, PyroURI newUri) {
+				events.add("changed "+name+" "+oldUri.objectid+" "+newUri.objectid);
+			}
+		});
+		try {
+			// the first poll is done before watchPrefix returns
+			assertEquals(new HashSet<String>(Arrays.asList("added svc.a a", "added svc.b b")), take(events, 2));
+			assertEquals(2, watch.snapshot().size());
+
+			registrations.remove("svc.a");
+			registrations.put("svc.b", uri("b2"));
+			registrations.put("svc.d", uri("d"));
+			registrations.put("other.e", uri("e"));
+			assertEquals(new HashSet<String>(Arrays.asList("removed svc.a a", "changed svc.b b b2", "added svc.d d")), take(events, 3));
+
+			// nothing changed, nothing to report (this also waits for a background poll that is still notifying)
+			watch.poll();
+			assertEquals(new HashSet<String>(Arrays.asList("svc.b", "svc.d")), watch.snapshot().keySet());
+			assertEquals(PyroURI.valueOf(uri("b2")), watch.snapshot().get("svc.b"));
+			Thread.sleep(150);
+			assertTrue(events.isEmpty());
+		} finally {
+			watch.close();
+		}
+	}
+
+	private static Set<String> take(BlockingQueue<String> events, int count) throws InterruptedException {
+		Set<String> taken = new HashSet<String>();
+		for(int i=0; i<count; ++i) {
+			String event = events.poll(5, TimeUnit.SECONDS);
+			assertNotNull("missing event", event);
+			taken.add(event);
+		}
+		return taken;
+	}
+}
@@ -0,0 +1,144 @@
+package net.razorvine.pyro.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.razorvine.pyro.OnewayPublisher;
+import net.razorvine.pyro.PyroException;
+import net.razorvine.pyro.PyroURI;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the coalescing oneway publisher.
+ */
+public class OnewayPublisherTest {
+
+	private FakeDaemon daemon;
+	private final List<Integer> received = new CopyOnWriteArrayList<Integer>();
+
+	@Before
+	public void setUp() throws IOException {
+		daemon = new FakeDaemon();
+		daemon.registerOneway("events", "fire", new FakeDaemon.Handler() {
+			public Object call(Object[] args) {
+				received.add(((Number)args[0]).intValue());
+				return null;
+			}
+		});
+	}
+
+	@After
+	public void tearDown() {
+		daemon.close();
+	}
+
+	private static PyroURI unreachable() throws IOException {
+		ServerSocket ss = new ServerSocket(0);
+		int port = ss.getLocalPort();
+		ss.close();
+		return new PyroURI("PYRO:events@localhost:" + port);
+	}
+
+	private void awaitReceived(int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while(received.size()<count && System.currentTimeMillis()<deadline)
+			Thread.sleep(10);
+	}
+
+	@Test
+	public void testPublish() throws Exception
+	{
+		OnewayPublisher pub = new OnewayPublisher(daemon.uri("events"), 1000);
+		pub.lingerMillis = 5;
+		pub.maxBatch = 100;
+		for(int i=0; i<5000; ++i)
+			assertTrue(pub.publish("fire", i));
+		pub.flush();
+		assertEquals(0, pub.pending());
+		awaitReceived(5000);
+		assertEquals(5000, received.size());
+		for(int i=0; i<5000; ++i)
+			assertEquals(i, (int)received.get(i));		// a single connection keeps the order
+		assertEquals(0, pub.dropped());
+		assertEquals(0, pub.failed());
+		assertNull(pub.lastError());
+		assertEquals(1, daemon.connections.get());
+		pub.close();
+		try {
+			pub.publish("fire", 1);
+			fail("expected closed");
+		} catch (IllegalStateException x) {
+			// ok
+		}
+	}
+
+	@Test
+	public void testCloseSendsRemaining() throws Exception
+	{
+		OnewayPublisher pub = new OnewayPublisher(daemon.uri("events"));
+		pub.lingerMillis = 50;
+		for(int i=0; i<10; ++i)
+			pub.publish("fire", i);
+		pub.close();
+		awaitReceived(10);
+		assertEquals(10, received.size());
+	}
+
+	@Test
+	public void testBackpressure() throws Exception
+	{
+		final OnewayPublisher pub = new OnewayPublisher(unreachable(), 2);
+		pub.retryDelayMillis = 10000;
+		pub.publish("fire", 0);
+		long deadline = System.currentTimeMillis() + 5000;
+		while(pub.failed()==0 && System.currentTimeMillis()<deadline)
+			Thread.sleep(10);
+		assertEquals(1, pub.failed());
+		assertTrue(pub.lastError() instanceof IOException);
+
+		// the writer now waits before it connects again, so the queue fills up
+		pub.backpressure = OnewayPublisher.Backpressure.DROP;
+		assertTrue(pub.publish("fire", 1));
+		assertTrue(pub.publish("fire", 2));
+		assertFalse(pub.publish("fire", 3));
+		assertEquals(1, pub.dropped());
+		assertEquals(2, pub.pending());
+
+		pub.backpressure = OnewayPublisher.Backpressure.FAIL;
+		try {
+			pub.publish("fire", 4);
+			fail("expected queue full");
+		} catch (PyroException x) {
+			assertTrue(x.getMessage().contains("full"));
+		}
+		assertEquals(2, pub.dropped());
+
+		pub.backpressure = OnewayPublisher.Backpressure.BLOCK;
+		final AtomicReference<Exception> blocked = new AtomicReference<Exception>();
+		Thread t = new Thread() {
+			public void run() {
+				try {
+					pub.publish("fire", 5);
+				} catch (Exception x) {
+					blocked.set(x);
+				}
+			}
+		};
+		t.start();
+		t.join(300);
+		assertTrue(t.isAlive());
+		pub.close();
+		t.join(5000);
+		assertFalse(t.isAlive());
+		assertTrue(blocked.get() instanceof IllegalStateException);
+		assertEquals(3, pub.failed());		// the queued calls couldn't be sent when closing either
+	}
+}
@@ -0,0 +1,166 @@
+package net.razorvine.pyro.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import net.razorvine.pyro.MetadataCache;
+import net.razorvine.pyro.PyroException;
+import net.razorvine.pyro.nio.AsyncPyroProxy;
+import net.razorvine.pyro.nio.PyroClientEngine;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the non-blocking client engine, against the fake daemon.
+ */
+public class PyroClientEngineTest {
+
+	private FakeDaemon daemon;
+	private PyroClientEngine engine;
+
+	@Before
+	public void setUp() throws IOException {
+		MetadataCache.getDefault().clear();
+		daemon = new FakeDaemon();
+		daemon.register("calc", "add", new FakeDaemon.Handler() {
+			public Object call(Object[] args) {
+				return ((Number)args[0]).intValue() + ((Number)args[1]).intValue();
+			}
+		});
+		daemon.register("calc", "fail", new FakeDaemon.Handler() {
+			public Object call(Object[] args) {
+				PyroException x = new PyroException("bad value");
+				x.pythonExceptionType = "builtins.ValueError";
+				throw x;
+			}
+		});
+		daemon.register("calc", "blob", new FakeDaemon.Handler() {
+			public Object call(Object[] args) {
+				StringBuilder sb = new StringBuilder();
+				for(int i=0; i<((Number)args[0]).intValue(); ++i)
+					sb.append((char)('a' + i%26));
+				return sb.toString();
+			}
+		});
+		engine = new PyroClientEngine(2);
+	}
+
+	@After
+	public void tearDown() {
+		engine.close();
+		daemon.close();
+	}
+
+	@Test
+	public void testPipelinedCalls() throws Exception
+	{
+		AsyncPyroProxy p = engine.connect(daemon.uri("calc")).get(5, TimeUnit.SECONDS);
+		assertTrue(p.pyroMethods.contains("add"));
+		List<CompletableFuture<Object>> results = new ArrayList<CompletableFuture<Object>>();
+		for(int i=0; i<500; ++i)
+			results.add(p.call("add", i, 1));
+		for(int i=0; i<500; ++i)
+			assertEquals(i+1, results.get(i).get(5, TimeUnit.SECONDS));
+		// a response that arrives in many pieces
+		String blob = (String) p.call("blob", 300000).get(5, TimeUnit.SECONDS);
+		assertEquals(300000, blob.length());
+		assertEquals(0, p.pendingCalls());
+		assertEquals(1, daemon.connections.get());
+	}
+
+	@Test
+	public void testManyConnections() throws Exception
+	{
+		List<CompletableFuture<AsyncPyroProxy>> connecting = new ArrayList<CompletableFuture<AsyncPyroProxy>>();
+		for(int i=0; i<100; ++i)
+			connecting.add(engine.connect(daemon.uri("calc")));
+		List<CompletableFuture<Object>> results = new ArrayList<CompletableFuture<Object>>();
+		for(int i=0; i<connecting.size(); ++i)
+			results.add(connecting.get(i).get(5, TimeUnit.SECONDS).call("add", i, i));
+		for(int i=0; i<results.size(); ++i)
+			assertEquals(2*i, results.get(i).get(5, TimeUnit.SECONDS));
+		assertEquals(100, engine.connectionCount());
+	}
+
+	@Test
+	public void testErrors() throws Exception
+	{
+		AsyncPyroProxy p = engine.connect(daemon.uri("calc")).get(5, TimeUnit.SECONDS);
+		try {
+			p.call("fail").get(5, TimeUnit.SECONDS);
+			fail("expected remote exception");
+		} catch (ExecutionException x) {
+			assertEquals("builtins.ValueError", ((PyroException) x.getCause()).pythonExceptionType);
+		}
+		try {
+			p.call("nonexisting").get(5, TimeUnit.SECONDS);
+			fail("expected unknown method");
+		} catch (ExecutionException x) {
+			assertTrue(x.getCause() instanceof PyroException);
+		}
+		try {
+			engine.connect(daemon.uri("unknown")).get(5, TimeUnit.SECONDS);
+			fail("expected connection rejected");
+		} catch (ExecutionException x) {
+			assertTrue(x.getCause().getMessage().contains("unknown object"));
+		}
+		assertEquals(7, p.call("add", 3, 4).get(5, TimeUnit.SECONDS));
+
+		daemon.close();
+		try {
+			p.call("add", 1, 2).get(5, TimeUnit.SECONDS);
+			fail("expected connection error");
+		} catch (ExecutionException x) {
+			assertTrue(x.getCause() instanceof IOException);
+		}
+		assertTrue(p.isClosed());
+	}
+
+	@Test
+	public void testCompressed() throws Exception
+	{
+		daemon.compressResults = true;		// the handshake reply as well
+		AsyncPyroProxy p = engine.connect(daemon.uri("calc")).get(5, TimeUnit.SECONDS);
+		assertTrue(p.pyroMethods.contains("add"));
+		assertEquals(7, p.call("add", 3, 4).get(5, TimeUnit.SECONDS));
+		assertEquals(300000, ((String) p.call("blob", 300000).get(5, TimeUnit.SECONDS)).length());
+		try {
+			p.call("fail").get(5, TimeUnit.SECONDS);
+			fail("expected remote exception");
+		} catch (ExecutionException x) {
+			assertEquals("builtins.ValueError", ((PyroException) x.getCause()).pythonExceptionType);
+		}
+	}
+
+	@Test
+	public void testValidateHandshake() throws Exception
+	{
+		final List<Object> responses = new ArrayList<Object>();
+		PyroClientEngine.HandshakeValidator validator = new PyroClientEngine.HandshakeValidator() {
+			public void validateHandshake(Object response) throws IOException {
+				responses.add(response);
+				if(!"hello".equals(response))
+					throw new IOException("unexpected handshake response");
+			}
+		};
+		AsyncPyroProxy p = engine.connect(daemon.uri("calc"), "hello", validator).get(5, TimeUnit.SECONDS);
+		assertEquals(7, p.call("add", 3, 4).get(5, TimeUnit.SECONDS));
+		try {
+			engine.connect(daemon.uri("calc"), "howdy", validator).get(5, TimeUnit.SECONDS);
+			fail("expected the validator to reject the connection");
+		} catch (ExecutionException x) {
+			assertEquals("unexpected handshake response", x.getCause().getMessage());
+		}
+		assertEquals(Arrays.asList("hello", "howdy"), responses);
+		assertEquals(1, engine.connectionCount());
+	}
+}
@@ -0,0 +1,132 @@
+package net.razorvine.pyro.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.razorvine.pyro.Config;
+import net.razorvine.pyro.Message;
+import net.razorvine.pyro.MetadataCache;
+import net.razorvine.pyro.PyroProxy;
+import net.razorvine.pyro.SegmentPool;
+import net.razorvine.pyro.SegmentedOutputStream;
+import net.razorvine.pyro.UnixSockets;
+import net.razorvine.pyro.serializer.PyroSerializer;
+
+import org.junit.Test;
+
+/**
+ * Tests for serializing calls into pooled segments.
+ */
+public class SegmentedOutputTest {
+
+	@Test
+	public void testSegmentPool()
+	{
+		SegmentPool pool = new SegmentPool(100, 2);
+		SegmentedOutputStream out = new SegmentedOutputStream(pool);
+		byte[] data = new byte[450];
+		for(int i=0; i<data.length; ++i)
+			data[i] = (byte) i;
+		out.write(data, 0, 250);
+		out.write(data[250]);
+		out.write(data, 251, 199);
+		assertEquals(450, out.length());
+		assertEquals(5, out.segmentCount());
+		assertArrayEquals(data, out.toByteArray());
+		assertArrayEquals(data, out.toBuffer().toByteArray());
+		assertEquals(5, out.toBuffer().segmentCount());
+
+		out.release();
+		assertEquals(0, out.length());
+		assertEquals(2, pool.idle());		// the others are dropped
+		out.write(data, 0, 150);
+		assertEquals(0, pool.idle());
+		assertArrayEquals(Arrays.copyOf(data, 150), out.toByteArray());
+		try {
+			pool.release(new byte[10]);
+			fail("expected wrong segment size");
+		} catch (IllegalArgumentException x) {
+			// ok
+		}
+	}
+
+	@Test
+	public void testSerializeCallToStream() throws IOException
+	{
+		PyroSerializer ser = PyroSerializer.getSerpentSerializer();
+		char[] big = new char[300000];
+		for(int i=0; i<big.length; ++i)
+			big[i] = (char) (i%3==0 ? 'a'+i%26 : i%3==1 ? 0xe9 : 0x20ac);
+		Map<String, Object> kwargs = new HashMap<String, Object>();
+		kwargs.put("bytes", new byte[100000]);
+		Object[][] arguments = new Object[][] {
+			new Object[0],
+			new Object[] {"abc", 42, Arrays.asList(1.5, "é€")},
+			new Object[] {"😀 smiley", "unpaired \ud83d and \ude00", "\ud83d"},
+			new Object[] {new String(big), new byte[] {1, 2, 3}}
+		};
+		for(boolean indent: new boolean[] {false, true}) {
+			Config.SERPENT_INDENT = indent;
+			try {
+				for(Object[] args: arguments) {
+					byte[] expected = ser.serializeCall("obj", "method", args, kwargs);
+					SegmentedOutputStream out = new SegmentedOutputStream(new SegmentPool(1000, 10));
+					ser.serializeCall("obj", "method", args, kwargs, out);
+					assertArrayEquals(expected, out.toByteArray());
+
+					Message msg = new Message(Message.MSG_INVOKE, out.toBuffer(), ser.getSerializerId(), 0, 1, null, null);
+					assertEquals(expected.length, msg.get_data_size());
+					Message received = Message.recv(new ByteArrayInputStream(msg.to_bytes()), null);
+					assertArrayEquals(expected, received.data);
+					out.release();
+				}
+			} finally {
+				Config.SERPENT_INDENT = false;
+			}
+		}
+	}
+
+	@Test
+	public void testLargeCall() throws Exception
+	{
+		MetadataCache.getDefault().clear();
+		callLarge(new FakeDaemon());
+		if(UnixSockets.available()) {
+			File sockname = File.createTempFile("pyrolite", ".sock");
+			callLarge(new FakeDaemon(sockname.getPath()));
+		}
+	}
+
+	private void callLarge(FakeDaemon daemon) throws IOException
+	{
+		try {
+			daemon.register("store", "size", new FakeDaemon.Handler() {
+				public Object call(Object[] args) {
+					return ((String) args[0]).length() + ((Map<?, ?>) args[1]).size();
+				}
+			});
+			char[] chars = new char[1000000];
+			Arrays.fill(chars, 'x');
+			PyroProxy p = new PyroProxy(daemon.uri("store"));
+			try {
+				assertEquals(1000001, p.call("size", new String(chars), Collections.singletonMap("a", 1)));	// sent from 16 segments
+				assertTrue(SegmentPool.getDefault().idle() >= 16);
+				assertEquals(3, p.call("size", "abc", Collections.emptyMap()));
+				p.close();
+				p.optimisticConnect = true;
+				assertEquals(1000001, p.call("size", new String(chars), Collections.singletonMap("a", 1)));	// together with the handshake
+			} finally {
+				p.close();
+			}
+		} finally {
+			daemon.close();
+		}
+	}
+}
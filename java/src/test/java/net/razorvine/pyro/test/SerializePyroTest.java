@@ -3,7 +3,10 @@ package net.razorvine.pyro.test;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
@@ -16,6 +19,7 @@ import net.razorvine.pyro.PyroURI;
 import net.razorvine.pyro.serializer.PyroExceptionSerpent;
 import net.razorvine.pyro.serializer.PyroProxySerpent;
 import net.razorvine.pyro.serializer.SerpentSerializer;
+import net.razorvine.serpent.Serializer;
 
 import org.junit.After;
 import org.junit.Before;
@@ -74,6 +78,24 @@ public class SerializePyroTest {
 		assertEquals("line1line2", ex2._pyroTraceback);
 	}
 
+	@Test
+	public void testUnixSocketUriSerpent() throws IOException
+	{
+		SerpentSerializer ser = new SerpentSerializer();
+		PyroURI uri = new PyroURI("PYRO:something@./u:/tmp/pyro.sock");
+		Object x = ser.deserializeData(ser.serializeData(uri));
+		assertEquals(uri, x);
+		assertEquals("/tmp/pyro.sock", ((PyroURI) x).sockname);
+
+		// as produced by Pyro5
+		x = ser.deserializeData("{'__class__':'Pyro5.core.URI','state':('PYRO','something','/tmp/pyro.sock',None,None)}".getBytes());
+		assertEquals(uri, x);
+
+		PyroProxy proxy = (PyroProxy) ser.deserializeData(ser.serializeData(new PyroProxy(uri)));
+		assertEquals("/tmp/pyro.sock", proxy.sockname);
+		assertNull(proxy.hostname);
+	}
+
 	@Test
 	public void testPyroProxySerpent() throws IOException
 	{
@@ -84,6 +106,8 @@ public class SerializePyroTest {
 		proxy.pyroAttrs = new HashSet<String>();
 		proxy.pyroAttrs.add("attr1");
 		proxy.pyroAttrs.add("attr2");
+		proxy.pyroMaxRetries = 3;
+		proxy.pyroTimeout = 2.5;
 		Map<String, Object> data = serp.convert(proxy);
 		assertEquals(2, data.size());
 		assertEquals("Pyro5.client.Proxy", data.get("__class__"));
@@ -94,6 +118,8 @@ public class SerializePyroTest {
 		PyroProxy proxy2 = (PyroProxy) PyroProxySerpent.FromSerpentDict(data2);
 		assertEquals(proxy.objectid, proxy2.objectid);
 		assertEquals("apples", proxy2.pyroHandshake);
+		assertEquals(3, proxy2.pyroMaxRetries);
+		assertEquals(2.5, proxy2.pyroTimeout, 0.0);
 	}
 
 	@Test
@@ -141,6 +167,54 @@ public class SerializePyroTest {
         }
 	}
 
+	@Test
+	public void testBytesEncoding() throws IOException
+	{
+		SerpentSerializer ser = new SerpentSerializer();
+		for(boolean indent: new boolean[] {true, false}) {
+			Config.SERPENT_INDENT = indent;
+			for(int size: new int[] {0, 1, 2, 3, 4, 5, 3071, 3072, 3073, 10000}) {
+				byte[] data = new byte[size];
+				for(int i=0; i<size; ++i)
+					data[i] = (byte) (i*7+size);
+				Map<String, Object> value = new HashMap<String, Object>();
+				value.put("bytes", data);
+				value.put("list", Arrays.asList(1, data));
+				byte[] expected = new Serializer(indent, true).serialize(value);	// serpent's own encoding
+				assertArrayEquals(expected, ser.serializeData(value));
+
+				ByteBuffer direct = ByteBuffer.allocateDirect(size+2);
+				direct.put((byte) 1).put(data).put((byte) 2);
+				direct.position(1);
+				direct.limit(size+1);
+				value.put("bytes", direct);
+				value.put("list", Arrays.asList(1, ByteBuffer.wrap(data)));
+				assertArrayEquals(expected, ser.serializeData(value));
+				assertEquals(1, direct.position());
+
+				Map<?, ?> result = (Map<?, ?>) ser.deserializeData(expected);
+				assertArrayEquals(data, SerpentSerializer.toBytes(result.get("bytes")));
+				Config.SERPENT_DECODE_BYTES = true;
+				try {
+					result = (Map<?, ?>) ser.deserializeData(expected);
+				} finally {
+					Config.SERPENT_DECODE_BYTES = false;
+				}
+				assertArrayEquals(data, (byte[]) result.get("bytes"));
+				assertArrayEquals(data, (byte[]) ((List<?>) result.get("list")).get(1));
+			}
+		}
+		Map<String,String> dict = new HashMap<String, String>();
+		dict.put("data", "YWJj*GVm");
+		dict.put("encoding", "base64");
+		try {
+			SerpentSerializer.toBytes(dict);
+			fail("error expected");
+		} catch (IllegalArgumentException x) {
+			//
+		}
+	}
+
 	@Test
 	public void testDeserializeExceptionArgs()
 	{
@@ -0,0 +1,158 @@
+package net.razorvine.pyro.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.TrustManagerFactory;
+
+import net.razorvine.pyro.LoadBalancingProxy;
+import net.razorvine.pyro.MetadataCache;
+import net.razorvine.pyro.PyroProxy;
+import net.razorvine.pyro.PyroURI;
+import net.razorvine.pyro.SslSockets;
+import net.razorvine.pyro.nio.PyroClientEngine;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for PYROSSL connections, against the fake daemon with a self-signed test certificate.
+ */
+public class SslTest {
+
+	private static final char[] PASSWORD = "pyrolite".toCharArray();
+
+	private FakeDaemon daemon;
+
+	private static KeyStore keystore(String resource) throws IOException, GeneralSecurityException {
+		KeyStore ks = KeyStore.getInstance("PKCS12");
+		InputStream in = SslTest.class.getResourceAsStream("/" + resource);
+		try {
+			ks.load(in, PASSWORD);
+		} finally {
+			in.close();
+		}
+		return ks;
+	}
+
+	static SSLContext serverContext() throws IOException, GeneralSecurityException {
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		kmf.init(keystore("test-server.p12"), PASSWORD);
+		SSLContext ctx = SSLContext.getInstance("TLS");
+		ctx.init(kmf.getKeyManagers(), null, null);
+		return ctx;
+	}
+
+	static SSLContext clientContext() throws IOException, GeneralSecurityException {
+		TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		tmf.init(keystore("test-truststore.p12"));
+		SSLContext ctx = SSLContext.getInstance("TLS");
+		ctx.init(null, tmf.getTrustManagers(), null);
+		return ctx;
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		MetadataCache.getDefault().clear();
+		daemon = new FakeDaemon(serverContext());
+		daemon.register("calc", "add", new FakeDaemon.Handler() {
+			public Object call(Object[] args) {
+				return ((Number)args[0]).intValue() + ((Number)args[1]).intValue();
+			}
+		});
+		SslSockets.setContext(clientContext());
+	}
+
+	@After
+	public void tearDown() {
+		SslSockets.setContext(null);
+		SslSockets.verifyHostname = true;
+		daemon.close();
+	}
+
+	@Test
+	public void testCalls() throws IOException
+	{
+		PyroURI uri = daemon.uri("calc");
+		assertEquals("PYROSSL", uri.protocol);
+		PyroProxy p = new PyroProxy(uri);
+		assertTrue(p.ssl);
+		assertEquals(42, p.call("add", 40, 2));
+		assertTrue(p.pyroMethods.contains("add"));
+		p.close();
+	}
+
+	@Test
+	public void testSessionResumption() throws Exception
+	{
+		PyroURI uri = daemon.uri("calc");
+		PyroProxy p = new PyroProxy(uri);
+		for(int i=0; i<5; ++i) {
+			assertEquals(i+1, p.call("add", i, 1));
+			p.close();		// reconnects on the next call
+		}
+		LoadBalancingProxy pool = new LoadBalancingProxy(Collections.singletonList(uri), LoadBalancingProxy.Strategy.ROUND_ROBIN);
+		assertEquals(3, pool.call("add", 1, 2));
+		pool.close();
+
+		// a resumed session keeps the creation time of the session of the first, full, handshake
+		assertEquals(6, daemon.tlsSessions.size());
+		assertEquals(1, new HashSet<Long>(daemon.tlsSessions).size());
+	}
+
+	@Test
+	public void testUntrustedCertificate() throws Exception
+	{
+		SslSockets.setContext(null);	// the default trust store doesn't know the test certificate
+		PyroProxy p = new PyroProxy(daemon.uri("calc"));
+		try {
+			p.call("add", 1, 2);
+			fail("expected handshake failure");
+		} catch (SSLException x) {
+			// ok
+		}
+	}
+
+	@Test
+	public void testHostnameVerification() throws Exception
+	{
+		PyroURI uri = daemon.uri("calc");
+		uri.host = "127.0.0.2";		// loopback as well, but not in the certificate
+		try {
+			new PyroProxy(uri).call("add", 1, 2);
+			fail("expected hostname mismatch");
+		} catch (SSLException x) {
+			// ok
+		} catch (java.net.ConnectException x) {
+			return;		// 127.0.0.2 is not routed to the loopback interface on this system
+		}
+		SslSockets.verifyHostname = false;
+		assertEquals(3, new PyroProxy(uri).call("add", 1, 2));
+	}
+
+	@Test
+	public void testNioEngineRefusesSsl() throws Exception
+	{
+		PyroClientEngine engine = new PyroClientEngine(1);
+		try {
+			engine.connect(daemon.uri("calc")).get(5, TimeUnit.SECONDS);
+			fail("expected unsupported");
+		} catch (ExecutionException x) {
+			assertTrue(x.getCause() instanceof UnsupportedOperationException);
+		} finally {
+			engine.close();
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package net.razorvine.pyro.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import net.razorvine.pyro.MetadataCache;
+import net.razorvine.pyro.PyroException;
+import net.razorvine.pyro.PyroProxy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for interface proxies (PyroProxy.as).
+ */
+public class TypedProxyTest {
+
+	public interface Calculator {
+		int add(int a, int b) throws IOException;
+		long addLong(long a, long b);
+		double half(double value);
+		boolean isEven(int value);
+		String describe(Object value);
+		List<Object> pair(Object a, Object b);
+		Object fail();
+		void fire(String message);
+	}
+
+	public interface Missing {
+		int subtract(int a, int b);
+	}
+
+	public interface OnewayWithResult {
+		String fire(String message);
+	}
+
+	private FakeDaemon daemon;
+	private final CountDownLatch fired = new CountDownLatch(1);
+
+	@Before
+	public void setUp() throws IOException {
+		MetadataCache.getDefault().clear();
+		daemon = new FakeDaemon();
+		daemon.register("calc", "add", new FakeDaemon.Handler() {
+			public Object call(Object[] args) {
+				return ((Number)args[0]).intValue() + ((Number)args[1]).intValue();
+			}
+		});
+		daemon.register("calc", "addLong", new FakeDaemon.Handler() {
+			public Object call(Object[] args) {
+				return ((Number)args[0]).longValue() + ((Number)args[1]).longValue();
+			}
+		});
+		daemon.register("calc", "half", new FakeDaemon.Handler() {
+			public Object call(Object[] args) {
+				return ((Number)args[0]).doubleValue() / 2;
+			}
+		});
+		daemon.register("calc", "isEven", new FakeDaemon.Handler() {
+			public Object call(Object[] args) {
+				return ((Number)args[0]).intValue() % 2 == 0;
+			}
+		});
+		daemon.register("calc", "describe", new FakeDaemon.Handler() {
+			public Object call(Object[] args) {
+				return args[0]==null ? null : "value " + args[0];
+			}
+		});
+		daemon.register("calc", "pair", new FakeDaemon.Handler() {
+			public Object call(Object[] args) {
+				return new Object[] {args[0], args[1]};		// a tuple
+			}
+		});
+		daemon.register("calc", "fail", new FakeDaemon.Handler() {
+			public Object call(Object[] args) {
+				PyroException x = new PyroException("bad value");
+				x.pythonExceptionType = "builtins.ValueError";
+				throw x;
+			}
+		});
+		daemon.registerOneway("calc", "fire", new FakeDaemon.Handler() {
+			public Object call(Object[] args) {
+				fired.countDown();
+				return null;
+			}
+		});
+	}
+
+	@After
+	public void tearDown() {
+		daemon.close();
+	}
+
+	@Test
+	public void testCalls() throws Exception
+	{
+		PyroProxy p = new PyroProxy(daemon.uri("calc"));
+		Calculator calc = p.as(Calculator.class);
+		assertEquals(42, calc.add(40, 2));
+		assertEquals(10000000000L, calc.addLong(5000000000L, 5000000000L));
+		assertEquals(1.25, calc.half(2.5), 0.0);
+		assertEquals(0.5, calc.half(1), 0.0);		// the daemon returns a float even for an int argument
+		assertTrue(calc.isEven(4));
+		assertFalse(calc.isEven(5));
+		assertEquals("value 7", calc.describe(7));
+		assertNull(calc.describe(null));
+		assertEquals(Arrays.asList((Object)"a", 1), calc.pair("a", 1));
+		calc.fire("hello");
+		assertTrue(fired.await(5, TimeUnit.SECONDS));
+		try {
+			calc.fail();
+			fail("expected remote exception");
+		} catch (PyroException x) {
+			assertEquals("builtins.ValueError", x.pythonExceptionType);
+		}
+
+		assertTrue(calc.equals(calc));
+		assertFalse(calc.equals(p.as(Calculator.class)));
+		assertTrue(calc.toString().contains("Calculator"));
+		p.close();
+	}
+
+	@Test
+	public void testBindErrors() throws IOException
+	{
+		PyroProxy p = new PyroProxy(daemon.uri("calc"));
+		try {
+			p.as(Missing.class);
+			fail("expected unknown method");
+		} catch (PyroException x) {
+			assertTrue(x.getMessage().contains("subtract"));
+		}
+		try {
+			p.as(OnewayWithResult.class);
+			fail("expected oneway error");
+		} catch (PyroException x) {
+			assertTrue(x.getMessage().contains("oneway"));
+		}
+		try {
+			p.as(String.class);
+			fail("expected interface error");
+		} catch (IllegalArgumentException x) {
+			// ok
+		}
+		p.close();
+	}
+
+	@Test
+	public void testCommunicationErrors() throws IOException
+	{
+		PyroProxy p = new PyroProxy(daemon.uri("calc"));
+		Calculator calc = p.as(Calculator.class);
+		assertEquals(3, calc.add(1, 2));
+		daemon.close();
+		try {
+			calc.add(1, 2);
+			fail("expected IOException");
+		} catch (IOException x) {
+			// declared by the interface method
+		}
+		try {
+			calc.addLong(1, 2);
+			fail("expected PyroException");
+		} catch (PyroException x) {
+			assertTrue(x.getCause() instanceof IOException);
+		}
+	}
+}
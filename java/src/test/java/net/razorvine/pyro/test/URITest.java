@@ -1,5 +1,6 @@
 package net.razorvine.pyro.test;
 
+import net.razorvine.pyro.Config;
 import net.razorvine.pyro.PyroException;
 import net.razorvine.pyro.PyroURI;
 import org.junit.Test;
@@ -7,6 +8,10 @@ import org.junit.Test;
 import java.io.IOException;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThrows;
 
 
@@ -61,4 +66,88 @@ public class URITest {
 		assertThrows(PyroException.class, () -> new PyroURI("PYRO:objectname@[[::1]]:1234"));
 		assertThrows(PyroException.class, () -> new PyroURI("PYRO:objectname@[invalid-ipv6]:1234"));
 	}
+
+	@Test
+	public void testUnixSocket()
+	{
+		PyroURI uri = new PyroURI("PYRO:objectname@./u:/tmp/some_dir/pyro.sock");
+		assertEquals("PYRO", uri.protocol);
+		assertEquals("objectname", uri.objectid);
+		assertEquals("/tmp/some_dir/pyro.sock", uri.sockname);
+		assertNull(uri.host);
+		assertEquals(0, uri.port);
+		assertEquals("<PyroURI PYRO:objectname@./u:/tmp/some_dir/pyro.sock>", uri.toString());
+		assertEquals(uri, new PyroURI(uri));
+		assertEquals(uri, PyroURI.unixSocket("objectname", "/tmp/some_dir/pyro.sock"));
+		assertNull(new PyroURI("PYRO:objectname@localhost:1234").sockname);
+
+		assertThrows(PyroException.class, () -> new PyroURI("PYRO:objectname@./u:"));
+	}
+
+	@Test
+	public void testParsing()
+	{
+		PyroURI uri = new PyroURI("pyro:obj.name@host.domain:9999");
+		assertEquals("PYRO", uri.protocol);
+		assertEquals("obj.name", uri.objectid);
+		assertEquals("host.domain", uri.host);
+		assertEquals(9999, uri.port);
+		assertEquals("PYROSSL", new PyroURI("PYROSSL:obj@host:1").protocol);
+		assertEquals("obj", new PyroURI("PYRO:obj@[fe80::1%2]:1").objectid);
+		assertEquals("fe80::1%2", new PyroURI("PYRO:obj@[fe80::1%2]:1").host);
+
+		uri = new PyroURI("PYRONAME:some.name");
+		assertEquals("PYRONAME", uri.protocol);
+		assertEquals("some.name", uri.objectid);
+		assertNull(uri.host);
+		uri = new PyroURI("PYRONAME:some.name@nshost");
+		assertEquals("nshost", uri.host);
+		assertEquals(Config.NS_PORT, uri.port);
+
+		String[] invalid = {"", "PYRO", "PYRO:", "PYRO:obj", "PYRO:obj@", "PYRO:@host:1", "FOO:obj@host:1", "PYRO1:obj@host:1",
+				"PYRO:obj@host", "PYRO:obj@host:", "PYRO:obj@host:12x", "PYRO:obj@host:1234567", "PYRO:o bj@host:1",
+				"PYRO:obj@[::1]x", "PYRO:obj@[]:1", "PYRO:obj@[::1"};
+		for(String s: invalid)
+			assertThrows(s, PyroException.class, () -> new PyroURI(s));
+	}
+
+	@Test
+	public void testEquality()
+	{
+		PyroURI uri1 = new PyroURI("PYRO:obj@host:1234");
+		PyroURI uri2 = new PyroURI("obj", "host", 1234);
+		assertEquals(uri1, uri2);
+		assertEquals(uri1.hashCode(), uri2.hashCode());
+		uri2.port = 1235;
+		assertNotEquals(uri1, uri2);
+		uri2.port = 1234;
+		uri2.protocol = "PYROSSL";
+		assertNotEquals(uri1, uri2);
+		assertNotEquals(uri1, new PyroURI("PYRO:obj@host2:1234"));
+		assertNotEquals(uri1, PyroURI.unixSocket("obj", "host"));
+		assertNotEquals(uri1, "PYRO:obj@host:1234");
+		assertEquals(new PyroURI(), new PyroURI());
+	}
+
+	@Test
+	public void testIntern()
+	{
+		PyroURI uri = new PyroURI("PYRO:obj@host:1234");
+		PyroURI interned = PyroURI.intern(uri);
+		assertNotSame(uri, interned);
+		assertEquals(uri, interned);
+		assertSame(interned, PyroURI.intern(new PyroURI("obj", "host", 1234)));
+		assertSame(interned, PyroURI.intern("PYRO:obj@host:1234"));
+		assertSame(interned, PyroURI.intern("PYRO:obj@host:1234"));
+		uri.port = 1;	// doesn't affect the canonical instance
+		assertEquals(1234, PyroURI.intern("PYRO:obj@host:1234").port);
+
+		assertNotSame(PyroURI.valueOf("PYRO:obj@host:1234"), PyroURI.valueOf("PYRO:obj@host:1234"));
+		Config.INTERN_URIS = true;
+		try {
+			assertSame(interned, PyroURI.valueOf("PYRO:obj@host:1234"));
+		} finally {
+			Config.INTERN_URIS = false;
+		}
+	}
 }
@@ -0,0 +1,72 @@
+package net.razorvine.pyro.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.razorvine.pyro.Config;
+import net.razorvine.pyro.LoadBalancingProxy;
+import net.razorvine.pyro.Threads;
+import net.razorvine.pyro.metrics.LatencyHistogram;
+
+/**
+ * Benchmark: many concurrent callers, each on its own virtual thread, sharing a pool of connections
+ * to the in-process fake daemon.
+ * Arguments: [callers (10000)] [calls per caller (10)] [connections (64)].
+ * Requires Java 21 for the virtual threads, on older JVMs it uses platform threads.
+ * Run with -Djdk.tracePinnedThreads=full to check that no virtual thread is pinned during the calls.
+ */
+public class VirtualThreadBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int callers = args.length>0 ? Integer.parseInt(args[0]) : 10000;
+		final int calls = args.length>1 ? Integer.parseInt(args[1]) : 10;
+		int connections = args.length>2 ? Integer.parseInt(args[2]) : 64;
+		boolean virtual = Threads.virtualThreadsAvailable();
+		Config.VIRTUAL_THREADS = virtual;
+		System.out.printf("%d callers x %d calls over %d connections, %s threads%n", callers, calls, connections, virtual ? "virtual" : "platform");
+
+		FakeDaemon daemon = new FakeDaemon();
+		daemon.register("bench", "echo", new FakeDaemon.Handler() {
+			public Object call(Object[] args) {
+				return args[0];
+			}
+		});
+		final LoadBalancingProxy pool = new LoadBalancingProxy(java.util.Collections.singletonList(daemon.uri("bench")), LoadBalancingProxy.Strategy.ROUND_ROBIN);
+		pool.maxConnectionsPerEndpoint = connections;
+		final LatencyHistogram latency = new LatencyHistogram();
+		final AtomicLong failures = new AtomicLong();
+
+		List<Thread> threads = new ArrayList<Thread>(callers);
+		long start = System.nanoTime();
+		for(int i=0; i<callers; ++i) {
+			final String message = "caller-" + i;
+			Runnable caller = new Runnable() {
+				public void run() {
+					for(int c=0; c<calls; ++c) {
+						long callStart = System.nanoTime();
+						try {
+							if(!message.equals(pool.call("echo", message)))
+								failures.incrementAndGet();
+						} catch (Exception x) {
+							failures.incrementAndGet();
+						}
+						latency.record(System.nanoTime()-callStart);
+					}
+				}
+			};
+			Thread t = virtual ? Threads.newVirtualThread("caller-"+i, caller) : new Thread(caller, "caller-"+i);
+			t.start();
+			threads.add(t);
+		}
+		for(Thread t: threads)
+			t.join();
+		long elapsed = System.nanoTime() - start;
+
+		System.out.printf("%d calls in %.3f s = %.0f calls/s, %d failures, %d daemon connections%n",
+				latency.getCount(), elapsed/1e9, latency.getCount()*1e9/elapsed, failures.get(), daemon.connections.get());
+		System.out.println("latency (ms): " + latency.summary(1e6));
+		pool.close();
+		daemon.close();
+	}
+}